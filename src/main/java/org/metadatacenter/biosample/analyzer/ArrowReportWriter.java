@@ -0,0 +1,291 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.apache.arrow.compression.CommonsCompressionFactory;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.*;
+import org.apache.arrow.vector.compression.CompressionUtil;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.ipc.message.IpcOption;
+import org.apache.arrow.vector.types.pojo.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes records and attribute validation results as columnar Arrow IPC files, with the same columns as the files
+ * written by {@link CsvWriter}. Attribute types and (harmonized) attribute names are dictionary-encoded, and boolean
+ * columns are stored as bitmaps. Record batches are compressed with ZSTD, and a new file is started whenever the
+ * current one reaches the maximum number of rows, e.g., biosamaple-attributes-00000.arrow, biosamaple-attributes-00001.arrow.
+ *
+ * On Java 9 and later, Arrow requires the JVM option --add-opens=java.base/java.nio=ALL-UNNAMED
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class ArrowReportWriter implements ReportWriter {
+  public static final long DEFAULT_MAX_ROWS_PER_FILE = 50_000_000L;
+  private static final int BATCH_SIZE = 1 << 16;
+  private static final long TYPE_DICTIONARY_ID = 0, NAME_DICTIONARY_ID = 1;
+  @Nonnull private static final String[] RECORD_COLUMNS = {"id", "accession", "publication_date", "last_update",
+      "submission_date", "access", "organism_taxonomy_id", "organism_taxonomy_name", "organism_name", "owner_name",
+      "model_name", "package_display_name", "package_name", "status", "status_date"};
+  @Nonnull private final File outputFolder;
+  private final long maxRowsPerFile;
+  @Nonnull private final BufferAllocator allocator = new RootAllocator();
+  @Nonnull private final DictionaryProvider.MapDictionaryProvider dictionaries = new DictionaryProvider.MapDictionaryProvider();
+  @Nonnull private final Map<String,Integer> typeIndex = new HashMap<>(), nameIndex = new HashMap<>();
+  @Nonnull private final RollingFile recordFile, attributeFile;
+  private long attributeCounter = 1;
+
+  public ArrowReportWriter(@Nonnull File outputFolder) {
+    this(outputFolder, DEFAULT_MAX_ROWS_PER_FILE);
+  }
+
+  /**
+   * @param outputFolder   Folder to write the Arrow files to
+   * @param maxRowsPerFile Number of rows after which a new file is started
+   */
+  public ArrowReportWriter(@Nonnull File outputFolder, long maxRowsPerFile) {
+    checkArgument(maxRowsPerFile > 0, "Maximum number of rows per file must be positive");
+    this.outputFolder = checkNotNull(outputFolder);
+    this.maxRowsPerFile = maxRowsPerFile;
+    // attribute types and names are known up front from the attributes file, so their dictionaries are fixed
+    List<String> types = new ArrayList<>();
+    for(AttributeType type : AttributeType.values()) {
+      types.add(type.name().toLowerCase());
+    }
+    List<String> names = new ArrayList<>(new TreeSet<>(BioSampleAttributes.getAttributeNames()));
+    DictionaryEncoding typeEncoding = addDictionary("attribute_types", TYPE_DICTIONARY_ID, new ArrowType.Int(8, true),
+        types, typeIndex);
+    DictionaryEncoding nameEncoding = addDictionary("attribute_names", NAME_DICTIONARY_ID, new ArrowType.Int(16, true),
+        names, nameIndex);
+
+    List<Field> recordFields = new ArrayList<>();
+    for(String column : RECORD_COLUMNS) {
+      recordFields.add(stringField(column, false));
+    }
+    recordFields.add(booleanField("is_valid"));
+    recordFile = new RollingFile("biosamaple-records", new Schema(recordFields));
+
+    attributeFile = new RollingFile("biosamaple-attributes", new Schema(Arrays.asList(
+        new Field("id", FieldType.notNullable(new ArrowType.Int(64, true)), null),
+        stringField("record_id", false),
+        new Field("attribute_type", new FieldType(false, typeEncoding.getIndexType(), typeEncoding), null),
+        new Field("name", new FieldType(false, nameEncoding.getIndexType(), nameEncoding), null),
+        stringField("attribute_name", false),
+        stringField("display_name", false),
+        stringField("value", false),
+        booleanField("is_valid"),
+        booleanField("is_filled_in"),
+        booleanField("is_valid_format"),
+        stringField("match_value", true))));
+  }
+
+  @Nonnull
+  private DictionaryEncoding addDictionary(@Nonnull String name, long id, @Nonnull ArrowType.Int indexType,
+                                           @Nonnull List<String> values, @Nonnull Map<String,Integer> index) {
+    VarCharVector vector = new VarCharVector(name, allocator);
+    vector.allocateNew(values.size());
+    for(int i = 0; i < values.size(); i++) {
+      vector.setSafe(i, values.get(i).getBytes(StandardCharsets.UTF_8));
+      index.put(values.get(i), i);
+    }
+    vector.setValueCount(values.size());
+    DictionaryEncoding encoding = new DictionaryEncoding(id, false, indexType);
+    dictionaries.put(new Dictionary(vector, encoding));
+    return encoding;
+  }
+
+  @Nonnull
+  private static Field stringField(@Nonnull String name, boolean nullable) {
+    return new Field(name, new FieldType(nullable, ArrowType.Utf8.INSTANCE, null), null);
+  }
+
+  @Nonnull
+  private static Field booleanField(@Nonnull String name) {
+    return new Field(name, FieldType.notNullable(ArrowType.Bool.INSTANCE), null);
+  }
+
+  @Override
+  public void writeRecord(@Nonnull Record record, boolean isValid,
+                          @Nonnull List<AttributeGroupValidationReport> validationReports) {
+    checkNotNull(record);
+    try {
+      String[] values = {record.getId(), record.getAccession(), record.getPublicationDate(), record.getLastUpdate(),
+          record.getSubmissionDate(), record.getAccess(), record.getOrganismTaxonomyId(),
+          record.getOrganismTaxonomyName(), record.getOrganismName(), record.getOwnerName(), record.getModelName(),
+          record.getPackageDisplayName(), record.getPackageName(), record.getStatus(), record.getStatusDate()};
+      VectorSchemaRoot root = recordFile.getRoot();
+      int row = recordFile.startRow();
+      for (int i = 0; i < values.length; i++) {
+        setString(root.getVector(i), row, values[i]);
+      }
+      ((BitVector) root.getVector(values.length)).setSafe(row, isValid ? 1 : 0);
+      recordFile.endRow();
+
+      // write attributes validation results
+      for (AttributeGroupValidationReport groupValidationReport : validationReports) {
+        for (AttributeValidationReport report : groupValidationReport.getValidationReports()) {
+          writeAttributeValidation(report, record.getId(), groupValidationReport.getGroupName());
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void writeAttributeValidation(@Nonnull AttributeValidationReport report, @Nonnull String recordId,
+                                        @Nonnull String attributeType) throws IOException {
+    Attribute attribute = report.getAttribute();
+    VectorSchemaRoot root = attributeFile.getRoot();
+    int row = attributeFile.startRow();
+    ((BigIntVector) root.getVector(0)).setSafe(row, attributeCounter++);
+    setString(root.getVector(1), row, recordId);
+    ((TinyIntVector) root.getVector(2)).setSafe(row, getIndex(typeIndex, attributeType));
+    ((SmallIntVector) root.getVector(3)).setSafe(row, getIndex(nameIndex, attribute.getName()));
+    setString(root.getVector(4), row, attribute.getAttributeName());
+    setString(root.getVector(5), row, attribute.getDisplayName());
+    setString(root.getVector(6), row, attribute.getValue());
+    ((BitVector) root.getVector(7)).setSafe(row, report.isValid() ? 1 : 0);
+    ((BitVector) root.getVector(8)).setSafe(row, report.isFilledIn() ? 1 : 0);
+    ((BitVector) root.getVector(9)).setSafe(row, report.isValidFormat() ? 1 : 0);
+    setString(root.getVector(10), row, report.getMatchValue().orElse(null));
+    attributeFile.endRow();
+  }
+
+  private static int getIndex(@Nonnull Map<String,Integer> index, @Nonnull String value) {
+    Integer i = index.get(value);
+    checkState(i != null, "Value is missing from the dictionary: %s", value);
+    return i;
+  }
+
+  private static void setString(@Nonnull FieldVector vector, int row, @Nullable String value) {
+    VarCharVector varCharVector = (VarCharVector) vector;
+    if(value != null) {
+      varCharVector.setSafe(row, value.getBytes(StandardCharsets.UTF_8));
+    } else {
+      varCharVector.setNull(row);
+    }
+  }
+
+  @Override
+  public void closeWriters() {
+    try {
+      recordFile.close();
+      attributeFile.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      for(long id : dictionaries.getDictionaryIds()) {
+        dictionaries.lookup(id).getVector().close();
+      }
+      allocator.close();
+    }
+  }
+
+  /**
+   * A series of Arrow files sharing one schema, where rows are buffered into record batches of up to
+   * {@link #BATCH_SIZE} rows, and a new file is started once the current one holds the maximum number of rows
+   */
+  private final class RollingFile {
+    @Nonnull private final String baseName;
+    @Nonnull private final VectorSchemaRoot root;
+    @Nullable private FileOutputStream outputStream;
+    @Nullable private ArrowFileWriter writer;
+    private int fileCounter = 0, rowsInBatch = 0;
+    private long rowsInFile = 0;
+
+    RollingFile(@Nonnull String baseName, @Nonnull Schema schema) {
+      this.baseName = checkNotNull(baseName);
+      this.root = VectorSchemaRoot.create(schema, allocator);
+    }
+
+    @Nonnull
+    VectorSchemaRoot getRoot() {
+      return root;
+    }
+
+    /**
+     * @return Index of the new row within the current record batch
+     */
+    int startRow() throws IOException {
+      if(writer == null) {
+        openFile();
+      }
+      return rowsInBatch;
+    }
+
+    void endRow() throws IOException {
+      rowsInBatch++;
+      rowsInFile++;
+      if(rowsInBatch == BATCH_SIZE || rowsInFile == maxRowsPerFile) {
+        writeBatch();
+      }
+      if(rowsInFile == maxRowsPerFile) {
+        closeFile();
+      }
+    }
+
+    private void openFile() throws IOException {
+      String fileName = String.format("%s-%05d.arrow", baseName, fileCounter++);
+      outputStream = new FileOutputStream(new File(outputFolder, fileName));
+      writer = new ArrowFileWriter(root, dictionaries, outputStream.getChannel(), Collections.emptyMap(),
+          IpcOption.DEFAULT, CommonsCompressionFactory.INSTANCE, CompressionUtil.CodecType.ZSTD);
+      writer.start();
+      rowsInFile = 0;
+    }
+
+    private void writeBatch() throws IOException {
+      if(rowsInBatch == 0 || writer == null) {
+        return;
+      }
+      root.setRowCount(rowsInBatch);
+      writer.writeBatch();
+      for(FieldVector vector : root.getFieldVectors()) {
+        vector.reset();
+      }
+      rowsInBatch = 0;
+    }
+
+    private void closeFile() throws IOException {
+      if(writer != null && outputStream != null) {
+        writer.end();
+        writer.close();
+        outputStream.close();
+        writer = null;
+        outputStream = null;
+      }
+    }
+
+    void close() throws IOException {
+      try {
+        writeBatch();
+        closeFile();
+      } finally {
+        root.close();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("outputFolder", outputFolder)
+        .add("maxRowsPerFile", maxRowsPerFile)
+        .toString();
+  }
+}
@@ -0,0 +1,144 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds the attribute names that submitters use instead of the harmonized names, including the attributes without a
+ * harmonized name, which are not part of the parsed records. The raw attributes of each record are counted per owner
+ * as the records are parsed, and once all are counted, the closest harmonized name to each distinct attribute name is
+ * suggested by an {@link AttributeNameMatcher}, in parallel, so each name is matched only once however often it
+ * occurs. An attribute name is a mismatch unless it is exactly a harmonized name, either one that the matcher knows or
+ * the one that the attribute was given.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class AttributeNameAnalyzer implements StreamingRecordParser.RawAttributeListener {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(AttributeNameAnalyzer.class.getName());
+  @Nonnull private final AttributeNameMatcher matcher;
+  @Nonnull private final Map<String,Map<String,NameCount>> ownerNames = new HashMap<>();
+  @Nonnull private Map<String,Optional<AttributeNameMatcher.Suggestion>> suggestions = new HashMap<>();
+  private long occurrences = 0;
+
+  public AttributeNameAnalyzer(@Nonnull AttributeNameMatcher matcher) {
+    this.matcher = checkNotNull(matcher);
+  }
+
+  public AttributeNameAnalyzer() {
+    this(new AttributeNameMatcher());
+  }
+
+  @Override
+  public void attribute(@Nonnull String ownerName, @Nonnull String attributeName, @Nonnull String harmonizedName) {
+    occurrences++;
+    NameCount count = ownerNames.computeIfAbsent(ownerName, k -> new HashMap<>())
+        .computeIfAbsent(attributeName, k -> new NameCount());
+    count.occurrences++;
+    if(count.harmonizedName.isEmpty()) {
+      count.harmonizedName = harmonizedName;
+    }
+  }
+
+  /**
+   * Suggest harmonized names for all the distinct attribute names counted so far that do not have one yet
+   */
+  public void suggest() {
+    Set<String> attributeNames = new HashSet<>();
+    for(Map<String,NameCount> names : ownerNames.values()) {
+      attributeNames.addAll(names.keySet());
+    }
+    attributeNames.removeAll(suggestions.keySet());
+    logger.info("Matching " + attributeNames.size() + " distinct attribute names against " + matcher.size() +
+        " harmonized names");
+    Map<String,Optional<AttributeNameMatcher.Suggestion>> newSuggestions = new ConcurrentHashMap<>();
+    attributeNames.parallelStream().forEach(name -> newSuggestions.put(name, matcher.suggest(name)));
+    suggestions.putAll(newSuggestions);
+  }
+
+  @Nonnull
+  public Optional<AttributeNameMatcher.Suggestion> getSuggestion(@Nonnull String attributeName) {
+    Optional<AttributeNameMatcher.Suggestion> suggestion = suggestions.get(checkNotNull(attributeName));
+    return (suggestion != null ? suggestion : matcher.suggest(attributeName));
+  }
+
+  private boolean isMismatch(@Nonnull String attributeName, @Nonnull NameCount count) {
+    return !matcher.isHarmonizedName(attributeName) && !attributeName.equals(count.harmonizedName);
+  }
+
+  /**
+   * Write the mismatched attribute names to a CSV file with one row per owner and attribute name, giving the
+   * harmonized name of the attribute in the records (if any), the suggested harmonized name (if any) and its score,
+   * and the number of occurrences. Rows are sorted by owner, and then by decreasing number of occurrences
+   */
+  public void writeCsv(@Nonnull File outputFile) throws IOException {
+    suggest();
+    long mismatches = 0;
+    try (BufferedCsvWriter writer = new BufferedCsvWriter(checkNotNull(outputFile), false, false)) {
+      writer.write("owner,attribute_name,harmonized_name,suggested_name,score,occurrences");
+      writer.writeNewLine();
+      for(String ownerName : new TreeSet<>(ownerNames.keySet())) {
+        List<Map.Entry<String,NameCount>> names = new ArrayList<>(ownerNames.get(ownerName).entrySet());
+        names.sort(Comparator.comparingLong((Map.Entry<String,NameCount> entry) -> -entry.getValue().occurrences)
+            .thenComparing(Map.Entry::getKey));
+        for(Map.Entry<String,NameCount> entry : names) {
+          String attributeName = entry.getKey();
+          NameCount count = entry.getValue();
+          if(!isMismatch(attributeName, count)) {
+            continue;
+          }
+          mismatches += count.occurrences;
+          Optional<AttributeNameMatcher.Suggestion> suggestion = getSuggestion(attributeName);
+          writer.writeQuoted(ownerName).writeSeparator()
+              .writeQuoted(attributeName).writeSeparator()
+              .writeQuoted(count.harmonizedName).writeSeparator()
+              .writeQuoted(suggestion.map(AttributeNameMatcher.Suggestion::getName).orElse("")).writeSeparator()
+              .write(suggestion.map(s -> String.format(Locale.ROOT, "%.3f", s.getScore())).orElse("")).writeSeparator()
+              .write(count.occurrences)
+              .writeNewLine();
+        }
+      }
+    }
+    logger.info(mismatches + " of " + occurrences + " attribute occurrences have mismatched names");
+  }
+
+  /**
+   * The number of occurrences of an attribute name for one owner, and the harmonized name it was given
+   */
+  private static final class NameCount {
+    @Nonnull private String harmonizedName = "";
+    private long occurrences = 0;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("matcher", matcher)
+        .add("owners", ownerNames.size())
+        .add("occurrences", occurrences)
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File inputFile = new File(args[0]);
+    File outputFile = new File(args[1]);
+    AttributeNameAnalyzer analyzer = new AttributeNameAnalyzer();
+    // only the raw attributes are needed, so the records themselves are dropped as they are parsed
+    StreamingRecordParser parser = new StreamingRecordParser(inputFile, RecordFilter.all(), record -> { });
+    parser.setRawAttributeListener(analyzer);
+    parser.processDocument();
+    logger.info("Analyzed " + analyzer);
+    analyzer.writeCsv(outputFile);
+  }
+}
@@ -0,0 +1,272 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Suggests the closest harmonized name for an attribute name given by a submitter. Names are normalized to lower
+ * case words joined by underscores, as harmonized names are, so that, e.g., "Collection Date" matches collection_date
+ * exactly. Otherwise the candidates are the harmonized names that share the most character n-grams with the name,
+ * found in an inverted index from each n-gram to the harmonized names that contain it, which is built once, and the
+ * best few candidates are scored by their edit distance to the name: a score of 1 is an exact match, and 0 shares
+ * nothing. Instances are immutable, so names can be matched by several threads at once.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@Immutable
+public final class AttributeNameMatcher {
+  public static final int DEFAULT_NGRAM_SIZE = 3, DEFAULT_CANDIDATES = 8;
+  public static final double DEFAULT_MIN_SCORE = 0.6;
+  private final int nGramSize, candidates;
+  private final double minScore;
+  @Nonnull private final String[] names, normalizedNames;
+  @Nonnull private final Map<String,Integer> exactMatches = new HashMap<>();
+  // the index: the distinct n-gram hashes, in increasing order, and the names that contain the n-gram at position i,
+  // which are postings[postingStarts[i]] ... postings[postingStarts[i + 1] - 1]
+  @Nonnull private final long[] nGrams;
+  @Nonnull private final int[] postingStarts, postings;
+  @Nonnull private final int[] nGramCounts;
+
+  /**
+   * @param harmonizedNames Harmonized names to suggest
+   * @param nGramSize       Size of the character n-grams that candidates are found by
+   * @param candidates      Number of candidates, with the most n-grams in common, whose edit distance is computed
+   * @param minScore        Minimum score of a suggestion
+   */
+  public AttributeNameMatcher(@Nonnull Collection<String> harmonizedNames, int nGramSize, int candidates,
+                              double minScore) {
+    checkArgument(nGramSize > 0, "N-gram size must be positive");
+    checkArgument(candidates > 0, "Number of candidates must be positive");
+    checkArgument(minScore >= 0 && minScore <= 1, "Minimum score must be in [0, 1]");
+    this.nGramSize = nGramSize;
+    this.candidates = candidates;
+    this.minScore = minScore;
+    names = new TreeSet<>(checkNotNull(harmonizedNames)).toArray(new String[0]);
+    normalizedNames = new String[names.length];
+    nGramCounts = new int[names.length];
+    List<long[]> nameNGrams = new ArrayList<>(names.length);
+    int totalNGrams = 0;
+    for(int i = 0; i < names.length; i++) {
+      normalizedNames[i] = normalize(names[i]);
+      exactMatches.putIfAbsent(normalizedNames[i], i);
+      long[] hashes = getDistinctNGramHashes(normalizedNames[i]);
+      nameNGrams.add(hashes);
+      nGramCounts[i] = hashes.length;
+      totalNGrams += hashes.length;
+    }
+    // sort (n-gram, name) pairs by n-gram to lay out the postings of each n-gram contiguously
+    long[] pairHashes = new long[totalNGrams];
+    int[] pairNames = new int[totalNGrams];
+    Integer[] order = new Integer[totalNGrams];
+    int pair = 0;
+    for(int i = 0; i < names.length; i++) {
+      for(long hash : nameNGrams.get(i)) {
+        pairHashes[pair] = hash;
+        pairNames[pair] = i;
+        order[pair] = pair;
+        pair++;
+      }
+    }
+    Arrays.sort(order, Comparator.comparingLong((Integer p) -> pairHashes[p]).thenComparingInt(p -> pairNames[p]));
+    long[] distinctNGrams = new long[totalNGrams];
+    int[] starts = new int[totalNGrams + 1];
+    postings = new int[totalNGrams];
+    int nrNGrams = 0;
+    for(int i = 0; i < totalNGrams; i++) {
+      long hash = pairHashes[order[i]];
+      if(nrNGrams == 0 || distinctNGrams[nrNGrams - 1] != hash) {
+        distinctNGrams[nrNGrams] = hash;
+        starts[nrNGrams++] = i;
+      }
+      postings[i] = pairNames[order[i]];
+    }
+    starts[nrNGrams] = totalNGrams;
+    nGrams = Arrays.copyOf(distinctNGrams, nrNGrams);
+    postingStarts = Arrays.copyOf(starts, nrNGrams + 1);
+  }
+
+  /**
+   * Create a matcher of the attribute names known to {@link BioSampleAttributes}
+   */
+  public AttributeNameMatcher() {
+    this(BioSampleAttributes.getAttributeNames(), DEFAULT_NGRAM_SIZE, DEFAULT_CANDIDATES, DEFAULT_MIN_SCORE);
+  }
+
+  /**
+   * Get the harmonized name closest to the given attribute name, if any scores at least the minimum score
+   */
+  @Nonnull
+  public Optional<Suggestion> suggest(@Nonnull String attributeName) {
+    String normalized = normalize(checkNotNull(attributeName));
+    Integer exactMatch = exactMatches.get(normalized);
+    if(exactMatch != null) {
+      return Optional.of(new Suggestion(names[exactMatch], 1.0));
+    }
+    if(normalized.isEmpty()) {
+      return Optional.empty();
+    }
+    // count the n-grams shared with each name. The names are few, so the counts are kept in a dense array
+    long[] hashes = getDistinctNGramHashes(normalized);
+    int[] shared = new int[names.length];
+    int[] touched = new int[names.length];
+    int nrTouched = 0;
+    for(long hash : hashes) {
+      int position = Arrays.binarySearch(nGrams, hash);
+      if(position < 0) {
+        continue;
+      }
+      for(int i = postingStarts[position]; i < postingStarts[position + 1]; i++) {
+        int name = postings[i];
+        if(shared[name]++ == 0) {
+          touched[nrTouched++] = name;
+        }
+      }
+    }
+    if(nrTouched == 0) {
+      return Optional.empty();
+    }
+    // rank the candidates by the Dice coefficient of their n-grams, and keep the best ones
+    long[] ranked = new long[nrTouched];
+    for(int i = 0; i < nrTouched; i++) {
+      int name = touched[i];
+      float dice = 2f * shared[name] / (hashes.length + nGramCounts[name]);
+      // higher coefficients first, then lower name numbers (i.e., alphabetical order)
+      ranked[i] = ((long) Float.floatToIntBits(1f - dice) << 32) | name;
+    }
+    Arrays.sort(ranked);
+    int bestName = -1;
+    double bestScore = minScore;
+    for(int i = 0; i < Math.min(candidates, nrTouched); i++) {
+      int name = (int) ranked[i];
+      String candidate = normalizedNames[name];
+      int length = Math.max(normalized.length(), candidate.length());
+      // only distances that could beat the best score so far are computed exactly
+      int maxDistance = (int) Math.floor((1 - bestScore) * length);
+      int distance = StringClusterer.getEditDistance(normalized, candidate, maxDistance);
+      double score = 1 - (double) distance / length;
+      if(distance <= maxDistance && (score > bestScore || bestName == -1 && score >= bestScore)) {
+        bestName = name;
+        bestScore = score;
+      }
+    }
+    return (bestName == -1 ? Optional.empty() : Optional.of(new Suggestion(names[bestName], bestScore)));
+  }
+
+  @Nonnull
+  private long[] getDistinctNGramHashes(@Nonnull String normalized) {
+    long[] hashes = MinHasher.getNGramHashes(normalized, nGramSize, new long[normalized.length() + 2]);
+    int count = MinHasher.getNGramCount(normalized, nGramSize);
+    Arrays.sort(hashes, 0, count);
+    int distinct = 0;
+    for(int i = 0; i < count; i++) {
+      if(distinct == 0 || hashes[distinct - 1] != hashes[i]) {
+        hashes[distinct++] = hashes[i];
+      }
+    }
+    return Arrays.copyOf(hashes, distinct);
+  }
+
+  /**
+   * Normalize an attribute name to lower case letters and digits, with each run of other characters replaced by a
+   * single underscore, and without leading or trailing underscores
+   */
+  @Nonnull
+  public static String normalize(@Nonnull String attributeName) {
+    StringBuilder normalized = new StringBuilder(attributeName.length());
+    boolean separator = false;
+    for(int i = 0; i < attributeName.length(); i++) {
+      char c = attributeName.charAt(i);
+      if(Character.isLetterOrDigit(c)) {
+        if(separator && normalized.length() > 0) {
+          normalized.append('_');
+        }
+        normalized.append(Character.toLowerCase(c));
+        separator = false;
+      } else {
+        separator = true;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Check whether the given name is one of the harmonized names, exactly
+   */
+  public boolean isHarmonizedName(@Nonnull String name) {
+    return Arrays.binarySearch(names, checkNotNull(name)) >= 0;
+  }
+
+  /**
+   * Get the number of harmonized names that are suggested
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * A suggested harmonized name, with its score between 0 and 1
+   */
+  @Immutable
+  public static final class Suggestion {
+    @Nonnull private final String name;
+    private final double score;
+
+    Suggestion(@Nonnull String name, double score) {
+      this.name = checkNotNull(name);
+      this.score = score;
+    }
+
+    @Nonnull
+    public String getName() {
+      return name;
+    }
+
+    public double getScore() {
+      return score;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Suggestion)) {
+        return false;
+      }
+      Suggestion that = (Suggestion) o;
+      return Double.compare(score, that.score) == 0 && Objects.equal(name, that.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(name, score);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("name", name)
+          .add("score", score)
+          .toString();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("names", names.length)
+        .add("nGramSize", nGramSize)
+        .add("candidates", candidates)
+        .add("minScore", minScore)
+        .toString();
+  }
+}
@@ -6,5 +6,5 @@ package org.metadatacenter.biosample.analyzer;
  * Stanford University
  */
 public enum AttributeType {
-  INTEGER, ONTOLOGY_TERM, TERM, BOOLEAN, VALUE_SET, TIMESTAMP, OTHER
+  INTEGER, ONTOLOGY_TERM, TERM, BOOLEAN, VALUE_SET, TIMESTAMP, TAXONOMY_ID, COORDINATES, QUANTITY, OTHER
 }
@@ -0,0 +1,215 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.MoreObjects;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Profiles the values of each (harmonized) attribute over a stream of records: how often the attribute occurs, an
+ * estimate of its number of distinct values, by a {@link HyperLogLog} sketch, and its most frequent values, by a
+ * {@link SpaceSaving} summary. The memory used per attribute is fixed, however many records are profiled. An instance
+ * is not thread-safe: each thread keeps its own profiler, and these are combined afterwards with
+ * {@link #merge(AttributeValueProfiler)}.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class AttributeValueProfiler {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(AttributeValueProfiler.class.getName());
+  @Nonnull private static final HashFunction hashFunction = Hashing.murmur3_128();
+  public static final int DEFAULT_PRECISION = 12, DEFAULT_CAPACITY = 200;
+  private final int precision, capacity;
+  @Nonnull private final Map<String,AttributeProfile> profiles = new HashMap<>();
+  private long records = 0;
+
+  /**
+   * @param precision Precision of the distinct value sketches, which use 2^precision bytes per attribute
+   * @param capacity  Number of values counted per attribute. Values that make up more than 1/capacity of the
+   *                  occurrences of an attribute are always counted
+   */
+  public AttributeValueProfiler(int precision, int capacity) {
+    checkArgument(precision >= 4 && precision <= 18, "Precision must be between 4 and 18");
+    checkArgument(capacity > 0, "Capacity must be positive");
+    this.precision = precision;
+    this.capacity = capacity;
+  }
+
+  public AttributeValueProfiler() {
+    this(DEFAULT_PRECISION, DEFAULT_CAPACITY);
+  }
+
+  public void add(@Nonnull Record record) {
+    checkNotNull(record);
+    records++;
+    for(Attribute attribute : record.getAttributes().values()) {
+      AttributeProfile profile = profiles.get(attribute.getName());
+      if(profile == null) {
+        profile = new AttributeProfile(precision, capacity);
+        profiles.put(attribute.getName(), profile);
+      }
+      profile.add(attribute.getValue());
+    }
+  }
+
+  /**
+   * Add the profiles of the given profiler to this one. Both must have the same precision
+   */
+  @Nonnull
+  public AttributeValueProfiler merge(@Nonnull AttributeValueProfiler other) {
+    checkArgument(checkNotNull(other).precision == precision, "Cannot merge profilers of different precision");
+    records += other.records;
+    for(Map.Entry<String,AttributeProfile> entry : other.profiles.entrySet()) {
+      profiles.computeIfAbsent(entry.getKey(), k -> new AttributeProfile(precision, capacity)).merge(entry.getValue());
+    }
+    return this;
+  }
+
+  public long getRecords() {
+    return records;
+  }
+
+  @Nonnull
+  public Set<String> getAttributeNames() {
+    return Collections.unmodifiableSet(profiles.keySet());
+  }
+
+  public long getOccurrences(@Nonnull String attributeName) {
+    AttributeProfile profile = profiles.get(checkNotNull(attributeName));
+    return (profile != null ? profile.occurrences : 0);
+  }
+
+  public long getDistinctValues(@Nonnull String attributeName) {
+    AttributeProfile profile = profiles.get(checkNotNull(attributeName));
+    return (profile != null ? profile.distinctValues.estimate() : 0);
+  }
+
+  @Nonnull
+  public List<SpaceSaving.Counter> getTopValues(@Nonnull String attributeName, int limit) {
+    AttributeProfile profile = profiles.get(checkNotNull(attributeName));
+    return (profile != null ? profile.topValues.getTop(limit) : Collections.emptyList());
+  }
+
+  /**
+   * Write the profiles to biosample-value-profile.json and biosample-value-profile.csv in the given folder, with up
+   * to the given number of top values per attribute. The CSV file has one row per top value of each attribute
+   */
+  public void write(@Nonnull File outputFolder, int topValues) throws IOException {
+    checkNotNull(outputFolder);
+    writeJson(new File(outputFolder, "biosample-value-profile.json"), topValues);
+    writeCsv(new File(outputFolder, "biosample-value-profile.csv"), topValues);
+  }
+
+  public void writeJson(@Nonnull File outputFile, int topValues) throws IOException {
+    Map<String,Object> attributes = new TreeMap<>();
+    for(String attributeName : profiles.keySet()) {
+      Map<String,Object> summary = new LinkedHashMap<>();
+      summary.put("occurrences", getOccurrences(attributeName));
+      summary.put("distinctValues", getDistinctValues(attributeName));
+      List<Map<String,Object>> values = new ArrayList<>();
+      for(SpaceSaving.Counter counter : getTopValues(attributeName, topValues)) {
+        Map<String,Object> value = new LinkedHashMap<>();
+        value.put("value", counter.getValue());
+        value.put("count", counter.getCount());
+        value.put("error", counter.getError());
+        values.add(value);
+      }
+      summary.put("topValues", values);
+      attributes.put(attributeName, summary);
+    }
+    Map<String,Object> profile = new LinkedHashMap<>();
+    profile.put("records", records);
+    profile.put("attributes", attributes);
+    new ObjectMapper().writeValue(checkNotNull(outputFile), profile);
+  }
+
+  public void writeCsv(@Nonnull File outputFile, int topValues) throws IOException {
+    try (BufferedCsvWriter writer = new BufferedCsvWriter(checkNotNull(outputFile), false, false)) {
+      writer.write("attribute,occurrences,distinct_values,rank,value,count,error");
+      writer.writeNewLine();
+      for(String attributeName : new TreeSet<>(profiles.keySet())) {
+        long occurrences = getOccurrences(attributeName), distinctValues = getDistinctValues(attributeName);
+        int rank = 1;
+        for(SpaceSaving.Counter counter : getTopValues(attributeName, topValues)) {
+          writer.writeQuoted(attributeName).writeSeparator()
+              .write(occurrences).writeSeparator()
+              .write(distinctValues).writeSeparator()
+              .write(rank++).writeSeparator()
+              .writeQuoted(counter.getValue()).writeSeparator()
+              .write(counter.getCount()).writeSeparator()
+              .write(counter.getError())
+              .writeNewLine();
+        }
+      }
+    }
+  }
+
+  /**
+   * The occurrences, distinct values and top values of one attribute
+   */
+  private static final class AttributeProfile {
+    @Nonnull private final HyperLogLog distinctValues;
+    @Nonnull private final SpaceSaving topValues;
+    private long occurrences = 0;
+
+    AttributeProfile(int precision, int capacity) {
+      distinctValues = new HyperLogLog(precision);
+      topValues = new SpaceSaving(capacity);
+    }
+
+    void add(@Nonnull String value) {
+      occurrences++;
+      distinctValues.add(hashFunction.hashString(value, StandardCharsets.UTF_8).asLong());
+      topValues.add(value);
+    }
+
+    void merge(@Nonnull AttributeProfile other) {
+      occurrences += other.occurrences;
+      distinctValues.merge(other.distinctValues);
+      topValues.merge(other.topValues);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("records", records)
+        .add("attributes", profiles.size())
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File inputFile = new File(args[0]);
+    File outputFolder = new File(args[1]);
+    int topValues = (args.length > 2 ? Integer.parseInt(args[2]) : 20);
+    outputFolder.mkdirs();
+    AttributeValueProfiler profiler;
+    if(inputFile.getName().endsWith(".snapshot")) {
+      // snapshot records are profiled in parallel, with one profiler per thread
+      try (RecordSnapshotReader reader = new RecordSnapshotReader(inputFile)) {
+        profiler = reader.getRecords().parallelStream().collect(AttributeValueProfiler::new,
+            AttributeValueProfiler::add, AttributeValueProfiler::merge);
+      }
+    } else {
+      // XML records are profiled as they are parsed, without keeping them
+      AttributeValueProfiler xmlProfiler = new AttributeValueProfiler();
+      new StreamingRecordParser(inputFile, RecordFilter.all(), xmlProfiler::add).processDocument();
+      profiler = xmlProfiler;
+    }
+    logger.info("Profiled " + profiler);
+    profiler.write(outputFolder, topValues);
+  }
+}
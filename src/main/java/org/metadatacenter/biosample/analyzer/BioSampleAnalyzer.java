@@ -1,20 +1,37 @@
 package org.metadatacenter.biosample.analyzer;
 
+import com.google.common.base.Throwables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -23,38 +40,217 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * Stanford University
  */
 public class BioSampleAnalyzer {
+  private static final int MAX_RECORDS_IN_FLIGHT = 1024;
   @Nonnull private static final Logger logger = LoggerFactory.getLogger(BioSampleAnalyzer.class.getName());
   @Nonnull private final Validator validator;
+  private final int nrThreads;
 
   public BioSampleAnalyzer(@Nonnull Validator validator) {
+    this(validator, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param validator Record validator
+   * @param nrThreads Number of threads used to validate records. Validation rules are CPU-bound, so this should be
+   *                  sized to the number of available processors
+   */
+  public BioSampleAnalyzer(@Nonnull Validator validator, int nrThreads) {
+    checkArgument(nrThreads > 0, "Number of threads must be positive");
     this.validator = checkNotNull(validator);
+    this.nrThreads = nrThreads;
   }
 
   @Nonnull
   public List<RecordValidationReport> validate(@Nonnull List<Record> records, @Nonnull File outputFolder) {
     checkNotNull(records); checkNotNull(outputFolder);
+    return validate(records, new CsvWriter(outputFolder, true));
+  }
+
+  @Nonnull
+  public List<RecordValidationReport> validate(@Nonnull List<Record> records, @Nonnull ReportWriter reportWriter) {
+    return validate(records, reportWriter, new QualityStatistics());
+  }
+
+  /**
+   * Validate the given records, write their reports, and add their validation results to the given statistics
+   */
+  @Nonnull
+  public List<RecordValidationReport> validate(@Nonnull List<Record> records, @Nonnull ReportWriter reportWriter,
+                                               @Nonnull QualityStatistics statistics) {
+    checkNotNull(records); checkNotNull(reportWriter); checkNotNull(statistics);
+    return validate(records, 0, reportWriter, statistics, null);
+  }
+
+  /**
+   * Validate the given records, starting from the first record of the checkpointer, and write checkpoints while
+   * doing so. Only the reports of the records validated in this run are returned
+   */
+  @Nonnull
+  public List<RecordValidationReport> validate(@Nonnull List<Record> records, @Nonnull Checkpointer checkpointer) {
+    checkNotNull(records); checkNotNull(checkpointer);
+    return validate(records, checkpointer.getFirstRecord(), checkpointer.getWriter(), checkpointer.getStatistics(),
+        checkpointer);
+  }
+
+  /**
+   * Validate only the records that are new or have been updated since a previous run, and copy the results of the
+   * other records from the output of that run. Only the reports of the records validated in this run are returned
+   *
+   * @param records        Records to validate
+   * @param previousFolder Output folder of a previous run with an {@link IncrementalCsvWriter}
+   * @param writer         Writer of the merged results
+   * @param statistics     Statistics that the results of both copied and validated records are added to
+   */
+  @Nonnull
+  public List<RecordValidationReport> validateIncrementally(@Nonnull List<Record> records, @Nonnull File previousFolder,
+                                                            @Nonnull IncrementalCsvWriter writer,
+                                                            @Nonnull QualityStatistics statistics) throws IOException {
+    checkNotNull(records); checkNotNull(previousFolder); checkNotNull(writer); checkNotNull(statistics);
+    Map<String,Record> recordsByAccession = new HashMap<>();
+    for(Record record : records) {
+      recordsByAccession.put(record.getAccession(), record);
+    }
+    Set<String> unchanged = writer.copyUnchanged(previousFolder, recordsByAccession, statistics);
+    List<Record> changedRecords = new ArrayList<>();
+    for(Record record : records) {
+      if(!unchanged.contains(record.getAccession())) {
+        changedRecords.add(record);
+      }
+    }
+    logger.info(changedRecords.size() + " new or updated records to validate");
+    return validate(changedRecords, writer, statistics);
+  }
+
+  @Nonnull
+  private List<RecordValidationReport> validate(@Nonnull List<Record> allRecords, int firstRecord,
+                                                @Nonnull ReportWriter reportWriter,
+                                                @Nonnull QualityStatistics statistics,
+                                                @Nullable Checkpointer checkpointer) {
+    List<Record> records = allRecords.subList(Math.min(firstRecord, allRecords.size()), allRecords.size());
     List<RecordValidationReport> reports = new ArrayList<>();
-    CsvWriter csvWriter = new CsvWriter(outputFolder);
     ProgressMonitor monitor = new ProgressMonitor(records);
     logger.info("Validating records...");
     long start = System.currentTimeMillis();
     int recordCounter = 0;  // counters
     double percentDone = 0;
-    for (Record record : records) {
-      recordCounter++;  // increment counters
-      monitor.incrementProgress();
-      if(monitor.getPercentDone() > percentDone) {
-        logger.info("\t" + monitor.getPercentDone() + "%  (record #" + recordCounter + ")");
+    // records are validated concurrently, while reports are collected and written in the order of the input records.
+    // validation threads only run the local rules and hand term lookups off to the validator, so records that are
+    // waiting on term lookups do not hold on to a thread
+    ExecutorService executor = Executors.newFixedThreadPool(nrThreads);
+    Deque<Future<RecordValidationReport>> inFlight = new ArrayDeque<>();
+    Iterator<Record> iterator = records.iterator();
+    try {
+      while (iterator.hasNext() || !inFlight.isEmpty()) {
+        while (iterator.hasNext() && inFlight.size() < MAX_RECORDS_IN_FLIGHT) {
+          Record record = iterator.next();
+          inFlight.add(CompletableFuture.supplyAsync(() -> validator.validateBioSampleRecordAsync(record), executor)
+              .thenCompose(Function.identity()));
+        }
+        recordCounter++;  // increment counters
+        monitor.incrementProgress();
+        if (monitor.getPercentDone() > percentDone) {
+          logger.info("\t" + monitor.getPercentDone() + "%  (record #" + recordCounter + ")");
+        }
+        RecordValidationReport report = getResult(inFlight.poll());
+        reports.add(report);
+        boolean isValid = validator.isValid(report);
+        reportWriter.writeRecord(report.getMetadataRecord(), isValid, report.getAttributeGroupValidationReports());
+        statistics.add(report.getMetadataRecord(), isValid, report.getAttributeGroupValidationReports());
+        if (checkpointer != null) {
+          checkpointer.recordsWritten(firstRecord + recordCounter);
+        }
       }
-      RecordValidationReport report = validator.validateBioSampleRecord(record);
-      reports.add(report);
-      csvWriter.writeRecord(record, validator.isValid(report), report.getAttributeGroupValidationReports());
+    } finally {
+      executor.shutdownNow();
+    }
+    if (checkpointer != null) {
+      checkpointer.checkpoint(firstRecord + recordCounter);
     }
     logger.info("done " + (System.currentTimeMillis() - start) / 1000.0 + " secs");
-    csvWriter.closeWriters();
+    reportWriter.closeWriters();
     return reports;
   }
 
+  /**
+   * Validate records with one worker per output shard. Worker k validates the records at positions k, k+n, k+2n, etc.
+   * and writes them to shard k, so workers do not wait on each other to write their output
+   */
+  @Nonnull
+  public List<RecordValidationReport> validate(@Nonnull List<Record> records, @Nonnull ShardedCsvWriter writer) {
+    return validate(records, writer, new QualityStatistics());
+  }
+
+  /**
+   * Validate records with one worker per output shard, as above. Each worker keeps its own statistics, which are
+   * added to the given statistics once all workers are done
+   */
+  @Nonnull
+  public List<RecordValidationReport> validate(@Nonnull List<Record> records, @Nonnull ShardedCsvWriter writer,
+                                               @Nonnull QualityStatistics statistics) {
+    checkNotNull(records); checkNotNull(writer); checkNotNull(statistics);
+    RecordValidationReport[] reports = new RecordValidationReport[records.size()];
+    AtomicInteger recordCounter = new AtomicInteger();
+    logger.info("Validating records (" + writer.getNrShards() + " shards)...");
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(writer.getNrShards());
+    List<Future<QualityStatistics>> workers = new ArrayList<>();
+    for(int shard = 0; shard < writer.getNrShards(); shard++) {
+      int workerShard = shard;
+      workers.add(executor.submit(() -> validateShard(records, workerShard, writer, reports, recordCounter)));
+    }
+    try {
+      for (Future<QualityStatistics> worker : workers) {
+        statistics.merge(getResult(worker));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    logger.info("done " + (System.currentTimeMillis() - start) / 1000.0 + " secs");
+    writer.closeWriters();
+    return Arrays.asList(reports);
+  }
+
+  @Nonnull
+  private QualityStatistics validateShard(@Nonnull List<Record> records, int shard, @Nonnull ShardedCsvWriter writer,
+                                          @Nonnull RecordValidationReport[] reports,
+                                          @Nonnull AtomicInteger recordCounter) throws IOException {
+    QualityStatistics statistics = new QualityStatistics();
+    int nrShards = writer.getNrShards();
+    int maxInFlight = Math.max(1, MAX_RECORDS_IN_FLIGHT / nrShards);
+    Deque<Integer> indexes = new ArrayDeque<>();
+    Deque<CompletableFuture<RecordValidationReport>> inFlight = new ArrayDeque<>();
+    int next = shard;
+    while (next < records.size() || !inFlight.isEmpty()) {
+      while (next < records.size() && inFlight.size() < maxInFlight) {
+        inFlight.add(validator.validateBioSampleRecordAsync(records.get(next)));
+        indexes.add(next);
+        next += nrShards;
+      }
+      RecordValidationReport report = getResult(inFlight.poll());
+      reports[indexes.poll()] = report;
+      boolean isValid = validator.isValid(report);
+      writer.writeRecord(shard, report.getMetadataRecord(), isValid, report.getAttributeGroupValidationReports());
+      statistics.add(report.getMetadataRecord(), isValid, report.getAttributeGroupValidationReports());
+      int done = recordCounter.incrementAndGet();
+      if (done * 100L / records.size() > (done - 1) * 100L / records.size()) {
+        logger.info("\t" + (done * 100L / records.size()) + "%  (record #" + done + ")");
+      }
+    }
+    return statistics;
+  }
+
+  private <T> T getResult(@Nonnull Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while validating records", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
   @Nonnull
   public Optional<Document> parseDocument(@Nonnull File inputFile) {
     checkNotNull(inputFile);
@@ -73,13 +269,35 @@ public class BioSampleAnalyzer {
 
   @Nonnull
   public List<Record> getBioSampleRecords(@Nonnull Document doc) {
+    return getBioSampleRecords(doc, RecordFilter.all());
+  }
+
+  @Nonnull
+  public List<Record> getBioSampleRecords(@Nonnull Document doc, @Nonnull RecordFilter filter) {
     checkNotNull(doc);
+    checkNotNull(filter);
     logger.info("Extracting BioSample records from XML document");
-    RecordParser parser = new RecordParser(doc);
+    RecordParser parser = new RecordParser(doc, filter);
     parser.processDocument();
     int nrRecords = parser.getBioSampleRecords().size();
     logger.info("done. Total records processed: " + nrRecords);
     return parser.getBioSampleRecords();
   }
 
+  /**
+   * Get the BioSample records in the given XML file that are accepted by the given filter. The file is streamed
+   * rather than parsed into a document, and rejected records are skipped without being built
+   */
+  @Nonnull
+  public List<Record> getBioSampleRecords(@Nonnull File inputFile, @Nonnull RecordFilter filter) {
+    checkNotNull(inputFile);
+    checkNotNull(filter);
+    logger.info("Streaming BioSample records from XML file with filter: " + filter);
+    StreamingRecordParser parser = new StreamingRecordParser(inputFile, filter);
+    parser.processDocument();
+    logger.info("done. Total records processed: " + parser.getBioSampleRecords().size() + " (skipped " +
+        parser.getSkippedRecords() + ")");
+    return parser.getBioSampleRecords();
+  }
+
 }
@@ -0,0 +1,319 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A CSV writer that encodes cells into a reusable character buffer, and only hands the buffer to the underlying
+ * writer when it is full, or on {@link #flush()} and {@link #close()}. Quoted cells have their quotes replaced with
+ * single quotes while being copied into the buffer, in a single scan of the cell text.
+ *
+ * Optionally, full buffers are written out by a dedicated writer thread. Buffers are recycled through a fixed-size
+ * pool, so a producer that outpaces the disk blocks until a buffer becomes available.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class BufferedCsvWriter implements Closeable, Flushable {
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+  private static final int NR_BUFFERS = 4;
+  private static final char QUOTE = '"', SINGLE_QUOTE = '\'', SEPARATOR = ',', NEW_LINE = '\n';
+  @Nonnull private static final char[] TRUE = "true".toCharArray(), FALSE = "false".toCharArray();
+  @Nonnull private final Writer writer;
+  @Nullable private final ExecutorService writerThread;
+  @Nullable private final BlockingQueue<char[]> freeBuffers;
+  @Nonnull private final char[] digits = new char[20];
+  @Nonnull private char[] buffer;
+  private int position = 0;
+  private long charsDrained = 0;
+  @Nullable private volatile IOException writeError;
+  private boolean closed = false;
+
+  /**
+   * @param writer                Underlying writer
+   * @param bufferSize            Size of the character buffer
+   * @param dedicatedWriterThread Write full buffers out on a dedicated thread, rather than on the calling thread
+   */
+  public BufferedCsvWriter(@Nonnull Writer writer, int bufferSize, boolean dedicatedWriterThread) {
+    checkArgument(bufferSize > 0, "Buffer size must be positive");
+    this.writer = checkNotNull(writer);
+    this.buffer = new char[bufferSize];
+    if(dedicatedWriterThread) {
+      writerThread = Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("csv-writer-%d").setDaemon(true).build());
+      freeBuffers = new ArrayBlockingQueue<>(NR_BUFFERS);
+      for(int i = 1; i < NR_BUFFERS; i++) {
+        freeBuffers.add(new char[bufferSize]);
+      }
+    } else {
+      writerThread = null;
+      freeBuffers = null;
+    }
+  }
+
+  public BufferedCsvWriter(@Nonnull OutputStream outputStream, boolean dedicatedWriterThread) {
+    this(new OutputStreamWriter(new BufferedOutputStream(outputStream, DEFAULT_BUFFER_SIZE), StandardCharsets.UTF_8),
+        DEFAULT_BUFFER_SIZE, dedicatedWriterThread);
+  }
+
+  public BufferedCsvWriter(@Nonnull File file, boolean append, boolean dedicatedWriterThread) throws IOException {
+    this(new FileOutputStream(checkNotNull(file), append), dedicatedWriterThread);
+  }
+
+  /**
+   * Write the given text surrounded by quotes, replacing any quotes within the text with single quotes
+   */
+  @Nonnull
+  public BufferedCsvWriter writeQuoted(@Nonnull String text) throws IOException {
+    write(QUOTE);
+    for(int i = 0, length = text.length(); i < length; i++) {
+      char c = text.charAt(i);
+      if(position == buffer.length) {
+        drain();
+      }
+      buffer[position++] = (c == QUOTE ? SINGLE_QUOTE : c);
+    }
+    return write(QUOTE);
+  }
+
+  /**
+   * Write the given text surrounded by quotes, doubling any quotes within the text, so that it reads back unchanged
+   */
+  @Nonnull
+  public BufferedCsvWriter writeEscaped(@Nonnull String text) throws IOException {
+    write(QUOTE);
+    for(int i = 0, length = text.length(); i < length; i++) {
+      char c = text.charAt(i);
+      if(position == buffer.length) {
+        drain();
+      }
+      buffer[position++] = c;
+      if(c == QUOTE) {
+        write(QUOTE);
+      }
+    }
+    return write(QUOTE);
+  }
+
+  @Nonnull
+  public BufferedCsvWriter writeQuoted(long value) throws IOException {
+    return write(QUOTE).write(value).write(QUOTE);
+  }
+
+  @Nonnull
+  public BufferedCsvWriter writeQuoted(boolean value) throws IOException {
+    return write(QUOTE).write(value).write(QUOTE);
+  }
+
+  /**
+   * Write the given text as-is
+   */
+  @Nonnull
+  public BufferedCsvWriter write(@Nonnull String text) throws IOException {
+    int offset = 0, length = text.length();
+    while(offset < length) {
+      if(position == buffer.length) {
+        drain();
+      }
+      int n = Math.min(length - offset, buffer.length - position);
+      text.getChars(offset, offset + n, buffer, position);
+      position += n;
+      offset += n;
+    }
+    return this;
+  }
+
+  /**
+   * Write the given characters as-is, such as a line view that is not a string
+   */
+  @Nonnull
+  public BufferedCsvWriter write(@Nonnull CharSequence text) throws IOException {
+    for(int i = 0, length = text.length(); i < length; i++) {
+      if(position == buffer.length) {
+        drain();
+      }
+      buffer[position++] = text.charAt(i);
+    }
+    return this;
+  }
+
+  @Nonnull
+  public BufferedCsvWriter write(@Nonnull char[] chars, int offset, int length) throws IOException {
+    while(length > 0) {
+      if(position == buffer.length) {
+        drain();
+      }
+      int n = Math.min(length, buffer.length - position);
+      System.arraycopy(chars, offset, buffer, position, n);
+      position += n;
+      offset += n;
+      length -= n;
+    }
+    return this;
+  }
+
+  @Nonnull
+  public BufferedCsvWriter write(char c) throws IOException {
+    if(position == buffer.length) {
+      drain();
+    }
+    buffer[position++] = c;
+    return this;
+  }
+
+  @Nonnull
+  public BufferedCsvWriter write(boolean value) throws IOException {
+    char[] chars = (value ? TRUE : FALSE);
+    for(char c : chars) {
+      write(c);
+    }
+    return this;
+  }
+
+  @Nonnull
+  public BufferedCsvWriter write(long value) throws IOException {
+    if(value == Long.MIN_VALUE) {
+      return write(Long.toString(value));
+    }
+    if(value < 0) {
+      write('-');
+      value = -value;
+    }
+    int i = digits.length;
+    do {
+      digits[--i] = (char) ('0' + (value % 10));
+      value /= 10;
+    } while(value > 0);
+    while(i < digits.length) {
+      write(digits[i++]);
+    }
+    return this;
+  }
+
+  @Nonnull
+  public BufferedCsvWriter writeSeparator() throws IOException {
+    return write(SEPARATOR);
+  }
+
+  @Nonnull
+  public BufferedCsvWriter writeNewLine() throws IOException {
+    return write(NEW_LINE);
+  }
+
+  /**
+   * Get the number of characters written so far, including those still in the buffer
+   */
+  public long getCharsWritten() {
+    return charsDrained + position;
+  }
+
+  /**
+   * Write out the buffered content and flush the underlying writer. When using a dedicated writer thread, this
+   * waits until that thread has written out all content handed to it so far
+   */
+  @Override
+  public void flush() throws IOException {
+    checkWriteError();
+    drain();
+    if(writerThread != null) {
+      await(writerThread.submit(() -> {
+        writer.flush();
+        return null;
+      }));
+    } else {
+      writer.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+    } finally {
+      if(writerThread != null) {
+        writerThread.shutdown();
+      }
+      writer.close();
+    }
+  }
+
+  /**
+   * Hand the content of the buffer to the underlying writer, either directly or through the writer thread
+   */
+  private void drain() throws IOException {
+    checkWriteError();
+    if(position == 0) {
+      return;
+    }
+    if(writerThread != null && freeBuffers != null) {
+      char[] chars = buffer;
+      int length = position;
+      writerThread.execute(() -> {
+        try {
+          if(writeError == null) {
+            writer.write(chars, 0, length);
+          }
+        } catch (IOException e) {
+          writeError = e;
+        } finally {
+          freeBuffers.add(chars);
+        }
+      });
+      try {
+        buffer = freeBuffers.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+      }
+    } else {
+      writer.write(buffer, 0, position);
+    }
+    charsDrained += position;
+    position = 0;
+  }
+
+  private void await(@Nonnull Future<?> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the writer thread");
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+    checkWriteError();
+  }
+
+  private void checkWriteError() throws IOException {
+    IOException e = writeError;
+    if(e != null) {
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("writer", writer)
+        .add("bufferSize", buffer.length)
+        .add("dedicatedWriterThread", writerThread != null)
+        .toString();
+  }
+}
@@ -0,0 +1,186 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Periodically records how far a validation run that writes CSV files has gotten, so that a run that dies can be
+ * resumed rather than restarted. A checkpoint holds the number of records written, the lengths of the records and
+ * attributes files, the identifier of the next attribute row, the statistics accumulated so far and the term cache.
+ * It is written to a temporary file that then replaces the checkpoint file in a single atomic move, so the checkpoint
+ * file always holds a complete checkpoint.
+ *
+ * The output files are flushed before each checkpoint, so their lengths at a checkpoint mark the end of a record.
+ * When resuming, the output files are cut back to those lengths, and validation continues with the next record.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class Checkpointer {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(Checkpointer.class.getName());
+  public static final int DEFAULT_INTERVAL = 100_000;
+  @Nonnull public static final String CHECKPOINT_FILE = "biosample.checkpoint";
+  private static final int MAGIC = 0x42534350, VERSION = 1;
+  @Nonnull private final File inputFile, checkpointFile;
+  @Nonnull private final CsvWriter writer;
+  @Nonnull private final QualityStatistics statistics;
+  @Nonnull private final TermCache termCache;
+  private final int interval, firstRecord;
+
+  private Checkpointer(@Nonnull File inputFile, @Nonnull File checkpointFile, @Nonnull CsvWriter writer,
+                       @Nonnull QualityStatistics statistics, @Nonnull TermCache termCache, int interval,
+                       int firstRecord) {
+    this.inputFile = checkNotNull(inputFile);
+    this.checkpointFile = checkNotNull(checkpointFile);
+    this.writer = checkNotNull(writer);
+    this.statistics = checkNotNull(statistics);
+    this.termCache = checkNotNull(termCache);
+    this.interval = interval;
+    this.firstRecord = firstRecord;
+  }
+
+  /**
+   * Start a run that writes checkpoints to the given output folder. When resuming, the state of the last checkpoint
+   * in the output folder is restored: the output files are cut back, and the statistics and the term cache are
+   * filled in. Without a checkpoint to resume from, the run starts from the first record
+   *
+   * @param inputFile    Input file, which must not change between a checkpoint and resuming from it
+   * @param outputFolder Folder to write the CSV files and the checkpoint file to
+   * @param compression  Compression of the CSV files
+   * @param termCache    Term cache used by the validator
+   * @param interval     Number of records between checkpoints
+   * @param resume       Resume from the last checkpoint
+   */
+  @Nonnull
+  public static Checkpointer start(@Nonnull File inputFile, @Nonnull File outputFolder,
+                                   @Nonnull OutputCompression compression, @Nonnull TermCache termCache, int interval,
+                                   boolean resume) throws IOException {
+    checkNotNull(inputFile); checkNotNull(outputFolder); checkNotNull(compression); checkNotNull(termCache);
+    checkArgument(interval > 0, "Checkpoint interval must be positive");
+    File checkpointFile = new File(outputFolder, CHECKPOINT_FILE);
+    QualityStatistics statistics = new QualityStatistics();
+    if(!resume || !checkpointFile.exists()) {
+      if(resume) {
+        logger.warn("No checkpoint found in " + outputFolder + ", starting from the first record");
+      }
+      CsvWriter writer = new CsvWriter(outputFolder, true, compression);
+      return new Checkpointer(inputFile, checkpointFile, writer, statistics, termCache, interval, 0);
+    }
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+      if(input.readInt() != MAGIC || input.readInt() != VERSION) {
+        throw new IOException("Not a checkpoint file: " + checkpointFile);
+      }
+      int nrRecords = input.readInt();
+      long recordsFileLength = input.readLong(), attributesFileLength = input.readLong();
+      long nextAttributeId = input.readLong();
+      if(input.readLong() != inputFile.length() || input.readLong() != inputFile.lastModified()) {
+        throw new IOException("Input file has changed since the checkpoint was written: " + inputFile);
+      }
+      statistics.readFrom(input);
+      termCache.readFrom(input);
+      truncate(CsvWriter.getRecordsFile(outputFolder, "", compression), recordsFileLength);
+      truncate(CsvWriter.getAttributesFile(outputFolder, "", compression), attributesFileLength);
+      logger.info("Resuming from record #" + (nrRecords + 1) + " (" + termCache.size() + " cached terms)");
+      CsvWriter writer = new CsvWriter(outputFolder, true, compression, "", nextAttributeId, 1);
+      return new Checkpointer(inputFile, checkpointFile, writer, statistics, termCache, interval, nrRecords);
+    }
+  }
+
+  private static void truncate(@Nonnull File file, long length) throws IOException {
+    if(file.length() < length) {
+      throw new IOException("Output file is shorter than at the checkpoint: " + file);
+    }
+    if(file.exists()) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+        channel.truncate(length);
+      }
+    }
+  }
+
+  /**
+   * Get the index of the first record to validate
+   */
+  public int getFirstRecord() {
+    return firstRecord;
+  }
+
+  @Nonnull
+  public CsvWriter getWriter() {
+    return writer;
+  }
+
+  @Nonnull
+  public QualityStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Notify that the given number of records have been written, which writes a checkpoint at every interval. The
+   * statistics must include all of these records
+   */
+  public void recordsWritten(int nrRecords) {
+    if(nrRecords % interval == 0) {
+      checkpoint(nrRecords);
+    }
+  }
+
+  /**
+   * Write a checkpoint after the given number of records
+   */
+  public void checkpoint(int nrRecords) {
+    File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+    try {
+      writer.flush();
+      sync(writer.getRecordsFile());
+      sync(writer.getAttributesFile());
+      try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream));
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(nrRecords);
+        output.writeLong(writer.getRecordsFile().length());
+        output.writeLong(writer.getAttributesFile().length());
+        output.writeLong(writer.getNextAttributeId());
+        output.writeLong(inputFile.length());
+        output.writeLong(inputFile.lastModified());
+        statistics.writeTo(output);
+        termCache.writeTo(output);
+        output.flush();
+        outputStream.getFD().sync();
+      }
+      Files.move(temporaryFile.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      logger.info("Checkpoint written after record #" + nrRecords);
+    } catch (IOException e) {
+      // the previous checkpoint is still in place, so the run carries on
+      e.printStackTrace();
+    }
+  }
+
+  private static void sync(@Nonnull File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("checkpointFile", checkpointFile)
+        .add("interval", interval)
+        .add("firstRecord", firstRecord)
+        .toString();
+  }
+}
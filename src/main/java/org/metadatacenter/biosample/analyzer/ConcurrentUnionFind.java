@@ -0,0 +1,87 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A union-find (disjoint set) structure over the elements 0..n-1 that several threads can update at once without
+ * locking. Roots are linked with compare-and-set, always the larger root under the smaller one, and paths are halved
+ * during finds, also with compare-and-set, so a failed update is simply retried or skipped.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@ThreadSafe
+final class ConcurrentUnionFind {
+  @Nonnull private final AtomicIntegerArray parents;
+
+  ConcurrentUnionFind(int size) {
+    parents = new AtomicIntegerArray(size);
+    for(int i = 0; i < size; i++) {
+      parents.set(i, i);
+    }
+  }
+
+  /**
+   * Find the root of the set of the given element
+   */
+  int find(int element) {
+    while(true) {
+      int parent = parents.get(element);
+      if(parent == element) {
+        return element;
+      }
+      int grandparent = parents.get(parent);
+      if(parent != grandparent) {
+        parents.compareAndSet(element, parent, grandparent);
+      }
+      element = grandparent;
+    }
+  }
+
+  /**
+   * Merge the sets of the given elements
+   */
+  void union(int first, int second) {
+    while(true) {
+      first = find(first);
+      second = find(second);
+      if(first == second) {
+        return;
+      }
+      int low = Math.min(first, second), high = Math.max(first, second);
+      if(parents.compareAndSet(high, high, low)) {
+        return;
+      }
+    }
+  }
+
+  boolean isConnected(int first, int second) {
+    while(true) {
+      first = find(first);
+      second = find(second);
+      if(first == second) {
+        return true;
+      }
+      // the first root may have been linked meanwhile, in which case the check is repeated
+      if(parents.get(first) == first) {
+        return false;
+      }
+    }
+  }
+
+  int size() {
+    return parents.length();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("size", size())
+        .toString();
+  }
+}
@@ -0,0 +1,151 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A point given by latitude and longitude in decimal degrees, where south and west are negative. Coordinates are
+ * parsed from the "d[d.dddd] N|S d[dd.dddd] W|E" format of lat_lon attributes, e.g., "38.98 N 77.11 W", by a single
+ * pass over the characters, without regular expressions or intermediate strings
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@Immutable
+public final class Coordinates {
+  private static final double MAX_LATITUDE = 90, MAX_LONGITUDE = 180;
+  private final double latitude, longitude;
+
+  public Coordinates(double latitude, double longitude) {
+    this.latitude = latitude;
+    this.longitude = longitude;
+  }
+
+  public double getLatitude() {
+    return latitude;
+  }
+
+  public double getLongitude() {
+    return longitude;
+  }
+
+  /**
+   * Parse coordinates in the "d[d.dddd] N|S d[dd.dddd] W|E" format. The space between each number and its hemisphere
+   * is optional, and the latitude and longitude must be within range. Nothing but the result is allocated
+   */
+  @Nonnull
+  public static Optional<Coordinates> parse(@Nonnull CharSequence value) {
+    checkNotNull(value);
+    int length = value.length(), position = 0;
+    double latitude = 0, longitude = 0;
+    // the latitude is part 0 and the longitude part 1, which differ only in their digits, hemispheres and range
+    for(int part = 0; part < 2; part++) {
+      int maxIntegerDigits = (part == 0 ? 2 : 3), integerDigits = 0;
+      char positive = (part == 0 ? 'N' : 'E'), negative = (part == 0 ? 'S' : 'W');
+      double max = (part == 0 ? MAX_LATITUDE : MAX_LONGITUDE);
+      long integer = 0, fraction = 0, scale = 1;
+      while(position < length && isDigit(value.charAt(position))) {
+        if(++integerDigits > maxIntegerDigits) {
+          return Optional.empty();
+        }
+        integer = integer * 10 + (value.charAt(position++) - '0');
+      }
+      if(integerDigits == 0) {
+        return Optional.empty();
+      }
+      if(position < length && value.charAt(position) == '.') {
+        position++;
+        int fractionDigits = 0;
+        while(position < length && isDigit(value.charAt(position))) {
+          // digits beyond the precision of a double are read but ignored
+          if(fractionDigits++ < 15) {
+            fraction = fraction * 10 + (value.charAt(position) - '0');
+            scale *= 10;
+          }
+          position++;
+        }
+        if(fractionDigits == 0) {
+          return Optional.empty();
+        }
+      }
+      if(position < length && value.charAt(position) == ' ') {
+        position++;
+      }
+      if(position >= length) {
+        return Optional.empty();
+      }
+      char hemisphere = value.charAt(position++);
+      double degrees = integer + (double) fraction / scale;
+      if((hemisphere != positive && hemisphere != negative) || degrees > max) {
+        return Optional.empty();
+      }
+      if(hemisphere == negative) {
+        degrees = -degrees;
+      }
+      if(part == 0) {
+        latitude = degrees;
+        // the latitude and longitude are separated by exactly one space
+        if(position >= length || value.charAt(position++) != ' ') {
+          return Optional.empty();
+        }
+      } else {
+        longitude = degrees;
+      }
+    }
+    if(position != length) {
+      return Optional.empty();
+    }
+    return Optional.of(new Coordinates(latitude, longitude));
+  }
+
+  /**
+   * Check whether the given value is in the "d[d.dddd] N|S d[dd.dddd] W|E" format
+   */
+  public static boolean isValid(@Nonnull CharSequence value) {
+    return parse(value).isPresent();
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Coordinates)) {
+      return false;
+    }
+    Coordinates that = (Coordinates) o;
+    return latitude == that.latitude && longitude == that.longitude;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(latitude, longitude);
+  }
+
+  /**
+   * Get the coordinates as "latitude,longitude" in signed decimal degrees
+   */
+  @Nonnull
+  public String toDecimalString() {
+    return latitude + "," + longitude;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("latitude", latitude)
+        .add("longitude", longitude)
+        .toString();
+  }
+}
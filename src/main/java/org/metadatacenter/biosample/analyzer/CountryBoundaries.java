@@ -0,0 +1,293 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The boundaries of countries, as polygons, used to check that the coordinates of a sample lie in the country of its
+ * geographic location. Boundaries are read from a text file with one polygon per line, of the form
+ * "country&lt;TAB&gt;lon lat, lon lat, ...", where the country is named as in the INSDC country vocabulary, the
+ * vertices are in decimal degrees, and a country can have several polygons (e.g., islands). A line with two vertices
+ * is the bounding box with its south-west and north-east corners; a box whose west longitude is greater than its east
+ * longitude crosses the antimeridian, and is split at ±180 degrees. Polygons must not cross the antimeridian. Lines
+ * starting with '#' are comments. Approximate bounding boxes of the INSDC countries are bundled as a resource, see
+ * {@link #getDefault()}.
+ *
+ * Polygons are indexed by a grid of 1 by 1 degree cells, each of which lists the polygons whose bounding box overlaps
+ * it, so checking a point only tests the polygons of its cell.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@Immutable
+public final class CountryBoundaries {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(CountryBoundaries.class.getName());
+  @Nonnull private static final String DEFAULT_RESOURCE = "country-boundaries.tsv";
+  private static final int GRID_COLUMNS = 360, GRID_ROWS = 180;
+  private static final double MAX_LONGITUDE = 180;
+  @Nonnull private final Map<String,Integer> countries;
+  // polygon i has vertices (longitude, latitude) vertices[vertexStarts[i]] ... vertices[vertexStarts[i + 1] - 1]
+  @Nonnull private final double[] vertices;
+  @Nonnull private final int[] vertexStarts, polygonCountries;
+  // cell i lists the polygons cellPolygons[cellStarts[i]] ... cellPolygons[cellStarts[i + 1] - 1]
+  @Nonnull private final int[] cellStarts, cellPolygons;
+
+  private CountryBoundaries(@Nonnull Map<String,Integer> countries, @Nonnull double[] vertices,
+                            @Nonnull int[] vertexStarts, @Nonnull int[] polygonCountries) {
+    this.countries = checkNotNull(countries);
+    this.vertices = checkNotNull(vertices);
+    this.vertexStarts = checkNotNull(vertexStarts);
+    this.polygonCountries = checkNotNull(polygonCountries);
+    int nrPolygons = polygonCountries.length;
+    int[][] bounds = new int[nrPolygons][];
+    cellStarts = new int[GRID_COLUMNS * GRID_ROWS + 1];
+    for(int polygon = 0; polygon < nrPolygons; polygon++) {
+      bounds[polygon] = getCellBounds(polygon);
+      forEachCell(bounds[polygon], cell -> cellStarts[cell + 1]++);
+    }
+    for(int cell = 0; cell < GRID_COLUMNS * GRID_ROWS; cell++) {
+      cellStarts[cell + 1] += cellStarts[cell];
+    }
+    cellPolygons = new int[cellStarts[GRID_COLUMNS * GRID_ROWS]];
+    int[] next = Arrays.copyOf(cellStarts, GRID_COLUMNS * GRID_ROWS);
+    for(int polygon = 0; polygon < nrPolygons; polygon++) {
+      int p = polygon;
+      forEachCell(bounds[polygon], cell -> cellPolygons[next[cell]++] = p);
+    }
+  }
+
+  /**
+   * Read country boundaries from the given file
+   */
+  @Nonnull
+  public static CountryBoundaries load(@Nonnull File file) throws IOException {
+    Loader loader = new Loader(checkNotNull(file).toString());
+    try (MappedLineReader reader = new MappedLineReader(file)) {
+      reader.forEachLine(loader);
+    }
+    CountryBoundaries boundaries = loader.build();
+    logger.info("Loaded " + boundaries + " from " + file);
+    return boundaries;
+  }
+
+  /**
+   * Get the approximate bounding boxes of the countries of the INSDC country vocabulary that are bundled in the
+   * country-boundaries.tsv resource, which are read once, on first use
+   */
+  @Nonnull
+  public static CountryBoundaries getDefault() {
+    return DefaultHolder.BOUNDARIES;
+  }
+
+  private static final class DefaultHolder {
+    @Nonnull private static final CountryBoundaries BOUNDARIES = loadResource(DEFAULT_RESOURCE);
+  }
+
+  @Nonnull
+  private static CountryBoundaries loadResource(@Nonnull String resource) {
+    Loader loader = new Loader(resource);
+    try (InputStream inputStream = CountryBoundaries.class.getClassLoader().getResourceAsStream(resource)) {
+      if(inputStream == null) {
+        throw new IllegalStateException("Missing resource " + resource);
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+      String line = reader.readLine();
+      while(line != null) {
+        loader.accept(line);
+        line = reader.readLine();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read resource " + resource, e);
+    }
+    CountryBoundaries boundaries = loader.build();
+    logger.info("Loaded " + boundaries + " from " + resource);
+    return boundaries;
+  }
+
+  /**
+   * Collects the polygons of the lines of a boundaries file
+   */
+  private static final class Loader implements MappedLineReader.LineConsumer {
+    @Nonnull private final String source;
+    @Nonnull private final Map<String,Integer> countries = new HashMap<>();
+    @Nonnull private final List<double[]> polygons = new ArrayList<>();
+    @Nonnull private final List<Integer> polygonCountries = new ArrayList<>();
+    private int lineNumber = 0;
+
+    Loader(@Nonnull String source) {
+      this.source = checkNotNull(source);
+    }
+
+    @Override
+    public void accept(@Nonnull CharSequence line) throws IOException {
+      lineNumber++;
+      String entry = line.toString().trim();
+      if(entry.isEmpty() || entry.startsWith("#")) {
+        return;
+      }
+      int separator = entry.indexOf('\t');
+      if(separator < 0) {
+        throw new IOException("Missing tab after the country at line " + lineNumber + " of " + source);
+      }
+      String[] points = entry.substring(separator + 1).split(",");
+      if(points.length < 2) {
+        throw new IOException("Polygon with fewer than two vertices at line " + lineNumber + " of " + source);
+      }
+      double[] polygon = new double[2 * points.length];
+      try {
+        for(int i = 0; i < points.length; i++) {
+          String[] coordinates = points[i].trim().split("\\s+");
+          polygon[2 * i] = Double.parseDouble(coordinates[0]);
+          polygon[2 * i + 1] = Double.parseDouble(coordinates[1]);
+        }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        throw new IOException("Invalid vertex at line " + lineNumber + " of " + source, e);
+      }
+      Integer code = countries.computeIfAbsent(normalize(entry.substring(0, separator)), c -> countries.size());
+      if(points.length == 2) {
+        // a bounding box, given by its south-west and north-east corners
+        double west = polygon[0], south = polygon[1], east = polygon[2], north = polygon[3];
+        if(west > east) {
+          // the box crosses the antimeridian, so it is split into the boxes on either side of it
+          addBox(code, west, south, MAX_LONGITUDE, north);
+          addBox(code, -MAX_LONGITUDE, south, east, north);
+        } else {
+          addBox(code, west, south, east, north);
+        }
+      } else {
+        polygons.add(polygon);
+        polygonCountries.add(code);
+      }
+    }
+
+    private void addBox(int code, double west, double south, double east, double north) {
+      polygons.add(new double[] {west, south, east, south, east, north, west, north});
+      polygonCountries.add(code);
+    }
+
+    @Nonnull
+    CountryBoundaries build() {
+      int[] vertexStarts = new int[polygons.size() + 1];
+      for(int i = 0; i < polygons.size(); i++) {
+        vertexStarts[i + 1] = vertexStarts[i] + polygons.get(i).length;
+      }
+      double[] vertices = new double[vertexStarts[polygons.size()]];
+      for(int i = 0; i < polygons.size(); i++) {
+        System.arraycopy(polygons.get(i), 0, vertices, vertexStarts[i], polygons.get(i).length);
+      }
+      return new CountryBoundaries(countries, vertices, vertexStarts,
+          polygonCountries.stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  @Nonnull
+  private static String normalize(@Nonnull String country) {
+    return country.trim().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Check whether there are boundaries for the given country
+   */
+  public boolean hasCountry(@Nonnull String country) {
+    return countries.containsKey(normalize(country));
+  }
+
+  /**
+   * Check whether the given coordinates lie within the boundaries of the given country. Points on a boundary may lie
+   * on either side of it
+   */
+  public boolean contains(@Nonnull String country, @Nonnull Coordinates coordinates) {
+    Integer code = countries.get(normalize(country));
+    if(code == null) {
+      return false;
+    }
+    double longitude = coordinates.getLongitude(), latitude = coordinates.getLatitude();
+    int cell = getRow(latitude) * GRID_COLUMNS + getColumn(longitude);
+    for(int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+      int polygon = cellPolygons[i];
+      if(polygonCountries[polygon] == code && isInPolygon(polygon, longitude, latitude)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check whether the given point lies in the given polygon, by counting the edges that a ray from the point crosses
+   */
+  private boolean isInPolygon(int polygon, double x, double y) {
+    int start = vertexStarts[polygon], end = vertexStarts[polygon + 1];
+    boolean inside = false;
+    for(int i = start, j = end - 2; i < end; j = i, i += 2) {
+      double xi = vertices[i], yi = vertices[i + 1], xj = vertices[j], yj = vertices[j + 1];
+      if((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+  /**
+   * Get the first and last column and row of the cells that the bounding box of the given polygon overlaps
+   */
+  @Nonnull
+  private int[] getCellBounds(int polygon) {
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for(int i = vertexStarts[polygon]; i < vertexStarts[polygon + 1]; i += 2) {
+      minX = Math.min(minX, vertices[i]);
+      maxX = Math.max(maxX, vertices[i]);
+      minY = Math.min(minY, vertices[i + 1]);
+      maxY = Math.max(maxY, vertices[i + 1]);
+    }
+    return new int[] {getColumn(minX), getColumn(maxX), getRow(minY), getRow(maxY)};
+  }
+
+  private static void forEachCell(@Nonnull int[] bounds, @Nonnull CellConsumer consumer) {
+    for(int row = bounds[2]; row <= bounds[3]; row++) {
+      for(int column = bounds[0]; column <= bounds[1]; column++) {
+        consumer.accept(row * GRID_COLUMNS + column);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface CellConsumer {
+    void accept(int cell);
+  }
+
+  private static int getColumn(double longitude) {
+    return Math.min(GRID_COLUMNS - 1, Math.max(0, (int) Math.floor(longitude + 180)));
+  }
+
+  private static int getRow(double latitude) {
+    return Math.min(GRID_ROWS - 1, Math.max(0, (int) Math.floor(latitude + 90)));
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("countries", countries.size())
+        .add("polygons", polygonCountries.length)
+        .toString();
+  }
+}
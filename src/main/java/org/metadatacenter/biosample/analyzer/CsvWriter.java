@@ -4,9 +4,10 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 
 import javax.annotation.Nonnull;
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -15,31 +16,97 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
-public class CsvWriter {
+public class CsvWriter implements ReportWriter {
   @Nonnull private final File outputFolder;
-  @Nonnull private BufferedWriter recordWriter;
-  @Nonnull private BufferedWriter attributeWriter;
-  @Nonnull private final static Pattern p = Pattern.compile("\"");
-  private int attributeCounter = 1;
+  private final boolean dedicatedWriterThreads;
+  @Nonnull private final OutputCompression compression;
+  @Nonnull private final String fileNameSuffix;
+  private final long attributeIdStep;
+  @Nonnull private BufferedCsvWriter recordWriter;
+  @Nonnull private BufferedCsvWriter attributeWriter;
+  private long attributeCounter;
 
   public CsvWriter(@Nonnull File outputFolder) {
+    this(outputFolder, false);
+  }
+
+  /**
+   * @param outputFolder           Folder to write the CSV files to
+   * @param dedicatedWriterThreads Write out each CSV file on its own thread, rather than on the calling thread
+   */
+  public CsvWriter(@Nonnull File outputFolder, boolean dedicatedWriterThreads) {
+    this(outputFolder, dedicatedWriterThreads, OutputCompression.NONE);
+  }
+
+  /**
+   * @param outputFolder           Folder to write the CSV files to
+   * @param dedicatedWriterThreads Write out each CSV file on its own thread, rather than on the calling thread
+   * @param compression            Compression of the CSV files, whose names get the corresponding extension
+   */
+  public CsvWriter(@Nonnull File outputFolder, boolean dedicatedWriterThreads, @Nonnull OutputCompression compression) {
+    this(outputFolder, dedicatedWriterThreads, compression, "", 1, 1);
+  }
+
+  /**
+   * Package-private constructor for writers of output shards, see {@link ShardedCsvWriter}
+   *
+   * @param fileNameSuffix   Suffix added to the CSV file names, before the file extension
+   * @param firstAttributeId Identifier of the first attribute row
+   * @param attributeIdStep  Increment between identifiers of consecutive attribute rows
+   */
+  CsvWriter(@Nonnull File outputFolder, boolean dedicatedWriterThreads, @Nonnull OutputCompression compression,
+            @Nonnull String fileNameSuffix, long firstAttributeId, long attributeIdStep) {
     this.outputFolder = checkNotNull(outputFolder);
+    this.dedicatedWriterThreads = dedicatedWriterThreads;
+    this.compression = checkNotNull(compression);
+    this.fileNameSuffix = checkNotNull(fileNameSuffix);
+    this.attributeCounter = firstAttributeId;
+    this.attributeIdStep = attributeIdStep;
     initializeWriters();
   }
 
+  /**
+   * Package-private constructor for a writer that writes its rows to the given writers rather than to files in an
+   * output folder, e.g., to collect the rows of a record in memory
+   */
+  CsvWriter(@Nonnull BufferedCsvWriter recordWriter, @Nonnull BufferedCsvWriter attributeWriter) {
+    this.outputFolder = new File(".");
+    this.dedicatedWriterThreads = false;
+    this.compression = OutputCompression.NONE;
+    this.fileNameSuffix = "";
+    this.attributeCounter = 1;
+    this.attributeIdStep = 1;
+    this.recordWriter = checkNotNull(recordWriter);
+    this.attributeWriter = checkNotNull(attributeWriter);
+  }
+
   private void initializeWriters() {
     try {
-      String outputFolder = "";
-      if(!this.outputFolder.getAbsolutePath().endsWith(File.separator)) {
-        outputFolder = this.outputFolder + File.separator;
-      }
-      recordWriter = new BufferedWriter(new FileWriter(outputFolder + "biosamaple-records.csv", true));
-      attributeWriter = new BufferedWriter(new FileWriter(outputFolder + "biosamaple-attributes.csv", true));
+      recordWriter = openWriter(getRecordsFile(outputFolder, fileNameSuffix, compression));
+      attributeWriter = openWriter(getAttributesFile(outputFolder, fileNameSuffix, compression));
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  @Nonnull
+  static File getRecordsFile(@Nonnull File outputFolder, @Nonnull String fileNameSuffix,
+                             @Nonnull OutputCompression compression) {
+    return new File(outputFolder, "biosamaple-records" + fileNameSuffix + ".csv" + compression.getFileExtension());
+  }
+
+  @Nonnull
+  static File getAttributesFile(@Nonnull File outputFolder, @Nonnull String fileNameSuffix,
+                                @Nonnull OutputCompression compression) {
+    return new File(outputFolder, "biosamaple-attributes" + fileNameSuffix + ".csv" + compression.getFileExtension());
+  }
+
+  @Nonnull
+  private BufferedCsvWriter openWriter(@Nonnull File file) throws IOException {
+    return new BufferedCsvWriter(compression.open(file, true), dedicatedWriterThreads);
+  }
+
+  @Override
   public void writeRecord(@Nonnull Record record, boolean isValid,
                                        @Nonnull List<AttributeGroupValidationReport> validationReports) {
     checkNotNull(record);
@@ -58,7 +125,7 @@ public class CsvWriter {
     writeCell(recordWriter, record.getPackageName());
     writeCell(recordWriter, record.getStatus());
     writeCell(recordWriter, record.getStatusDate());
-    writeCell(recordWriter, "" + isValid); // is record overall valid?
+    writeCell(recordWriter, isValid); // is record overall valid?
 
     // write attributes validation results
     for(AttributeGroupValidationReport groupValidationReport : validationReports) {
@@ -75,38 +142,83 @@ public class CsvWriter {
   }
 
   public void writeAttributeValidation(@Nonnull AttributeValidationReport report, @Nonnull String recordId, @Nonnull String attributeType) {
-    writeCell(attributeWriter, "" + attributeCounter);
+    writeCell(attributeWriter, attributeCounter);
     writeCell(attributeWriter, recordId);
     writeCell(attributeWriter, attributeType);
     writeCell(attributeWriter, report.getAttribute().getName());
     writeCell(attributeWriter, report.getAttribute().getAttributeName());
     writeCell(attributeWriter, report.getAttribute().getDisplayName());
     writeCell(attributeWriter, report.getAttribute().getValue());
-    writeCell(attributeWriter, "" + report.isValid());
-    writeCell(attributeWriter, "" + report.isFilledIn());
-    writeCell(attributeWriter, "" + report.isValidFormat());
+    writeCell(attributeWriter, report.isValid());
+    writeCell(attributeWriter, report.isFilledIn());
+    writeCell(attributeWriter, report.isValidFormat());
     report.getMatchValue().ifPresent(match -> writeCell(attributeWriter, match));
     writeNewLine(attributeWriter);
-    attributeCounter++;
+    attributeCounter += attributeIdStep;
+  }
+
+  private void writeCell(@Nonnull BufferedCsvWriter writer, @Nonnull String cellText) {
+    // quotes in the cell text are replaced with single quotes
+    try {
+      writer.writeQuoted(cellText).writeSeparator();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void writeCell(@Nonnull BufferedCsvWriter writer, long cellValue) {
+    try {
+      writer.writeQuoted(cellValue).writeSeparator();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void writeCell(@Nonnull BufferedCsvWriter writer, boolean cellValue) {
+    try {
+      writer.writeQuoted(cellValue).writeSeparator();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void writeNewLine(@Nonnull BufferedCsvWriter writer) {
+    try {
+      writer.writeNewLine();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
+  /**
+   * Write a quoted cell, followed by a comma if requested, to the given writer, and flush it. Quotes in the cell text
+   * are replaced with single quotes
+   *
+   * @deprecated Flushing after every cell is slow; rows are written through a {@link BufferedCsvWriter} instead
+   */
+  @Deprecated
   public void writeCell(@Nonnull Writer writer, @Nonnull String cellText, boolean includeComma) {
-    // replace quotes from cell text with single quotes
-    String cellTextClean = p.matcher(cellText).replaceAll("'");
     try {
-      String output = "\"" + cellTextClean + "\"" + (includeComma ? "," : "");
-      writer.write(output);
+      writer.write("\"" + cellText.replace('"', '\'') + "\"" + (includeComma ? "," : ""));
       writer.flush();
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * @deprecated See {@link #writeCell(Writer, String, boolean)}
+   */
+  @Deprecated
   public void writeCell(@Nonnull Writer writer, @Nonnull String cellText) {
     writeCell(writer, cellText, true);
   }
 
-  public void writeNewLine(Writer writer) {
+  /**
+   * @deprecated See {@link #writeCell(Writer, String, boolean)}
+   */
+  @Deprecated
+  public void writeNewLine(@Nonnull Writer writer) {
     try {
       writer.write("\n");
       writer.flush();
@@ -115,6 +227,41 @@ public class CsvWriter {
     }
   }
 
+  /**
+   * Write out all buffered output. Afterwards, the CSV files end with the last record written, and compressed files
+   * end with a complete gzip member or zstd frame, so the files can be cut back to their current length
+   */
+  public void flush() throws IOException {
+    recordWriter.flush();
+    attributeWriter.flush();
+  }
+
+  @Nonnull
+  public File getRecordsFile() {
+    return getRecordsFile(outputFolder, fileNameSuffix, compression);
+  }
+
+  @Nonnull
+  public File getAttributesFile() {
+    return getAttributesFile(outputFolder, fileNameSuffix, compression);
+  }
+
+  /**
+   * Get the identifier of the next attribute row
+   */
+  long getNextAttributeId() {
+    return attributeCounter;
+  }
+
+  long getRecordCharsWritten() {
+    return recordWriter.getCharsWritten();
+  }
+
+  long getAttributeCharsWritten() {
+    return attributeWriter.getCharsWritten();
+  }
+
+  @Override
   public void closeWriters() {
     try {
       recordWriter.close();
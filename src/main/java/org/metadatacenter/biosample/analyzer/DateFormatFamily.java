@@ -0,0 +1,62 @@
+package org.metadatacenter.biosample.analyzer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Families of date formats accepted for timestamp attributes. A date is valid if it is in one of the families other
+ * than {@link #INVALID}: "DD-Mmm-YYYY", "Mmm-YYYY" or "YYYY" (e.g., 30-Oct-1990, Oct-1990 or 1990), or ISO 8601
+ * "YYYY-mm-dd", "YYYY-mm" or "YYYY-mm-ddThh:mm:ss" (e.g., 1990-10-30, 1990-10 or 1990-10-30T14:41:36), where the
+ * separators of ISO dates may be any non-digit character, or none
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public enum DateFormatFamily {
+  DAY_MONTH_YEAR("DD-Mmm-YYYY", "\\d{2}-(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec)-\\d{4}"),
+  MONTH_YEAR("Mmm-YYYY", "(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec)-\\d{4}"),
+  YEAR("year only", "\\d{4}"),
+  ISO_DATE("ISO date", "\\d{4}\\D?(0[1-9]|1[0-2])\\D?([12]\\d|0[1-9]|3[01])|\\d{4}-\\d{2}-\\d{2}|\\d{4}-\\d{2}"),
+  ISO_DATETIME("ISO datetime", "\\d{4}\\D?(0[1-9]|1[0-2])\\D?([12]\\d|0[1-9]|3[01])\\D?([01]\\d|2[0-3])\\D?" +
+      "([0-5]\\d)\\D?([0-5]\\d)?\\D?(\\d{3})?"),
+  INVALID("invalid", null);
+
+  @Nonnull private final String label;
+  @Nullable private final Pattern pattern;
+
+  DateFormatFamily(@Nonnull String label, @Nullable String pattern) {
+    this.label = checkNotNull(label);
+    this.pattern = (pattern != null ? Pattern.compile(pattern) : null);
+  }
+
+  @Nonnull
+  public String getLabel() {
+    return label;
+  }
+
+  public boolean isValid() {
+    return this != INVALID;
+  }
+
+  /**
+   * Get the family of the format of the given date. The date is matched as-is, without trimming
+   */
+  @Nonnull
+  public static DateFormatFamily classify(@Nonnull CharSequence date) {
+    checkNotNull(date);
+    // every valid date starts with a digit or a month, and has at least four characters
+    if(date.length() < 4 || !Character.isDigit(date.charAt(0)) && !Character.isUpperCase(date.charAt(0))) {
+      return INVALID;
+    }
+    for(DateFormatFamily family : values()) {
+      if(family.pattern != null && family.pattern.matcher(date).matches()) {
+        return family;
+      }
+    }
+    return INVALID;
+  }
+}
@@ -1,17 +1,23 @@
 package org.metadatacenter.biosample.analyzer;
 
+import com.google.common.collect.ImmutableMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
 /**
  * @author Rafael Gonçalves <br>
@@ -22,35 +28,138 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public final class GenericValidator implements Validator {
   @Nonnull private static final Logger logger = LoggerFactory.getLogger(GenericValidator.class.getName());
   @Nonnull private final TermValidator termValidator;
+  @Nonnull private final Executor termLookupExecutor;
   @Nonnull private final static Pattern p1 = Pattern.compile("\\["), p2 = Pattern.compile("]");
+  @Nonnull static final String ORGANISM = "organism", GEOGRAPHIC_LOCATION = "geo_loc_name";
+  // the taxa that the organism of a record of a package (given by the prefix of its name) must lie under
+  @Nonnull private static final ImmutableMap<String,int[]> PACKAGE_LINEAGES = ImmutableMap.<String,int[]>builder()
+      .put("Human.", new int[] {9606})
+      .put("Plant.", new int[] {33090})
+      .put("Virus.", new int[] {TaxonomyIndex.VIRUSES})
+      .put("Metagenome.", new int[] {408169})
+      .put("MIMS.", new int[] {408169})
+      .put("MIMARKS.survey.", new int[] {408169})
+      .put("MIGS.ba.", new int[] {TaxonomyIndex.BACTERIA, TaxonomyIndex.ARCHAEA})
+      .put("MIGS.eu.", new int[] {TaxonomyIndex.EUKARYOTA})
+      .put("MIGS.vi.", new int[] {TaxonomyIndex.VIRUSES})
+      .put("Beta-lactamase.", new int[] {TaxonomyIndex.BACTERIA})
+      .put("Model.organism.animal.", new int[] {33208})
+      .put("Invertebrate.", new int[] {33208})
+      .build();
+  @Nullable private final TaxonomyIndex taxonomyIndex;
+  @Nullable private final CountryBoundaries countryBoundaries;
 
+  /**
+   * Create a validator that performs term lookups on the calling thread
+   */
   public GenericValidator(@Nonnull TermValidator termValidator) {
+    this(termValidator, directExecutor());
+  }
+
+  /**
+   * Create a validator that submits (network-bound) term lookups to the given executor, while the (CPU-bound)
+   * local rules keep running on the calling thread
+   */
+  public GenericValidator(@Nonnull TermValidator termValidator, @Nonnull Executor termLookupExecutor) {
+    this(termValidator, termLookupExecutor, null);
+  }
+
+  /**
+   * Create a validator that also checks taxonomy identifiers against the given taxonomy index: that they exist, that
+   * the organism name of a record is the scientific name of its taxon, and that the taxon fits the package of the
+   * record (e.g., a human record is about Homo sapiens). Without an index, taxonomy identifiers need only be integers.
+   * Coordinates are checked against the bundled country bounding boxes of {@link CountryBoundaries#getDefault()}
+   */
+  public GenericValidator(@Nonnull TermValidator termValidator, @Nonnull Executor termLookupExecutor,
+                          @Nullable TaxonomyIndex taxonomyIndex) {
+    this(termValidator, termLookupExecutor, taxonomyIndex, CountryBoundaries.getDefault());
+  }
+
+  /**
+   * Create a validator that also checks taxonomy identifiers against the given taxonomy index, and that the
+   * coordinates of a record lie within the boundaries of the country of its geographic location, when both are given
+   * and there are boundaries for the country
+   */
+  public GenericValidator(@Nonnull TermValidator termValidator, @Nonnull Executor termLookupExecutor,
+                          @Nullable TaxonomyIndex taxonomyIndex, @Nullable CountryBoundaries countryBoundaries) {
     this.termValidator = checkNotNull(termValidator);
+    this.termLookupExecutor = checkNotNull(termLookupExecutor);
+    this.taxonomyIndex = taxonomyIndex;
+    this.countryBoundaries = countryBoundaries;
   }
 
+  @Override
+  @Nonnull
   public RecordValidationReport validateBioSampleRecord(@Nonnull Record biosample) {
-    List<AttributeGroupValidationReport> attributeGroupValidationReports = new ArrayList<>();
+    return validateBioSampleRecordAsync(biosample).join();
+  }
+
+  /**
+   * Validate the given record in two stages. The local rules run on the calling thread, while term lookups are
+   * submitted to the term lookup executor. The returned future completes once all term lookups of the record are done;
+   * records without filled-in term values yield an already completed future.
+   */
+  @Override
+  @Nonnull
+  public CompletableFuture<RecordValidationReport> validateBioSampleRecordAsync(@Nonnull Record biosample) {
     Map<String,Attribute> map = biosample.getAttributes();
     // validate record against known attribute types
+    Map<AttributeType,List<CompletableFuture<AttributeValidationReport>>> pendingReports = new LinkedHashMap<>();
+    List<CompletableFuture<AttributeValidationReport>> allReports = new ArrayList<>();
     for(AttributeType attrType : BioSampleAttributes.getAttributeTypes()) {
-      List<AttributeValidationReport> reports = new ArrayList<>();
+      List<CompletableFuture<AttributeValidationReport>> reports = new ArrayList<>();
       for (AttributeSchema schema : BioSampleAttributes.getAttributesOfType(attrType)) {
         String attrName = schema.getName();
-        Attribute attribute = map.get(attrName);
-        AttributeValidationReport report;
+        Attribute attribute = (attrName.equals(ORGANISM) ? getOrganismAttribute(biosample) : map.get(attrName));
         if(attribute != null) {
-          report = validateAttribute(attribute, schema);
+          reports.add(validateAttributeAsync(attribute, schema, biosample));
         } else {
-          report = Utils.getMissingAttributeReport(attrName);
+          reports.add(CompletableFuture.completedFuture(Utils.getMissingAttributeReport(attrName)));
         }
-        reports.add(report);
       }
-      attributeGroupValidationReports.add(new AttributeGroupValidationReport(attrType.name().toLowerCase(), reports));
+      pendingReports.put(attrType, reports);
+      allReports.addAll(reports);
     }
-    return new RecordValidationReport(biosample, attributeGroupValidationReports);
+    return CompletableFuture.allOf(allReports.toArray(new CompletableFuture<?>[allReports.size()])).thenApply(done -> {
+      List<AttributeGroupValidationReport> attributeGroupValidationReports = new ArrayList<>();
+      for(Map.Entry<AttributeType,List<CompletableFuture<AttributeValidationReport>>> entry : pendingReports.entrySet()) {
+        List<AttributeValidationReport> reports = new ArrayList<>();
+        for(CompletableFuture<AttributeValidationReport> report : entry.getValue()) {
+          reports.add(report.join());
+        }
+        attributeGroupValidationReports.add(new AttributeGroupValidationReport(entry.getKey().name().toLowerCase(), reports));
+      }
+      return new RecordValidationReport(biosample, attributeGroupValidationReports);
+    });
+  }
+
+  @Nonnull
+  public AttributeValidationReport validateAttribute(@Nonnull Attribute attribute, @Nonnull AttributeSchema schema) {
+    return validateAttributeAsync(attribute, schema).join();
+  }
+
+  /**
+   * Get the organism of the given record as an attribute whose value is the taxonomy identifier of the organism
+   */
+  @Nullable
+  private static Attribute getOrganismAttribute(@Nonnull Record biosample) {
+    String taxonomyId = biosample.getOrganismTaxonomyId();
+    return (taxonomyId.isEmpty() ? null : new AttributeImpl(ORGANISM, ORGANISM, ORGANISM, taxonomyId));
+  }
+
+  @Nonnull
+  public CompletableFuture<AttributeValidationReport> validateAttributeAsync(@Nonnull Attribute attribute,
+                                                                            @Nonnull AttributeSchema schema) {
+    return validateAttributeAsync(attribute, schema, null);
   }
 
-  public AttributeValidationReport validateAttribute(Attribute attribute, AttributeSchema schema) {
+  /**
+   * Validate the given attribute of the given record, which rules that check one attribute against others need
+   */
+  @Nonnull
+  private CompletableFuture<AttributeValidationReport> validateAttributeAsync(@Nonnull Attribute attribute,
+                                                                             @Nonnull AttributeSchema schema,
+                                                                             @Nullable Record biosample) {
     AttributeType type = schema.getType();
     AttributeValidationReport report;
     if(type.equals(AttributeType.BOOLEAN)) {
@@ -63,31 +172,39 @@ public final class GenericValidator implements Validator {
       report = validateValueSetAttribute(attribute, schema);
     }
     else if(type.equals(AttributeType.TERM)) {
-      report = validateTermAttribute(attribute, schema);
+      return validateTermAttribute(attribute, schema);
     }
     else if(type.equals(AttributeType.ONTOLOGY_TERM)) {
-      report = validateOntologyTermAttribute(attribute, true,
+      return validateOntologyTermAttribute(attribute, true,
           schema.getValues().toArray(new String[schema.getValues().size()]));
     }
     else if(type.equals(AttributeType.TIMESTAMP)) {
       report = validateTimestampAttribute(attribute);
     }
+    else if(type.equals(AttributeType.TAXONOMY_ID)) {
+      report = validateTaxonomyIdAttribute(attribute, biosample);
+    }
+    else if(type.equals(AttributeType.COORDINATES)) {
+      report = validateCoordinatesAttribute(attribute, biosample);
+    }
+    else if(type.equals(AttributeType.QUANTITY)) {
+      report = validateQuantityAttribute(attribute, schema);
+    }
     else {
       report = Utils.getMissingAttributeReport(attribute.getName());
       logger.error("Missing functionality to handle attributes of type: " + type);
     }
-    return report;
+    return CompletableFuture.completedFuture(report);
   }
 
   @Nonnull
-  private AttributeValidationReport validateTermAttribute(@Nonnull Attribute attribute, @Nonnull AttributeSchema schema) {
-    AttributeValidationReport report;
+  private CompletableFuture<AttributeValidationReport> validateTermAttribute(@Nonnull Attribute attribute,
+                                                                            @Nonnull AttributeSchema schema) {
     if(schema.getValues().contains("GEOLOC")) {
-      report = validateGeographicLocation(attribute);
+      return CompletableFuture.completedFuture(validateGeographicLocation(attribute));
     } else {
-      report = validateOntologyTermAttribute(attribute, true);
+      return validateOntologyTermAttribute(attribute, true);
     }
-    return report;
   }
 
   @Nonnull
@@ -110,23 +227,17 @@ public final class GenericValidator implements Validator {
   }
 
   @Nonnull
-  private AttributeValidationReport validateOntologyTermAttribute(@Nonnull Attribute attribute, boolean exactMatch,
-                                                                  @Nonnull String... ontologies) {
+  private CompletableFuture<AttributeValidationReport> validateOntologyTermAttribute(@Nonnull Attribute attribute,
+                                                                                    boolean exactMatch,
+                                                                                    @Nonnull String... ontologies) {
     String value = attribute.getValue();
     boolean isFilledIn = isFilledIn(value);
-    boolean isValidFormat = false;
-    String match = null;
     if(isFilledIn && !Utils.isInvalidEntry(value)) {
-      TermValidationReport report;
-      if (ontologies.length > 0) {
-        report = termValidator.validateTerm(normalize(value), exactMatch, ontologies);
-      } else {
-        report = termValidator.validateTerm(normalize(value), exactMatch);
-      }
-      isValidFormat = report.isResolvableOntologyClass();
-      match = report.getMatchValue();
+      return termValidator.validateTermAsync(normalize(value), exactMatch, termLookupExecutor, ontologies)
+          .thenApply(report -> new AttributeValidationReport(attribute, true, report.isResolvableOntologyClass(),
+              Optional.ofNullable(report.getMatchValue())));
     }
-    return new AttributeValidationReport(attribute, isFilledIn, isValidFormat, Optional.ofNullable(match));
+    return CompletableFuture.completedFuture(new AttributeValidationReport(attribute, isFilledIn, false, Optional.empty()));
   }
 
   @Nonnull
@@ -164,6 +275,94 @@ public final class GenericValidator implements Validator {
     return new AttributeValidationReport(attribute, isFilledIn, isValidFormat, Optional.empty());
   }
 
+  /**
+   * Check that the value is a taxonomy identifier. With a taxonomy index, the identifier must exist, and the organism
+   * of a record must also have the scientific name of the taxon as its taxonomy name, and lie under the taxa that the
+   * package of the record calls for. The match value is the scientific name of the taxon
+   */
+  @Nonnull
+  private AttributeValidationReport validateTaxonomyIdAttribute(@Nonnull Attribute attribute,
+                                                                @Nullable Record biosample) {
+    String value = attribute.getValue().trim();
+    boolean isFilledIn = isFilledIn(value);
+    int taxid;
+    try {
+      taxid = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return new AttributeValidationReport(attribute, isFilledIn, false, Optional.empty());
+    }
+    if(taxonomyIndex == null) {
+      return new AttributeValidationReport(attribute, isFilledIn, true, Optional.empty());
+    }
+    boolean isValidFormat = taxonomyIndex.contains(taxid);
+    if(isValidFormat && biosample != null && attribute.getName().equals(ORGANISM)) {
+      String taxonomyName = biosample.getOrganismTaxonomyName().trim();
+      isValidFormat = (taxonomyName.isEmpty() || taxonomyIndex.hasScientificName(taxid, taxonomyName)) &&
+          isInPackageLineage(taxid, biosample.getPackageName());
+    }
+    return new AttributeValidationReport(attribute, isFilledIn, isValidFormat,
+        Optional.ofNullable(taxonomyIndex.getScientificName(taxid)));
+  }
+
+  /**
+   * Check whether the given taxon lies under one of the taxa that the given package calls for, if any
+   */
+  private boolean isInPackageLineage(int taxid, @Nonnull String packageName) {
+    checkNotNull(taxonomyIndex);
+    for(Map.Entry<String,int[]> entry : PACKAGE_LINEAGES.entrySet()) {
+      if(packageName.startsWith(entry.getKey())) {
+        for(int ancestor : entry.getValue()) {
+          if(taxonomyIndex.isDescendantOf(taxid, ancestor)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check that the value is in the "d[d.dddd] N|S d[dd.dddd] W|E" format. With country boundaries, the coordinates
+   * must also lie in the country of the geographic location of the record, if there are boundaries for it. The match
+   * value is the coordinates in signed decimal degrees
+   */
+  @Nonnull
+  private AttributeValidationReport validateCoordinatesAttribute(@Nonnull Attribute attribute,
+                                                                 @Nullable Record biosample) {
+    String value = attribute.getValue().trim();
+    boolean isFilledIn = isFilledIn(value);
+    Optional<Coordinates> coordinates = Coordinates.parse(value);
+    if(!coordinates.isPresent()) {
+      return new AttributeValidationReport(attribute, isFilledIn, false, Optional.empty());
+    }
+    boolean isValidFormat = true;
+    Attribute location = (biosample != null ? biosample.getAttributes().get(GEOGRAPHIC_LOCATION) : null);
+    if(countryBoundaries != null && location != null) {
+      String country = getCountry(location.getValue());
+      if(countryBoundaries.hasCountry(country)) {
+        isValidFormat = countryBoundaries.contains(country, coordinates.get());
+      }
+    }
+    return new AttributeValidationReport(attribute, isFilledIn, isValidFormat,
+        Optional.of(coordinates.get().toDecimalString()));
+  }
+
+  /**
+   * Check that the value is a number followed by a unit of the dimension given by the schema (e.g., "25 C" for a
+   * temperature). The match value is the quantity normalized to the SI unit of its dimension, e.g., "298.15 K"
+   */
+  @Nonnull
+  private AttributeValidationReport validateQuantityAttribute(@Nonnull Attribute attribute,
+                                                              @Nonnull AttributeSchema schema) {
+    String value = attribute.getValue().trim();
+    boolean isFilledIn = isFilledIn(value);
+    Optional<Quantity> quantity = (schema.getValues().isEmpty() ? Quantity.parse(value) :
+        Quantity.Dimension.forName(schema.getValues().get(0)).flatMap(dimension -> Quantity.parse(value, dimension)));
+    return new AttributeValidationReport(attribute, isFilledIn, quantity.isPresent(),
+        quantity.map(Quantity::toSiString));
+  }
+
   /**
    * Check whether all the provided attributes are filled in properly
    */
@@ -209,33 +408,26 @@ public final class GenericValidator implements Validator {
    * eg "Canada: Vancouver" or "Germany: halfway down Zugspitze, Alps"
    */
   private boolean isValidGeographicLocation(String location) {
+    return Utils.getValidLocations().contains(getCountry(location));
+  }
+
+  /**
+   * Get the country or ocean of the given geographic location, which precedes the more detailed information, if any
+   */
+  @Nonnull
+  private static String getCountry(@Nonnull String location) {
     if(location.contains(Utils.LOCATION_SEPARATOR)) {
-      String mainEntry = location.substring(0, location.indexOf(Utils.LOCATION_SEPARATOR));
-      return Utils.getValidLocations().contains(mainEntry);
+      return location.substring(0, location.indexOf(Utils.LOCATION_SEPARATOR));
     } else {
-      return Utils.getValidLocations().contains(location);
+      return location;
     }
   }
 
-  private final Pattern datePattern = Pattern.compile("(^\\d{2}-(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec)-\\d{4})|(" +
-      "(Jan|Feb|Mar|Apr|May|Jun|Jul|Aug|Sep|Oct|Nov|Dec)-\\d{4})|(\\d{4})$");
-
-  private final Pattern isoPattern = Pattern.compile("(^(\\d{4})\\D?(0[1-9]|1[0-2])\\D?([12]\\d|0[1-9]|3[01])(\\D?" +
-      "([01]\\d|2[0-3])\\D?([0-5]\\d)\\D?([0-5]\\d)?\\D?(\\d{3})?)?)|(\\d{4}-\\d{2}-\\d{2})|(\\d{4}-\\d{2})$");
-
   /**
    * Check that date of sampling is in "DD-Mmm-YYYY", "Mmm-YYYY" or "YYYY" format (eg., 30-Oct-1990, Oct-1990 or 1990) or
    * ISO 8601 standard "YYYY-mm-dd", "YYYY-mm" or "YYYY-mm-ddThh:mm:ss" (eg., 1990-10-30, 1990-10 or 1990-10-30T14:41:36)
    */
   public boolean isValidDateFormat(String date) {
-    return datePattern.matcher(date).matches() || isoPattern.matcher(date).matches();
-  }
-
-  /**
-   * Check that latitude and longitude are specified as degrees in format "d[d.dddd] N|S d[dd.dddd] W|E", eg, 38.98 N 77.11 W
-   */
-  private boolean isValidCoordinateFormat(String coordinates) {
-    Pattern coordinatePattern = Pattern.compile("(\\d{0,3}(\\.\\d+)?)[ ]?(N|S) (\\d{0,3}(\\.\\d+)?)[ ]?(E|W)$");
-    return coordinatePattern.matcher(coordinates).matches();
+    return DateFormatFamily.classify(date).isValid();
   }
 }
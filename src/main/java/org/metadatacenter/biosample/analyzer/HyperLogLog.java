@@ -0,0 +1,99 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct values added to it in a fixed amount of memory: 2^p
+ * registers of one byte each, for a precision p. The relative standard error of the estimate is about 1.04 / sqrt(2^p),
+ * e.g., 1.6% for p = 12. Values are added as 64-bit hashes, and sketches with the same precision can be merged.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class HyperLogLog {
+  private final int precision;
+  @Nonnull private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    checkArgument(precision >= 4 && precision <= 18, "Precision must be between 4 and 18");
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /**
+   * Add a value given by its 64-bit hash
+   */
+  public void add(long hash) {
+    int register = (int) (hash >>> (64 - precision));
+    // the guard bit bounds the rank when all remaining bits are zero
+    long remainder = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(remainder) + 1);
+    if(rank > registers[register]) {
+      registers[register] = rank;
+    }
+  }
+
+  /**
+   * Add the values of the given sketch to this one
+   */
+  public void merge(@Nonnull HyperLogLog other) {
+    checkArgument(checkNotNull(other).precision == precision, "Cannot merge sketches of different precision");
+    for(int i = 0; i < registers.length; i++) {
+      if(other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /**
+   * Get the estimated number of distinct values
+   */
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for(byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if(register == 0) {
+        zeros++;
+      }
+    }
+    double estimate = getAlpha(m) * m * m / sum;
+    if(estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate for small cardinalities
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  private static double getAlpha(int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("precision", precision)
+        .add("estimate", estimate())
+        .toString();
+  }
+}
@@ -0,0 +1,393 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes the same CSV files as {@link CsvWriter}, along with an index that has, for every record written, its
+ * accession, its last update timestamp, the number of characters of its rows in each CSV file, and a digest of its
+ * validation results. The next run over a newer dump uses the index to copy the results of the records that have not
+ * been updated since from this run's output, with {@link #copyUnchanged(File, Map, QualityStatistics)}, so that only
+ * new and updated records need to be validated again. The output of a run without an index, such as a plain CSV run,
+ * can be used as well, in which case the rows of each record are found by its identifier instead.
+ *
+ * The output is a complete result set: copied and newly validated rows end up in the same files, and attribute rows
+ * are numbered consecutively across both.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class IncrementalCsvWriter implements ReportWriter {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(IncrementalCsvWriter.class.getName());
+  @Nonnull public static final String INDEX_FILE = "biosample-results.idx";
+  private static final int MAGIC = 0x42535249, VERSION = 1;
+  private static final char QUOTE = '"', NEW_LINE = '\n';
+  // positions of the cells read back from the rows written by CsvWriter
+  private static final int RECORD_ID = 0, RECORD_ACCESSION = 1, RECORD_LAST_UPDATE = 3, RECORD_SUBMISSION_DATE = 4,
+      RECORD_ORGANISM_NAME = 8, RECORD_PACKAGE_NAME = 12, RECORD_IS_VALID = 15;
+  private static final int ATTRIBUTE_ID = 0, ATTRIBUTE_RECORD_ID = 1, ATTRIBUTE_NAME = 3, ATTRIBUTE_IS_VALID = 7,
+      ATTRIBUTE_IS_FILLED_IN = 8, ATTRIBUTE_IS_VALID_FORMAT = 9;
+  @Nonnull private final File outputFolder;
+  @Nonnull private final OutputCompression compression;
+  @Nonnull private final BufferedCsvWriter recordWriter, attributeWriter;
+  @Nonnull private final DataOutputStream index;
+  // the rows of each record are first collected in memory, to compute their digest
+  @Nonnull private final CharArrayWriter recordRows = new CharArrayWriter(), attributeRows = new CharArrayWriter();
+  @Nonnull private final BufferedCsvWriter recordRowWriter, attributeRowWriter;
+  @Nonnull private final CsvWriter rowRenderer;
+  @Nonnull private char[] buffer = new char[1 << 12];
+  private long attributeCounter = 1;
+
+  /**
+   * @param outputFolder Folder to write the CSV files and the index to. Existing CSV files in this folder are replaced
+   * @param compression  Compression of the CSV files
+   */
+  public IncrementalCsvWriter(@Nonnull File outputFolder, @Nonnull OutputCompression compression) throws IOException {
+    this.outputFolder = checkNotNull(outputFolder);
+    this.compression = checkNotNull(compression);
+    recordWriter = new BufferedCsvWriter(compression.open(CsvWriter.getRecordsFile(outputFolder, "", compression),
+        false), true);
+    attributeWriter = new BufferedCsvWriter(compression.open(CsvWriter.getAttributesFile(outputFolder, "",
+        compression), false), true);
+    index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputFolder, INDEX_FILE))));
+    index.writeInt(MAGIC);
+    index.writeInt(VERSION);
+    recordRowWriter = new BufferedCsvWriter(recordRows, 1 << 12, false);
+    attributeRowWriter = new BufferedCsvWriter(attributeRows, 1 << 12, false);
+    rowRenderer = new CsvWriter(recordRowWriter, attributeRowWriter);
+  }
+
+  @Override
+  public void writeRecord(@Nonnull Record record, boolean isValid,
+                          @Nonnull List<AttributeGroupValidationReport> validationReports) {
+    checkNotNull(record);
+    try {
+      rowRenderer.writeRecord(record, isValid, validationReports);
+      recordRowWriter.flush();
+      attributeRowWriter.flush();
+      char[] recordText = recordRows.toCharArray(), attributeText = attributeRows.toCharArray();
+      recordRows.reset();
+      attributeRows.reset();
+      writeRows(record.getAccession(), record.getLastUpdate(), parseRows(recordText, recordText.length),
+          parseRows(attributeText, attributeText.length));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Write the rows of a record to the CSV files, renumbering its attribute rows, and add the record to the index
+   */
+  private void writeRows(@Nonnull String accession, @Nonnull String lastUpdate, @Nonnull List<String[]> records,
+                         @Nonnull List<String[]> attributes) throws IOException {
+    long recordChars = recordWriter.getCharsWritten(), attributeChars = attributeWriter.getCharsWritten();
+    for(String[] row : records) {
+      for(String cell : row) {
+        recordWriter.writeQuoted(cell).writeSeparator();
+      }
+      recordWriter.writeNewLine();
+    }
+    for(String[] row : attributes) {
+      attributeWriter.writeQuoted(attributeCounter++).writeSeparator();
+      for(int i = ATTRIBUTE_ID + 1; i < row.length; i++) {
+        attributeWriter.writeQuoted(row[i]).writeSeparator();
+      }
+      attributeWriter.writeNewLine();
+    }
+    index.writeUTF(accession);
+    index.writeUTF(lastUpdate);
+    index.writeLong(recordWriter.getCharsWritten() - recordChars);
+    index.writeLong(attributeWriter.getCharsWritten() - attributeChars);
+    index.writeLong(digest(records, attributes));
+  }
+
+  /**
+   * Split rows written by {@link CsvWriter} into their cells. Every cell is quoted and followed by a separator, and
+   * quotes within cells were replaced when writing, so a cell ends at the next quote
+   */
+  @Nonnull
+  private static List<String[]> parseRows(@Nonnull char[] text, int length) throws IOException {
+    List<String[]> rows = new ArrayList<>(1);
+    List<String> cells = new ArrayList<>();
+    int i = 0;
+    while(i < length) {
+      if(text[i] == NEW_LINE) {
+        rows.add(cells.toArray(new String[cells.size()]));
+        cells.clear();
+        i++;
+        continue;
+      }
+      int end = i + 1;
+      while(end < length && text[end] != QUOTE) {
+        end++;
+      }
+      if(text[i] != QUOTE || end + 1 >= length) {
+        throw new IOException("Malformed row in previous output");
+      }
+      cells.add(new String(text, i + 1, end - i - 1));
+      i = end + 2;
+    }
+    if(!cells.isEmpty()) {
+      throw new IOException("Incomplete row in previous output");
+    }
+    return rows;
+  }
+
+  /**
+   * Get a digest of the validation results in the given rows, leaving out the attribute row identifiers
+   */
+  private static long digest(@Nonnull List<String[]> records, @Nonnull List<String[]> attributes) {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for(String[] row : records) {
+      for(String cell : row) {
+        hasher.putInt(cell.length()).putUnencodedChars(cell);
+      }
+    }
+    for(String[] row : attributes) {
+      for(int i = ATTRIBUTE_ID + 1; i < row.length; i++) {
+        hasher.putInt(row[i].length()).putUnencodedChars(row[i]);
+      }
+      hasher.putInt(-1);
+    }
+    return hasher.hash().asLong();
+  }
+
+  /**
+   * Copy the results of the records that have not been updated since a previous run from that run's output, in the
+   * order in which they appear there. A record is copied when the previous run has a record with the same accession
+   * and last update timestamp, and the copied rows match the digest in the previous index. When the previous run has
+   * no index, its CSV files are read row by row instead, see {@link #copyUnchangedWithoutIndex}
+   *
+   * @param previousFolder Output folder of a previous CSV run. It may not be this writer's output folder
+   * @param records        Records in the current input, by accession
+   * @param statistics     Statistics that the copied records are added to
+   * @return Accessions of the copied records, which need not be validated again
+   */
+  @Nonnull
+  public Set<String> copyUnchanged(@Nonnull File previousFolder, @Nonnull Map<String,Record> records,
+                                   @Nonnull QualityStatistics statistics) throws IOException {
+    checkNotNull(previousFolder); checkNotNull(records); checkNotNull(statistics);
+    checkArgument(!previousFolder.getCanonicalFile().equals(outputFolder.getCanonicalFile()),
+        "The previous output folder must differ from the output folder");
+    Set<String> copied = new HashSet<>();
+    File indexFile = new File(previousFolder, INDEX_FILE);
+    Optional<OutputCompression> previousCompression = getCompression(previousFolder);
+    if(!previousCompression.isPresent()) {
+      logger.warn("No previous results found in " + previousFolder + ", validating all records");
+      return copied;
+    }
+    if(!indexFile.exists()) {
+      return copyUnchangedWithoutIndex(previousFolder, previousCompression.get(), records, statistics);
+    }
+    logger.info("Copying results of unchanged records from " + previousFolder + "...");
+    int previousRecords = 0;
+    try (DataInputStream previousIndex = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+         Reader previousRecordRows = openReader(CsvWriter.getRecordsFile(previousFolder, "", previousCompression.get()),
+             previousCompression.get());
+         Reader previousAttributeRows = openReader(CsvWriter.getAttributesFile(previousFolder, "",
+             previousCompression.get()), previousCompression.get())) {
+      if(previousIndex.readInt() != MAGIC || previousIndex.readInt() != VERSION) {
+        throw new IOException("Not a results index: " + indexFile);
+      }
+      while(true) {
+        String accession, lastUpdate;
+        long recordChars, attributeChars, digest;
+        try {
+          accession = previousIndex.readUTF();
+        } catch (EOFException e) {
+          break;
+        }
+        lastUpdate = previousIndex.readUTF();
+        recordChars = previousIndex.readLong();
+        attributeChars = previousIndex.readLong();
+        digest = previousIndex.readLong();
+        previousRecords++;
+        List<String[]> recordRows = parseRows(read(previousRecordRows, recordChars), (int) recordChars);
+        List<String[]> attributeRows = parseRows(read(previousAttributeRows, attributeChars), (int) attributeChars);
+        Record record = records.get(accession);
+        if(record == null || !record.getLastUpdate().equals(lastUpdate) || copied.contains(accession)) {
+          continue;  // the record was removed or updated
+        }
+        if(digest(recordRows, attributeRows) != digest) {
+          logger.warn("Previous results of " + accession + " do not match their digest, validating it again");
+          continue;
+        }
+        writeRows(accession, lastUpdate, recordRows, attributeRows);
+        addStatistics(recordRows, attributeRows, statistics);
+        copied.add(accession);
+      }
+    }
+    logger.info("done. Copied " + copied.size() + " of " + previousRecords + " previous records");
+    return copied;
+  }
+
+  /**
+   * Copy the results of the records that have not been updated since a previous run whose output has no index. The
+   * rows of the previous CSV files are read in order, and the rows of a record are its record row and the attribute
+   * rows that follow, up to the first of another record, as {@link CsvWriter} writes them. There are no digests to
+   * check the rows against, and records without attribute rows, or whose rows are cut off, are validated again
+   */
+  @Nonnull
+  private Set<String> copyUnchangedWithoutIndex(@Nonnull File previousFolder, @Nonnull OutputCompression compression,
+                                                @Nonnull Map<String,Record> records,
+                                                @Nonnull QualityStatistics statistics) throws IOException {
+    logger.info("No results index in " + previousFolder + ", copying results of unchanged records from its CSV " +
+        "files...");
+    Set<String> copied = new HashSet<>();
+    int previousRecords = 0;
+    try (Reader previousRecordRows = openReader(CsvWriter.getRecordsFile(previousFolder, "", compression), compression);
+         Reader previousAttributeRows = openReader(CsvWriter.getAttributesFile(previousFolder, "", compression),
+             compression)) {
+      String[] attributeRow = readRow(previousAttributeRows), recordRow;
+      while((recordRow = readRow(previousRecordRows)) != null) {
+        if(recordRow.length <= RECORD_IS_VALID) {
+          throw new IOException("Malformed row in previous output");
+        }
+        List<String[]> attributeRows = new ArrayList<>();
+        while(attributeRow != null && attributeRow.length > ATTRIBUTE_IS_VALID_FORMAT &&
+            attributeRow[ATTRIBUTE_RECORD_ID].equals(recordRow[RECORD_ID])) {
+          attributeRows.add(attributeRow);
+          attributeRow = readRow(previousAttributeRows);
+        }
+        previousRecords++;
+        String accession = recordRow[RECORD_ACCESSION], lastUpdate = recordRow[RECORD_LAST_UPDATE];
+        Record record = records.get(accession);
+        if(record == null || !record.getLastUpdate().equals(lastUpdate) || copied.contains(accession) ||
+            attributeRows.isEmpty()) {
+          continue;
+        }
+        List<String[]> recordRows = Collections.singletonList(recordRow);
+        writeRows(accession, lastUpdate, recordRows, attributeRows);
+        addStatistics(recordRows, attributeRows, statistics);
+        copied.add(accession);
+      }
+    } catch (EOFException e) {
+      logger.warn("Previous output ends with an incomplete row, validating the records after it again");
+    }
+    logger.info("done. Copied " + copied.size() + " of " + previousRecords + " previous records");
+    return copied;
+  }
+
+  /**
+   * Read the next row written by {@link CsvWriter}, or null at the end of the input. Every cell is quoted and followed
+   * by a separator, and quotes within cells were replaced when writing, so a cell ends at the next quote, even when it
+   * holds a line break
+   */
+  @Nullable
+  private static String[] readRow(@Nonnull Reader reader) throws IOException {
+    List<String> cells = new ArrayList<>();
+    StringBuilder cell = new StringBuilder();
+    int c;
+    while((c = reader.read()) != -1) {
+      if(c == NEW_LINE) {
+        return cells.toArray(new String[cells.size()]);
+      }
+      if(c != QUOTE) {
+        throw new IOException("Malformed row in previous output");
+      }
+      cell.setLength(0);
+      while((c = reader.read()) != QUOTE) {
+        if(c == -1) {
+          throw new EOFException("Incomplete row in previous output");
+        }
+        cell.append((char) c);
+      }
+      c = reader.read();
+      if(c == -1) {
+        throw new EOFException("Incomplete row in previous output");
+      }
+      if(c != ',') {
+        throw new IOException("Malformed row in previous output");
+      }
+      cells.add(cell.toString());
+    }
+    if(!cells.isEmpty()) {
+      throw new EOFException("Incomplete row in previous output");
+    }
+    return null;
+  }
+
+  private static void addStatistics(@Nonnull List<String[]> records, @Nonnull List<String[]> attributes,
+                                    @Nonnull QualityStatistics statistics) {
+    for(String[] row : records) {
+      QualityStatistics.RecordCounts recordCounts = statistics.addRecord(row[RECORD_PACKAGE_NAME],
+          row[RECORD_ORGANISM_NAME], row[RECORD_SUBMISSION_DATE], Boolean.parseBoolean(row[RECORD_IS_VALID]));
+      for(String[] attribute : attributes) {
+        recordCounts.addAttribute(attribute[ATTRIBUTE_NAME], Boolean.parseBoolean(attribute[ATTRIBUTE_IS_FILLED_IN]),
+            Boolean.parseBoolean(attribute[ATTRIBUTE_IS_VALID_FORMAT]),
+            Boolean.parseBoolean(attribute[ATTRIBUTE_IS_VALID]));
+      }
+    }
+  }
+
+  /**
+   * Get the compression of the CSV files in the given folder, if there are any
+   */
+  @Nonnull
+  private static Optional<OutputCompression> getCompression(@Nonnull File folder) {
+    for(OutputCompression compression : OutputCompression.values()) {
+      if(CsvWriter.getRecordsFile(folder, "", compression).exists()) {
+        return Optional.of(compression);
+      }
+    }
+    return Optional.empty();
+  }
+
+  @Nonnull
+  private static Reader openReader(@Nonnull File file, @Nonnull OutputCompression compression) throws IOException {
+    return new BufferedReader(new InputStreamReader(compression.openForReading(file), StandardCharsets.UTF_8),
+        BufferedCsvWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Read the given number of characters into the start of the (reused) character buffer
+   */
+  @Nonnull
+  private char[] read(@Nonnull Reader reader, long nrChars) throws IOException {
+    if(nrChars > buffer.length) {
+      checkArgument(nrChars <= Integer.MAX_VALUE - 8, "Rows of a single record are too large");
+      buffer = new char[(int) Math.max(nrChars, 2L * buffer.length)];
+    }
+    int offset = 0;
+    while(offset < nrChars) {
+      int n = reader.read(buffer, offset, (int) nrChars - offset);
+      if(n < 0) {
+        throw new EOFException("Previous output is shorter than its index");
+      }
+      offset += n;
+    }
+    return buffer;
+  }
+
+  @Override
+  public void closeWriters() {
+    try {
+      recordWriter.close();
+      attributeWriter.close();
+      index.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("outputFolder", outputFolder)
+        .add("compression", compression)
+        .toString();
+  }
+}
@@ -0,0 +1,89 @@
+package org.metadatacenter.biosample.analyzer;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Generates the candidate pairs of locality-sensitive hashing: the pairs of elements that share the hash of at least
+ * one band, as computed by {@link MinHasher}. Bands are processed one at a time. The elements are sorted by their band
+ * hash (packed with the element number in a long, so no objects are created), and each run of elements with the same
+ * hash is a bucket, whose pairs are visited in parallel with the other buckets. Buckets larger than the given size,
+ * which hold very common features, only pair each element with the next elements up to that size, so the number of
+ * pairs stays linear in the number of elements.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+final class LshCandidatePairs {
+
+  /**
+   * A consumer of candidate pairs. It is called by several threads at once
+   */
+  @FunctionalInterface
+  interface PairVisitor {
+    void visit(int first, int second);
+  }
+
+  private LshCandidatePairs() {
+    // no instances
+  }
+
+  /**
+   * Visit the candidate pairs of the given elements. The same pair may be visited more than once, once per band that
+   * it shares
+   *
+   * @param bandHashes    Band hashes of the elements, with the hashes of element i at i * bands ... i * bands + bands - 1
+   * @param size          Number of elements
+   * @param bands         Number of bands
+   * @param maxBucketSize Size of the buckets whose pairs are all visited
+   * @param visitor       Visitor of the pairs, whose first element is smaller than the second
+   */
+  static void visit(@Nonnull int[] bandHashes, int size, int bands, int maxBucketSize, @Nonnull PairVisitor visitor) {
+    checkNotNull(bandHashes); checkNotNull(visitor);
+    checkArgument(bandHashes.length >= size * bands, "Missing band hashes");
+    checkArgument(maxBucketSize > 1, "Buckets must hold at least two elements");
+    long[] keys = new long[size];
+    int[] bucketStarts = new int[size + 1];
+    for(int band = 0; band < bands; band++) {
+      for(int i = 0; i < size; i++) {
+        keys[i] = ((long) bandHashes[i * bands + band] << 32) | i;
+      }
+      Arrays.parallelSort(keys);
+      int nrBuckets = 0;
+      for(int i = 0; i < size; ) {
+        int end = i + 1;
+        while(end < size && (keys[end] >>> 32) == (keys[i] >>> 32)) {
+          end++;
+        }
+        if(end - i > 1) {
+          bucketStarts[nrBuckets++] = i;
+        }
+        i = end;
+      }
+      IntStream.range(0, nrBuckets).parallel().forEach(bucket -> {
+        int start = bucketStarts[bucket], end = start + 1;
+        while(end < size && (keys[end] >>> 32) == (keys[start] >>> 32)) {
+          end++;
+        }
+        visitBucket(keys, start, end, maxBucketSize, visitor);
+      });
+    }
+  }
+
+  private static void visitBucket(@Nonnull long[] keys, int start, int end, int maxBucketSize,
+                                  @Nonnull PairVisitor visitor) {
+    // elements within a bucket are in increasing order, as the element number is the low half of the key
+    for(int i = start; i < end; i++) {
+      int first = (int) keys[i];
+      int last = Math.min(end, i + maxBucketSize);
+      for(int j = i + 1; j < last; j++) {
+        visitor.visit(first, (int) keys[j]);
+      }
+    }
+  }
+}
@@ -1,11 +1,20 @@
 package org.metadatacenter.biosample.analyzer;
 
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author Rafael Gonçalves <br>
@@ -14,6 +23,7 @@ import java.util.List;
  */
 public class Main {
   private static final Logger logger = LoggerFactory.getLogger(Main.class.getName());
+  private static final int TERM_LOOKUP_THREADS = 32;
 
   private static File getFile(String filePath) throws IOException {
     if(filePath.trim().isEmpty()) {
@@ -26,21 +36,191 @@ public class Main {
     }
   }
 
-  public static void main(String[] args) throws IOException {
-    String inputFilePath = args[0];
-    String outputFolderPath = args[1];
-    String bioPortalApiKey = args[2];
+  private static ReportWriter getReportWriter(String outputFormat, File outputFolder) throws SQLException {
+    if(outputFormat.equalsIgnoreCase("arrow")) {
+      return new ArrowReportWriter(outputFolder);
+    } else if(outputFormat.equalsIgnoreCase("sqlite")) {
+      return new SqliteReportWriter(new File(outputFolder, "biosample.sqlite"));
+    } else {
+      throw new IllegalArgumentException("Unknown output format: " + outputFormat +
+          " (expected 'csv', 'csv.gz', 'csv.zst', 'csv-sharded', 'arrow' or 'sqlite')");
+    }
+  }
+
+  /**
+   * Get the compression of the given CSV output format, if it is one
+   */
+  private static Optional<OutputCompression> getCsvCompression(String outputFormat) {
+    if(outputFormat.equalsIgnoreCase("csv")) {
+      return Optional.of(OutputCompression.NONE);
+    } else if(outputFormat.equalsIgnoreCase("csv.gz")) {
+      return Optional.of(OutputCompression.GZIP);
+    } else if(outputFormat.equalsIgnoreCase("csv.zst")) {
+      return Optional.of(OutputCompression.ZSTD);
+    } else {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Get the record filter given by --filter arguments, which are removed from the argument list. Each argument is of
+   * the form key=value, where the key is one of 'package', 'taxonomy_id' or 'owner' (which can be repeated), or
+   * 'accession', 'publication_date', 'last_update' or 'submission_date', whose value is a range 'from..to' where
+   * either end can be left empty
+   */
+  private static Optional<RecordFilter> getRecordFilter(List<String> arguments) {
+    RecordFilterBuilder builder = new RecordFilterBuilder();
+    boolean filtered = false;
+    int index;
+    while((index = arguments.indexOf("--filter")) >= 0) {
+      String condition = arguments.get(index + 1);
+      arguments.subList(index, index + 2).clear();
+      int separator = condition.indexOf('=');
+      if(separator < 0) {
+        throw new IllegalArgumentException("Filter must be of the form key=value: " + condition);
+      }
+      String key = condition.substring(0, separator), value = condition.substring(separator + 1);
+      String from = null, to = null;
+      int rangeSeparator = value.indexOf("..");
+      if(rangeSeparator >= 0) {
+        from = Strings.emptyToNull(value.substring(0, rangeSeparator));
+        to = Strings.emptyToNull(value.substring(rangeSeparator + 2));
+      }
+      switch (key) {
+        case "package":
+          builder.addPackageName(value);
+          break;
+        case "taxonomy_id":
+          builder.addTaxonomyId(value);
+          break;
+        case "owner":
+          builder.addOwnerName(value);
+          break;
+        case "accession":
+          builder.setAccessionRange(from, to);
+          break;
+        case "publication_date":
+          builder.setDateWindow(RecordFilter.DateField.PUBLICATION_DATE, from, to);
+          break;
+        case "last_update":
+          builder.setDateWindow(RecordFilter.DateField.LAST_UPDATE, from, to);
+          break;
+        case "submission_date":
+          builder.setDateWindow(RecordFilter.DateField.SUBMISSION_DATE, from, to);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown filter: " + key);
+      }
+      filtered = true;
+    }
+    return filtered ? Optional.of(builder.build()) : Optional.empty();
+  }
+
+  /**
+   * Get the records in the given input file, which is either a BioSample XML file or a record snapshot written by
+   * {@link RecordSnapshotWriter}, whose name ends with .snapshot. When filtering, XML files are streamed instead of
+   * being parsed into a document
+   */
+  private static Optional<List<Record>> getRecords(BioSampleAnalyzer analyzer, File inputFile,
+                                                   Optional<RecordFilter> filter) throws IOException {
+    if(inputFile.getName().endsWith(".snapshot")) {
+      logger.info("Reading records from snapshot...");
+      try (RecordSnapshotReader reader = new RecordSnapshotReader(inputFile)) {
+        List<Record> records = reader.getRecords();
+        if(filter.isPresent()) {
+          records.removeIf(record -> !filter.get().accepts(record));
+        }
+        logger.info("done. Total records read: " + records.size());
+        return Optional.of(records);
+      }
+    }
+    if(filter.isPresent()) {
+      return Optional.of(analyzer.getBioSampleRecords(inputFile, filter.get()));
+    }
+    Optional<Document> doc = analyzer.parseDocument(inputFile);
+    return doc.map(analyzer::getBioSampleRecords);
+  }
+
+  public static void main(String[] args) throws IOException, SQLException {
+    List<String> arguments = new ArrayList<>(Arrays.asList(args));
+    boolean resume = arguments.remove("--resume");
+    boolean deduplicate = arguments.remove("--deduplicate");
+    Optional<File> previousFolder = Optional.empty();
+    int previousIndex = arguments.indexOf("--previous");
+    if(previousIndex >= 0) {
+      previousFolder = Optional.of(new File(arguments.get(previousIndex + 1)));
+      arguments.subList(previousIndex, previousIndex + 2).clear();
+    }
+    // a taxonomy index built by TaxonomyIndex enables the checks of taxonomy identifiers against the NCBI taxonomy
+    TaxonomyIndex taxonomyIndex = null;
+    int taxonomyArgumentIndex = arguments.indexOf("--taxonomy");
+    if(taxonomyArgumentIndex >= 0) {
+      taxonomyIndex = TaxonomyIndex.load(new File(arguments.get(taxonomyArgumentIndex + 1)));
+      arguments.subList(taxonomyArgumentIndex, taxonomyArgumentIndex + 2).clear();
+      logger.info("Taxonomy index: " + taxonomyIndex);
+    }
+    // the coordinates of a record are checked to lie in its country, by default against the bundled bounding boxes
+    CountryBoundaries countryBoundaries = CountryBoundaries.getDefault();
+    int boundariesArgumentIndex = arguments.indexOf("--boundaries");
+    if(boundariesArgumentIndex >= 0) {
+      countryBoundaries = CountryBoundaries.load(new File(arguments.get(boundariesArgumentIndex + 1)));
+      arguments.subList(boundariesArgumentIndex, boundariesArgumentIndex + 2).clear();
+    }
+    Optional<RecordFilter> filter = getRecordFilter(arguments);
+    String inputFilePath = arguments.get(0);
+    String outputFolderPath = arguments.get(1);
+    String bioPortalApiKey = arguments.get(2);
+    String outputFormat = (arguments.size() > 3 ? arguments.get(3) : "csv");
     logger.info("Input file: " + inputFilePath);
     logger.info("Output folder: " + outputFolderPath);
+    logger.info("Output format: " + outputFormat);
 
     File inputFile = getFile(inputFilePath);
     File outputFolder = getFile(outputFolderPath);
 
-    Validator validator = new GenericValidator(new TermValidator(new BioPortalAgent(bioPortalApiKey)));
+    // term lookups wait on BioPortal, so they get their own pool, separate from the CPU-sized validation pool
+    ExecutorService termLookupExecutor = Executors.newFixedThreadPool(TERM_LOOKUP_THREADS,
+        new ThreadFactoryBuilder().setNameFormat("term-lookup-%d").setDaemon(true).build());
+    TermCache termCache = new TermCache();
+    Validator validator = new GenericValidator(new TermValidator(new BioPortalAgent(bioPortalApiKey), termCache),
+        termLookupExecutor, taxonomyIndex, countryBoundaries);
     BioSampleAnalyzer analyzer = new BioSampleAnalyzer(validator);
-    analyzer.parseDocument(inputFile).ifPresent(doc -> {
-      List<Record> records = analyzer.getBioSampleRecords(doc);
-      analyzer.validate(records, outputFolder);
-    });
+    Optional<List<Record>> parsedRecords = getRecords(analyzer, inputFile, filter);
+    if(parsedRecords.isPresent()) {
+      List<Record> records = parsedRecords.get();
+      if(deduplicate) {
+        // the duplicates of the representatives of clusters of near-duplicates are not validated
+        List<NearDuplicateDetector.Cluster> clusters = new NearDuplicateDetector().detect(records);
+        NearDuplicateDetector.writeCsv(clusters, new File(outputFolder, "biosample-near-duplicates.csv"));
+        records = NearDuplicateDetector.getRepresentatives(records, clusters);
+        logger.info("Validating " + records.size() + " records after removing near-duplicates");
+      }
+      QualityStatistics statistics = new QualityStatistics();
+      Optional<OutputCompression> csvCompression = getCsvCompression(outputFormat);
+      if(resume && !csvCompression.isPresent()) {
+        logger.warn("Resuming is only supported for the 'csv', 'csv.gz' and 'csv.zst' formats");
+      }
+      if(previousFolder.isPresent()) {
+        // only records that are new or updated since the previous run are validated
+        IncrementalCsvWriter writer = new IncrementalCsvWriter(outputFolder, csvCompression.orElseThrow(() ->
+            new IllegalArgumentException("Incremental runs are only supported for the CSV formats")));
+        analyzer.validateIncrementally(records, previousFolder.get(), writer, statistics);
+      } else if(csvCompression.isPresent()) {
+        // CSV runs write checkpoints, which --resume picks up after a crash
+        Checkpointer checkpointer = Checkpointer.start(inputFile, outputFolder, csvCompression.get(), termCache,
+            Checkpointer.DEFAULT_INTERVAL, resume);
+        analyzer.validate(records, checkpointer);
+        statistics = checkpointer.getStatistics();
+      } else if(outputFormat.equalsIgnoreCase("csv-sharded")) {
+        // each worker writes its own shard, and the shards are merged into the regular CSV files at the end
+        ShardedCsvWriter writer = new ShardedCsvWriter(outputFolder, Runtime.getRuntime().availableProcessors());
+        analyzer.validate(records, writer, statistics);
+        writer.merge(OutputCompression.NONE, true);
+      } else {
+        analyzer.validate(records, getReportWriter(outputFormat, outputFolder), statistics);
+      }
+      statistics.write(outputFolder);
+    }
+    termLookupExecutor.shutdown();
   }
 }
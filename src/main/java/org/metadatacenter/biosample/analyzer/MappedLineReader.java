@@ -0,0 +1,326 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reads the lines of a UTF-8 text file through memory mappings, without creating a string per line. The file is split
+ * into chunks of about the given size that end at line boundaries, and consecutive chunks are grouped into segments
+ * of up to 1 GB, each mapped on its own the first time it is read, so files larger than 2 GB, the limit of a single
+ * mapping, are read just the same, with few mappings. Lines are given to a {@link LineConsumer} as a
+ * {@link CharSequence} view of the mapped bytes, which is reused for the next line: it must be copied, e.g. with
+ * toString(), to be kept. Lines of ASCII characters are read straight from the mapping, and other lines are decoded
+ * into a reusable character buffer. Line terminators ("\n" or "\r\n") are not part of the lines.
+ *
+ * Chunks can be read in parallel with {@link #processChunks(ChunkFunction, ResultConsumer)}, which gives the result of
+ * each chunk to a consumer in the order of the chunks.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class MappedLineReader implements Closeable {
+  public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+  private static final int SCAN_BUFFER_SIZE = 1 << 16, SEGMENT_SIZE = 1 << 30;
+  @Nonnull private final File file;
+  @Nonnull private final FileChannel channel;
+  private final long size;
+  // chunk i spans the bytes from chunkStarts[i] (inclusive) to chunkStarts[i + 1] (exclusive)
+  @Nonnull private final long[] chunkStarts;
+  // chunk i lies in segment chunkSegments[i], which starts at byte segmentStarts[chunkSegments[i]]
+  @Nonnull private final int[] chunkSegments;
+  @Nonnull private final long[] segmentStarts, segmentEnds;
+  @Nonnull private final MappedByteBuffer[] segments;
+
+  /**
+   * A consumer of lines. The line is only valid until the consumer returns
+   */
+  @FunctionalInterface
+  public interface LineConsumer {
+    void accept(@Nonnull CharSequence line) throws IOException;
+  }
+
+  /**
+   * A function that reads the chunk with the given number, usually with {@link #forEachLine(int, LineConsumer)}
+   */
+  @FunctionalInterface
+  public interface ChunkFunction<T> {
+    @Nonnull
+    T apply(int chunk) throws IOException;
+  }
+
+  @FunctionalInterface
+  public interface ResultConsumer<T> {
+    void accept(@Nonnull T result) throws IOException;
+  }
+
+  /**
+   * @param file      UTF-8 text file
+   * @param chunkSize Approximate size of the chunks in bytes. A chunk is larger if a line is, up to 2 GB
+   */
+  public MappedLineReader(@Nonnull File file, int chunkSize) throws IOException {
+    checkArgument(chunkSize > 0, "Chunk size must be positive");
+    this.file = checkNotNull(file);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    size = channel.size();
+    long[] starts = new long[(int) (size / chunkSize) + 2];
+    int nrStarts = 0;
+    starts[nrStarts++] = 0;
+    for(long target = chunkSize; target < size; target += chunkSize) {
+      if(target <= starts[nrStarts - 1]) {
+        // the previous chunk already extends beyond this target because of a long line
+        continue;
+      }
+      long start = findLineStart(target);
+      if(start < size) {
+        starts[nrStarts++] = start;
+      }
+    }
+    starts[nrStarts++] = size;
+    chunkStarts = Arrays.copyOf(starts, nrStarts);
+    for(int i = 0; i < getChunkCount(); i++) {
+      if(chunkStarts[i + 1] - chunkStarts[i] > Integer.MAX_VALUE) {
+        channel.close();
+        throw new IOException("Line starting after byte " + chunkStarts[i] + " of " + file + " is longer than 2 GB");
+      }
+    }
+    chunkSegments = new int[getChunkCount()];
+    long[] segmentBounds = new long[getChunkCount() + 1];
+    int nrSegments = 0;
+    for(int i = 0; i < getChunkCount(); i++) {
+      if(i == 0 || chunkStarts[i + 1] - segmentBounds[nrSegments - 1] > SEGMENT_SIZE) {
+        segmentBounds[nrSegments++] = chunkStarts[i];
+      }
+      chunkSegments[i] = nrSegments - 1;
+    }
+    segmentStarts = Arrays.copyOf(segmentBounds, nrSegments);
+    segmentEnds = new long[nrSegments];
+    for(int i = 0; i < nrSegments; i++) {
+      segmentEnds[i] = (i + 1 < nrSegments ? segmentStarts[i + 1] : size);
+    }
+    segments = new MappedByteBuffer[nrSegments];
+  }
+
+  public MappedLineReader(@Nonnull File file) throws IOException {
+    this(file, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Find the start of the first line that starts at or after the given position, or the end of the file if none does
+   */
+  private long findLineStart(long position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    // the line starts at the position itself if the byte before it ends a line
+    long offset = position - 1;
+    while(offset < size) {
+      ((Buffer) buffer).clear();
+      int read = channel.read(buffer, offset);
+      if(read <= 0) {
+        break;
+      }
+      for(int i = 0; i < read; i++) {
+        if(buffer.get(i) == '\n') {
+          return offset + i + 1;
+        }
+      }
+      offset += read;
+    }
+    return size;
+  }
+
+  public long size() {
+    return size;
+  }
+
+  public int getChunkCount() {
+    return chunkStarts.length - 1;
+  }
+
+  /**
+   * Read all lines of the file, in order
+   */
+  public void forEachLine(@Nonnull LineConsumer consumer) throws IOException {
+    for(int chunk = 0; chunk < getChunkCount(); chunk++) {
+      forEachLine(chunk, consumer);
+    }
+  }
+
+  /**
+   * Read the lines of the given chunk, in order. Different chunks can be read by different threads at once
+   */
+  public void forEachLine(int chunk, @Nonnull LineConsumer consumer) throws IOException {
+    checkNotNull(consumer);
+    int segment = chunkSegments[chunk];
+    int start = (int) (chunkStarts[chunk] - segmentStarts[segment]);
+    int end = (int) (chunkStarts[chunk + 1] - segmentStarts[segment]);
+    if(start == end) {
+      return;
+    }
+    MappedByteBuffer buffer = getSegment(segment);
+    MappedLine line = new MappedLine(buffer);
+    int lineStart = start;
+    boolean ascii = true;
+    for(int i = start; i < end; i++) {
+      byte b = buffer.get(i);
+      if(b == '\n') {
+        line.set(lineStart, i, ascii);
+        consumer.accept(line);
+        lineStart = i + 1;
+        ascii = true;
+      } else if(b < 0) {
+        ascii = false;
+      }
+    }
+    if(lineStart < end) {
+      line.set(lineStart, end, ascii);
+      consumer.accept(line);
+    }
+  }
+
+  @Nonnull
+  private synchronized MappedByteBuffer getSegment(int segment) throws IOException {
+    if(segments[segment] == null) {
+      long start = segmentStarts[segment];
+      segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, start, segmentEnds[segment] - start);
+    }
+    return segments[segment];
+  }
+
+  /**
+   * Apply the given function to every chunk, in parallel, and give the results to the given consumer in the order of
+   * the chunks, on the calling thread. Chunks are processed in batches of one chunk per processor, so no more than a
+   * batch of results is held at a time
+   */
+  public <T> void processChunks(@Nonnull ChunkFunction<T> function, @Nonnull ResultConsumer<T> consumer)
+      throws IOException {
+    checkNotNull(function); checkNotNull(consumer);
+    int batchSize = Runtime.getRuntime().availableProcessors();
+    for(int batchStart = 0; batchStart < getChunkCount(); batchStart += batchSize) {
+      List<T> results;
+      try {
+        results = IntStream.range(batchStart, Math.min(batchStart + batchSize, getChunkCount())).parallel()
+            .mapToObj(chunk -> {
+              try {
+                return function.apply(chunk);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            })
+            .collect(Collectors.toList());
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      for(T result : results) {
+        consumer.accept(result);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * A line of a mapped chunk, which is reset to each line of the chunk in turn
+   */
+  private static final class MappedLine implements CharSequence {
+    @Nonnull private final MappedByteBuffer buffer;
+    @Nonnull private final ByteBuffer view;
+    @Nonnull private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    @Nonnull private char[] chars = new char[0];
+    private int start, length;
+    private boolean ascii;
+
+    MappedLine(@Nonnull MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      this.view = buffer.duplicate();
+    }
+
+    void set(int start, int end, boolean ascii) {
+      if(end > start && buffer.get(end - 1) == '\r') {
+        end--;
+      }
+      this.start = start;
+      this.ascii = ascii;
+      if(ascii) {
+        length = end - start;
+        return;
+      }
+      // a UTF-8 line has at most as many characters as bytes
+      if(chars.length < end - start) {
+        chars = new char[Math.max(end - start, 2 * chars.length)];
+      }
+      ((Buffer) view).limit(end).position(start);
+      CharBuffer output = CharBuffer.wrap(chars);
+      decoder.reset();
+      decoder.decode(view, output, true);
+      decoder.flush(output);
+      length = output.position();
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      if(index < 0 || index >= length) {
+        throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + length);
+      }
+      return (ascii ? (char) buffer.get(start + index) : chars[index]);
+    }
+
+    @Override
+    @Nonnull
+    public CharSequence subSequence(int start, int end) {
+      return toString().substring(start, end);
+    }
+
+    @Override
+    @Nonnull
+    public String toString() {
+      if(!ascii) {
+        return new String(chars, 0, length);
+      }
+      char[] copy = new char[length];
+      for(int i = 0; i < length; i++) {
+        copy[i] = (char) buffer.get(start + i);
+      }
+      return new String(copy);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("file", file)
+        .add("size", size)
+        .add("chunks", getChunkCount())
+        .toString();
+  }
+}
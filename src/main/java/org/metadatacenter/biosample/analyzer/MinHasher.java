@@ -0,0 +1,122 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Computes MinHash signatures of sets of features, given by their 64-bit hashes, and splits the signatures into bands
+ * for locality-sensitive hashing. Two sets with Jaccard similarity s share at least one band with probability
+ * 1 - (1 - s^rows)^bands, so sets that are similar end up in a common bucket of some band, while most dissimilar sets
+ * never do. The features of a string are its character n-grams, see {@link #getNGramHashes(CharSequence, int, long[])}.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+final class MinHasher {
+  private final int bands, rows;
+  @Nonnull private final long[] seeds;
+
+  MinHasher(int bands, int rows, long seed) {
+    checkArgument(bands > 0 && rows > 0, "Bands and rows must be positive");
+    this.bands = bands;
+    this.rows = rows;
+    Random random = new Random(seed);
+    seeds = new long[bands * rows];
+    for(int i = 0; i < seeds.length; i++) {
+      seeds[i] = random.nextLong();
+    }
+  }
+
+  int getBands() {
+    return bands;
+  }
+
+  int getSignatureLength() {
+    return seeds.length;
+  }
+
+  /**
+   * Compute the hash of each band of the MinHash signature of the given features into the given array, starting at
+   * the given offset
+   *
+   * @param features     Hashes of the features
+   * @param nrFeatures   Number of features in the array
+   * @param signature    Array to hold the signature, of length bands * rows
+   * @param bandHashes   Array to hold the band hashes
+   * @param offset       Position of the first band hash in the array
+   */
+  void getBandHashes(@Nonnull long[] features, int nrFeatures, @Nonnull long[] signature, @Nonnull int[] bandHashes,
+                     int offset) {
+    for(int i = 0; i < seeds.length; i++) {
+      long min = Long.MAX_VALUE;
+      long seed = seeds[i];
+      for(int j = 0; j < nrFeatures; j++) {
+        long hash = mix(features[j] ^ seed);
+        if(hash < min) {
+          min = hash;
+        }
+      }
+      signature[i] = min;
+    }
+    for(int band = 0; band < bands; band++) {
+      long hash = band;
+      for(int row = 0; row < rows; row++) {
+        hash = mix(hash * 31 + signature[band * rows + row]);
+      }
+      bandHashes[offset + band] = (int) (hash ^ (hash >>> 32));
+    }
+  }
+
+  /**
+   * Get the hashes of the character n-grams of the given string into the given array, which is grown if needed. The
+   * string is padded with a boundary character on each side, so that short strings still have n-grams, and so that
+   * the first and last characters weigh as much as the others
+   *
+   * @return The array holding the hashes, whose first {@link #getNGramCount(CharSequence, int)} elements are set
+   */
+  @Nonnull
+  static long[] getNGramHashes(@Nonnull CharSequence string, int n, @Nonnull long[] hashes) {
+    checkNotNull(string);
+    int count = getNGramCount(string, n);
+    if(hashes.length < count) {
+      hashes = new long[Math.max(count, 2 * hashes.length)];
+    }
+    int paddedLength = string.length() + 2;
+    for(int start = 0; start < count; start++) {
+      long hash = n;
+      for(int i = start; i < Math.min(start + n, paddedLength); i++) {
+        char c = (i == 0 || i == paddedLength - 1 ? '\u0002' : string.charAt(i - 1));
+        hash = hash * 0x100000001B3L + c;
+      }
+      hashes[start] = mix(hash);
+    }
+    return hashes;
+  }
+
+  static int getNGramCount(@Nonnull CharSequence string, int n) {
+    return Math.max(1, string.length() + 2 - n + 1);
+  }
+
+  /**
+   * Mix the bits of the given value (the finalizer of SplitMix64)
+   */
+  static long mix(long value) {
+    value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+    value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+    return value ^ (value >>> 31);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("bands", bands)
+        .add("rows", rows)
+        .toString();
+  }
+}
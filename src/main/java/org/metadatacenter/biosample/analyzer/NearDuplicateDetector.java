@@ -0,0 +1,276 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds clusters of near-duplicate records, such as the many records of a submission that differ only in their sample
+ * name. Each record is represented by the set of its (harmonized name, value) attribute pairs, and the similarity of
+ * two records is the Jaccard similarity of their sets, estimated from MinHash signatures. Candidate pairs are found by
+ * locality-sensitive hashing on bands of the signatures, so records are not compared with every other record, and
+ * pairs whose estimated similarity is at least the threshold are merged into the same cluster. Only the signatures
+ * are kept in memory, as 32-bit integers, besides the records themselves.
+ *
+ * As clusters are chains of similar pairs, a member may be far less similar to the representative of its cluster than
+ * the threshold. Only the members that are at least as similar to the representative as the threshold are
+ * duplicates of it, which need not be validated; the other members are validated on their own.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class NearDuplicateDetector {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(NearDuplicateDetector.class.getName());
+  @Nonnull private static final HashFunction hashFunction = Hashing.murmur3_128();
+  public static final int DEFAULT_BANDS = 10, DEFAULT_ROWS = 5, DEFAULT_MAX_BUCKET_SIZE = 64;
+  public static final double DEFAULT_THRESHOLD = 0.8;
+  @Nonnull private final MinHasher minHasher;
+  private final double threshold;
+
+  /**
+   * @param bands     Number of bands of the MinHash signatures
+   * @param rows      Number of rows per band
+   * @param threshold Minimum estimated Jaccard similarity of near-duplicate records
+   */
+  public NearDuplicateDetector(int bands, int rows, double threshold) {
+    checkArgument(threshold > 0 && threshold <= 1, "Threshold must be in (0, 1]");
+    this.minHasher = new MinHasher(bands, rows, 1L);
+    this.threshold = threshold;
+  }
+
+  public NearDuplicateDetector() {
+    this(DEFAULT_BANDS, DEFAULT_ROWS, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Find the clusters of near-duplicate records among the given records. Records without attributes are never
+   * near-duplicates
+   *
+   * @return The clusters of two or more records, from the largest to the smallest
+   */
+  @Nonnull
+  public List<Cluster> detect(@Nonnull List<Record> records) {
+    checkNotNull(records);
+    int size = records.size(), bands = minHasher.getBands(), signatureLength = minHasher.getSignatureLength();
+    logger.info("Computing MinHash signatures of " + size + " records");
+    int[] signatures = new int[size * signatureLength];
+    int[] bandHashes = new int[size * bands];
+    boolean[] empty = new boolean[size];
+    IntStream.range(0, size).parallel().forEach(i -> {
+      Collection<Attribute> attributes = records.get(i).getAttributes().values();
+      if(attributes.isEmpty()) {
+        empty[i] = true;
+        // records without attributes are given their own buckets
+        Arrays.fill(bandHashes, i * bands, (i + 1) * bands, ~i);
+        return;
+      }
+      long[] features = new long[attributes.size()];
+      int nrFeatures = 0;
+      for(Attribute attribute : attributes) {
+        features[nrFeatures++] = getFeatureHash(attribute.getName(), attribute.getValue());
+      }
+      long[] signature = new long[signatureLength];
+      minHasher.getBandHashes(features, nrFeatures, signature, bandHashes, i * bands);
+      for(int j = 0; j < signatureLength; j++) {
+        signatures[i * signatureLength + j] = (int) (signature[j] ^ (signature[j] >>> 32));
+      }
+    });
+
+    ConcurrentUnionFind components = new ConcurrentUnionFind(size);
+    LshCandidatePairs.visit(bandHashes, size, bands, DEFAULT_MAX_BUCKET_SIZE, (first, second) -> {
+      if(!empty[first] && !empty[second] && !components.isConnected(first, second) &&
+          getSimilarity(signatures, signatureLength, first, second) >= threshold) {
+        components.union(first, second);
+      }
+    });
+
+    // the root of each component is its first record (roots are always linked under smaller roots), which becomes
+    // the representative of the cluster
+    Map<Integer,List<Integer>> members = new HashMap<>();
+    for(int i = 0; i < size; i++) {
+      members.computeIfAbsent(components.find(i), k -> new ArrayList<>()).add(i);
+    }
+    List<Cluster> clusters = new ArrayList<>();
+    for(Map.Entry<Integer,List<Integer>> entry : members.entrySet()) {
+      List<Integer> clusterMembers = entry.getValue();
+      if(clusterMembers.size() < 2) {
+        continue;
+      }
+      int representative = entry.getKey();
+      ImmutableList.Builder<Record> clusterRecords = ImmutableList.builder();
+      int[] indexes = new int[clusterMembers.size()];
+      double[] similarities = new double[clusterMembers.size()];
+      for(int j = 0; j < clusterMembers.size(); j++) {
+        int member = clusterMembers.get(j);
+        clusterRecords.add(records.get(member));
+        indexes[j] = member;
+        similarities[j] = getSimilarity(signatures, signatureLength, representative, member);
+      }
+      clusters.add(new Cluster(clusterRecords.build(), indexes, similarities, threshold));
+    }
+    clusters.sort(Comparator.comparingInt((Cluster cluster) -> -cluster.size())
+        .thenComparing(cluster -> cluster.getRepresentative().getAccession()));
+    logger.info("Found " + clusters.size() + " clusters of near-duplicate records");
+    return clusters;
+  }
+
+  /**
+   * Get a 64-bit hash of the given attribute name and value. The length of the name separates it from the value, so
+   * that, e.g., ("ab", "c") and ("a", "bc") are different features
+   */
+  private static long getFeatureHash(@Nonnull String name, @Nonnull String value) {
+    return hashFunction.newHasher()
+        .putInt(name.length())
+        .putUnencodedChars(name)
+        .putUnencodedChars(value)
+        .hash().asLong();
+  }
+
+  /**
+   * Estimate the Jaccard similarity of two records as the fraction of equal values in their signatures
+   */
+  private static double getSimilarity(@Nonnull int[] signatures, int signatureLength, int first, int second) {
+    int equal = 0;
+    for(int j = 0; j < signatureLength; j++) {
+      if(signatures[first * signatureLength + j] == signatures[second * signatureLength + j]) {
+        equal++;
+      }
+    }
+    return (double) equal / signatureLength;
+  }
+
+  /**
+   * Get the records to validate when duplicates are not validated: all records but the members of the clusters that
+   * are duplicates of their representatives, in their original order. The records must be those the clusters were
+   * detected in, as members are identified by their position in the records
+   */
+  @Nonnull
+  public static List<Record> getRepresentatives(@Nonnull List<Record> records, @Nonnull List<Cluster> clusters) {
+    BitSet duplicates = new BitSet(records.size());
+    for(Cluster cluster : checkNotNull(clusters)) {
+      for(int i = 1; i < cluster.size(); i++) {
+        if(cluster.isDuplicate(i)) {
+          duplicates.set(cluster.getIndex(i));
+        }
+      }
+    }
+    List<Record> representatives = new ArrayList<>(records.size() - duplicates.cardinality());
+    for(int i = 0; i < checkNotNull(records).size(); i++) {
+      if(!duplicates.get(i)) {
+        representatives.add(records.get(i));
+      }
+    }
+    return representatives;
+  }
+
+  /**
+   * Write the given clusters to a CSV file with one row per record in a cluster, giving the accession of the record,
+   * the accession of the representative of its cluster, their estimated similarity, and whether the record is a
+   * duplicate of the representative
+   */
+  public static void writeCsv(@Nonnull List<Cluster> clusters, @Nonnull File outputFile) throws IOException {
+    try (BufferedCsvWriter writer = new BufferedCsvWriter(checkNotNull(outputFile), false, false)) {
+      writer.write("cluster,size,representative,accession,similarity,duplicate");
+      writer.writeNewLine();
+      int clusterNumber = 1;
+      for(Cluster cluster : checkNotNull(clusters)) {
+        String representative = cluster.getRepresentative().getAccession();
+        for(int i = 0; i < cluster.size(); i++) {
+          writer.write(clusterNumber).writeSeparator()
+              .write(cluster.size()).writeSeparator()
+              .writeQuoted(representative).writeSeparator()
+              .writeQuoted(cluster.getMembers().get(i).getAccession()).writeSeparator()
+              .write(String.format(Locale.ROOT, "%.3f", cluster.getSimilarity(i))).writeSeparator()
+              .write(cluster.isDuplicate(i))
+              .writeNewLine();
+        }
+        clusterNumber++;
+      }
+    }
+  }
+
+  /**
+   * A cluster of near-duplicate records. Its first record is its representative
+   */
+  @Immutable
+  public static final class Cluster {
+    @Nonnull private final ImmutableList<Record> members;
+    @Nonnull private final int[] indexes;
+    @Nonnull private final double[] similarities;
+    private final double threshold;
+
+    private Cluster(@Nonnull ImmutableList<Record> members, @Nonnull int[] indexes, @Nonnull double[] similarities,
+                    double threshold) {
+      this.members = checkNotNull(members);
+      this.indexes = checkNotNull(indexes);
+      this.similarities = checkNotNull(similarities);
+      this.threshold = threshold;
+    }
+
+    @Nonnull
+    public Record getRepresentative() {
+      return members.get(0);
+    }
+
+    @Nonnull
+    public List<Record> getMembers() {
+      return members;
+    }
+
+    /**
+     * Get the estimated Jaccard similarity of the member at the given position with the representative
+     */
+    public double getSimilarity(int member) {
+      return similarities[member];
+    }
+
+    /**
+     * Get the position of the member at the given position in the records the cluster was detected in
+     */
+    public int getIndex(int member) {
+      return indexes[member];
+    }
+
+    /**
+     * Check whether the member at the given position is a duplicate of the representative, that is, whether their
+     * estimated similarity is at least the threshold. The representative is not a duplicate of itself
+     */
+    public boolean isDuplicate(int member) {
+      return member > 0 && similarities[member] >= threshold;
+    }
+
+    public int size() {
+      return members.size();
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("representative", getRepresentative().getAccession())
+          .add("size", size())
+          .toString();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("minHasher", minHasher)
+        .add("threshold", threshold)
+        .toString();
+  }
+}
@@ -0,0 +1,102 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An append-only column of strings kept outside the Java heap. Values are stored as UTF-8 bytes in direct buffers of
+ * 4 MiB (or larger, for values that do not fit one), so that a loaded dump adds little to the heap and to garbage
+ * collection times. The first buffer of a column starts at 4 KiB and doubles as it fills up, until it reaches 4 MiB,
+ * so that sparse columns stay small. The heap only holds the position of each value, as a segment number and offset
+ * packed in a long.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+final class OffHeapStringColumn {
+  private static final int INITIAL_SEGMENT_SIZE = 1 << 12, SEGMENT_SIZE = 1 << 22;
+  @Nonnull private final List<ByteBuffer> segments = new ArrayList<>();
+  @Nonnull private long[] positions = new long[16];
+  private int size = 0;
+  private long bytes = 0;
+
+  /**
+   * Append the given value to the column
+   *
+   * @return The index of the value in the column
+   */
+  int add(@Nonnull String value) {
+    byte[] encoded = checkNotNull(value).getBytes(StandardCharsets.UTF_8);
+    int length = 4 + encoded.length;
+    ByteBuffer segment = (segments.isEmpty() ? null : segments.get(segments.size() - 1));
+    if(segment == null) {
+      segment = ByteBuffer.allocateDirect(Math.max(INITIAL_SEGMENT_SIZE, length));
+      segments.add(segment);
+    } else if(segment.remaining() < length) {
+      if(segment.position() + length <= SEGMENT_SIZE) {
+        // grow the last segment by copying it into a larger one, where its values keep their offsets
+        ByteBuffer grown = ByteBuffer.allocateDirect(
+            Math.min(SEGMENT_SIZE, Math.max(2 * segment.capacity(), segment.position() + length)));
+        ((Buffer) segment).flip();
+        grown.put(segment);
+        segment = grown;
+        segments.set(segments.size() - 1, segment);
+      } else {
+        segment = ByteBuffer.allocateDirect(Math.max(SEGMENT_SIZE, length));
+        segments.add(segment);
+      }
+    }
+    if(size == positions.length) {
+      positions = Arrays.copyOf(positions, 2 * size);
+    }
+    positions[size] = ((long) (segments.size() - 1) << 32) | segment.position();
+    segment.putInt(encoded.length).put(encoded);
+    bytes += length;
+    return size++;
+  }
+
+  /**
+   * Get the value at the given index. Values can be read by several threads at once
+   */
+  @Nonnull
+  String get(int index) {
+    checkElementIndex(index, size);
+    long position = positions[index];
+    ByteBuffer segment = segments.get((int) (position >>> 32)).duplicate();
+    ((Buffer) segment).position((int) position);
+    byte[] encoded = new byte[segment.getInt()];
+    segment.get(encoded);
+    return new String(encoded, StandardCharsets.UTF_8);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get the number of off-heap bytes used by the values, including their length prefixes
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("size", size)
+        .add("segments", segments.size())
+        .add("bytes", bytes)
+        .toString();
+  }
+}
@@ -0,0 +1,63 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compression formats for output files
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public enum OutputCompression {
+  NONE(""), GZIP(".gz"), ZSTD(".zst");
+
+  @Nonnull private final String fileExtension;
+
+  OutputCompression(@Nonnull String fileExtension) {
+    this.fileExtension = checkNotNull(fileExtension);
+  }
+
+  /**
+   * Get the extension appended to the names of files written with this compression, e.g., ".gz"
+   */
+  @Nonnull
+  public String getFileExtension() {
+    return fileExtension;
+  }
+
+  /**
+   * Open the given file for writing, compressing the written bytes with this compression format. The file name is
+   * used as-is, so it should already end with {@link #getFileExtension()}
+   */
+  @Nonnull
+  public OutputStream open(@Nonnull File file, boolean append) throws IOException {
+    OutputStream outputStream = new FileOutputStream(checkNotNull(file), append);
+    if(this == NONE) {
+      return outputStream;
+    }
+    return new ParallelCompressingOutputStream(outputStream, this);
+  }
+
+  /**
+   * Open the given file, written with this compression format, for reading its uncompressed bytes
+   */
+  @Nonnull
+  public InputStream openForReading(@Nonnull File file) throws IOException {
+    InputStream inputStream = new FileInputStream(checkNotNull(file));
+    switch (this) {
+      case GZIP:
+        return new GZIPInputStream(inputStream, 1 << 16);
+      case ZSTD:
+        return new ZstdInputStream(new BufferedInputStream(inputStream, 1 << 16));
+      default:
+        return inputStream;
+    }
+  }
+}
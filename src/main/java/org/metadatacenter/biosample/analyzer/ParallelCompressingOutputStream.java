@@ -0,0 +1,188 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.github.luben.zstd.Zstd;
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An output stream that compresses fixed-size blocks of the written bytes independently of each other on background
+ * threads (in the style of pigz), and writes the compressed blocks to the underlying stream in order. Each block
+ * becomes a complete gzip member or zstd frame. Both formats allow concatenating members/frames, so the output is a
+ * regular .gz or .zst file that standard tools decompress as a whole.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class ParallelCompressingOutputStream extends OutputStream {
+  public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+  private static final int ZSTD_LEVEL = 3;
+  @Nonnull private static final ExecutorService sharedExecutor = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      new ThreadFactoryBuilder().setNameFormat("block-compressor-%d").setDaemon(true).build());
+  @Nonnull private final OutputStream outputStream;
+  @Nonnull private final OutputCompression compression;
+  @Nonnull private final Executor executor;
+  private final int blockSize;
+  private final int maxPendingBlocks;
+  @Nonnull private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+  @Nonnull private byte[] block;
+  private int position = 0;
+  private boolean closed = false;
+
+  /**
+   * @param outputStream     Stream to write the compressed blocks to
+   * @param compression      Compression format
+   * @param executor         Executor that compresses the blocks
+   * @param blockSize        Number of uncompressed bytes per block
+   * @param maxPendingBlocks Number of blocks that may be waiting for compression before writing blocks
+   */
+  public ParallelCompressingOutputStream(@Nonnull OutputStream outputStream, @Nonnull OutputCompression compression,
+                                         @Nonnull Executor executor, int blockSize, int maxPendingBlocks) {
+    checkArgument(compression != OutputCompression.NONE, "A compression format is required");
+    checkArgument(blockSize > 0, "Block size must be positive");
+    checkArgument(maxPendingBlocks > 0, "Maximum number of pending blocks must be positive");
+    this.outputStream = checkNotNull(outputStream);
+    this.compression = checkNotNull(compression);
+    this.executor = checkNotNull(executor);
+    this.blockSize = blockSize;
+    this.maxPendingBlocks = maxPendingBlocks;
+    this.block = new byte[blockSize];
+  }
+
+  /**
+   * Compress blocks on a shared pool sized to the number of available processors
+   */
+  public ParallelCompressingOutputStream(@Nonnull OutputStream outputStream, @Nonnull OutputCompression compression) {
+    this(outputStream, compression, sharedExecutor, DEFAULT_BLOCK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if(position == block.length) {
+      submitBlock();
+    }
+    block[position++] = (byte) b;
+  }
+
+  @Override
+  public void write(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+    while(length > 0) {
+      if(position == block.length) {
+        submitBlock();
+      }
+      int n = Math.min(length, block.length - position);
+      System.arraycopy(bytes, offset, block, position, n);
+      position += n;
+      offset += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Compress the buffered bytes, and wait until all blocks have been written to the underlying stream
+   */
+  @Override
+  public void flush() throws IOException {
+    submitBlock();
+    writeCompressedBlocks(true);
+    outputStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if(position == 0) {
+      return;
+    }
+    byte[] data = block;
+    int length = position;
+    pendingBlocks.add(CompletableFuture.supplyAsync(() -> compress(data, length), executor));
+    block = new byte[blockSize];
+    position = 0;
+    writeCompressedBlocks(false);
+  }
+
+  /**
+   * Write compressed blocks to the underlying stream in submission order. Unless all blocks are to be written, this
+   * only waits for a block when there are too many pending blocks
+   */
+  private void writeCompressedBlocks(boolean all) throws IOException {
+    while(!pendingBlocks.isEmpty() &&
+        (all || pendingBlocks.size() > maxPendingBlocks || pendingBlocks.peekFirst().isDone())) {
+      outputStream.write(getCompressedBlock(pendingBlocks.pollFirst()));
+    }
+  }
+
+  @Nonnull
+  private byte[] getCompressedBlock(@Nonnull Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for block compression");
+    } catch (ExecutionException e) {
+      Throwable cause = (e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause());
+      if(cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  @Nonnull
+  private byte[] compress(@Nonnull byte[] data, int length) {
+    try {
+      switch (compression) {
+        case GZIP:
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+          try (GZIPOutputStream gzip = new GZIPOutputStream(bytes, 1 << 16)) {
+            gzip.write(data, 0, length);
+          }
+          return bytes.toByteArray();
+        case ZSTD:
+          byte[] compressed = new byte[(int) Zstd.compressBound(length)];
+          long size = Zstd.compressByteArray(compressed, 0, compressed.length, data, 0, length, ZSTD_LEVEL);
+          if (Zstd.isError(size)) {
+            throw new IOException("Failed to compress block: " + Zstd.getErrorName(size));
+          }
+          return Arrays.copyOf(compressed, (int) size);
+        default:
+          throw new IllegalStateException("Unsupported compression: " + compression);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("compression", compression)
+        .add("blockSize", blockSize)
+        .add("maxPendingBlocks", maxPendingBlocks)
+        .toString();
+  }
+}
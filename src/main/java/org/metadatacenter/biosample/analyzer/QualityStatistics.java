@@ -0,0 +1,345 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Fill and validity rates of record attributes, accumulated while records are validated, per package, per (package,
+ * attribute), per organism and per submission month. An instance is not thread-safe: each validation thread keeps its
+ * own statistics, and these are combined afterwards with {@link #merge(QualityStatistics)}.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class QualityStatistics {
+  @Nonnull private static final String UNKNOWN = "unknown";
+  @Nonnull private final Counts total = new Counts();
+  @Nonnull private final Map<String,Counts> packages = new HashMap<>();
+  @Nonnull private final Map<String,Map<String,Counts>> packageAttributes = new HashMap<>();
+  @Nonnull private final Map<String,Counts> organisms = new HashMap<>();
+  @Nonnull private final Map<String,Counts> submissionMonths = new HashMap<>();
+
+  /**
+   * Add the validation results of the given record
+   */
+  public void add(@Nonnull Record record, boolean isValid,
+                  @Nonnull List<AttributeGroupValidationReport> validationReports) {
+    checkNotNull(record); checkNotNull(validationReports);
+    RecordCounts recordCounts = addRecord(record.getPackageName(), record.getOrganismName(),
+        record.getSubmissionDate(), isValid);
+    for(AttributeGroupValidationReport groupValidationReport : validationReports) {
+      for(AttributeValidationReport report : groupValidationReport.getValidationReports()) {
+        recordCounts.addAttribute(report.getAttribute().getName(), report.isFilledIn(), report.isValidFormat(),
+            report.isValid());
+      }
+    }
+  }
+
+  /**
+   * Add a record given by its package, organism, submission date and validity, without its attributes, which are
+   * then added to the returned counts. This is used to add records whose results are read back from output files
+   */
+  @Nonnull
+  RecordCounts addRecord(@Nonnull String packageName, @Nonnull String organismName, @Nonnull String submissionDate,
+                         boolean isValid) {
+    packageName = getKey(packageName);
+    RecordCounts recordCounts = new RecordCounts(isValid, packages.computeIfAbsent(packageName, k -> new Counts()),
+        organisms.computeIfAbsent(getKey(organismName), k -> new Counts()),
+        submissionMonths.computeIfAbsent(getSubmissionMonth(submissionDate), k -> new Counts()),
+        packageAttributes.computeIfAbsent(packageName, k -> new HashMap<>()));
+    total.addRecord(isValid);
+    recordCounts.packageCounts.addRecord(isValid);
+    recordCounts.organismCounts.addRecord(isValid);
+    recordCounts.monthCounts.addRecord(isValid);
+    return recordCounts;
+  }
+
+  /**
+   * The counts that the attributes of a single record are added to
+   */
+  final class RecordCounts {
+    private final boolean isValid;
+    @Nonnull private final Counts packageCounts, organismCounts, monthCounts;
+    @Nonnull private final Map<String,Counts> attributeCounts;
+
+    private RecordCounts(boolean isValid, @Nonnull Counts packageCounts, @Nonnull Counts organismCounts,
+                         @Nonnull Counts monthCounts, @Nonnull Map<String,Counts> attributeCounts) {
+      this.isValid = isValid;
+      this.packageCounts = packageCounts;
+      this.organismCounts = organismCounts;
+      this.monthCounts = monthCounts;
+      this.attributeCounts = attributeCounts;
+    }
+
+    void addAttribute(@Nonnull String name, boolean isFilledIn, boolean isValidFormat, boolean isValidAttribute) {
+      Counts counts = attributeCounts.computeIfAbsent(name, k -> new Counts());
+      counts.addRecord(isValid);
+      counts.addAttribute(isFilledIn, isValidFormat, isValidAttribute);
+      total.addAttribute(isFilledIn, isValidFormat, isValidAttribute);
+      packageCounts.addAttribute(isFilledIn, isValidFormat, isValidAttribute);
+      organismCounts.addAttribute(isFilledIn, isValidFormat, isValidAttribute);
+      monthCounts.addAttribute(isFilledIn, isValidFormat, isValidAttribute);
+    }
+  }
+
+  /**
+   * Add the counts of the given statistics to these statistics
+   */
+  public void merge(@Nonnull QualityStatistics statistics) {
+    checkNotNull(statistics);
+    total.merge(statistics.total);
+    merge(packages, statistics.packages);
+    merge(organisms, statistics.organisms);
+    merge(submissionMonths, statistics.submissionMonths);
+    for(Map.Entry<String,Map<String,Counts>> entry : statistics.packageAttributes.entrySet()) {
+      merge(packageAttributes.computeIfAbsent(entry.getKey(), k -> new HashMap<>()), entry.getValue());
+    }
+  }
+
+  private static void merge(@Nonnull Map<String,Counts> target, @Nonnull Map<String,Counts> source) {
+    for(Map.Entry<String,Counts> entry : source.entrySet()) {
+      target.computeIfAbsent(entry.getKey(), k -> new Counts()).merge(entry.getValue());
+    }
+  }
+
+  /**
+   * Write the counts in binary form, so they can be read back with {@link #readFrom(DataInput)}
+   */
+  public void writeTo(@Nonnull DataOutput output) throws IOException {
+    checkNotNull(output);
+    total.writeTo(output);
+    writeTo(output, packages);
+    writeTo(output, organisms);
+    writeTo(output, submissionMonths);
+    output.writeInt(packageAttributes.size());
+    for(Map.Entry<String,Map<String,Counts>> entry : packageAttributes.entrySet()) {
+      output.writeUTF(entry.getKey());
+      writeTo(output, entry.getValue());
+    }
+  }
+
+  private static void writeTo(@Nonnull DataOutput output, @Nonnull Map<String,Counts> counts) throws IOException {
+    output.writeInt(counts.size());
+    for(Map.Entry<String,Counts> entry : counts.entrySet()) {
+      output.writeUTF(entry.getKey());
+      entry.getValue().writeTo(output);
+    }
+  }
+
+  /**
+   * Add the counts written by {@link #writeTo(DataOutput)} to these statistics
+   */
+  public void readFrom(@Nonnull DataInput input) throws IOException {
+    checkNotNull(input);
+    total.readFrom(input);
+    readFrom(input, packages);
+    readFrom(input, organisms);
+    readFrom(input, submissionMonths);
+    int nrPackages = input.readInt();
+    for(int i = 0; i < nrPackages; i++) {
+      readFrom(input, packageAttributes.computeIfAbsent(input.readUTF(), k -> new HashMap<>()));
+    }
+  }
+
+  private static void readFrom(@Nonnull DataInput input, @Nonnull Map<String,Counts> counts) throws IOException {
+    int size = input.readInt();
+    for(int i = 0; i < size; i++) {
+      counts.computeIfAbsent(input.readUTF(), k -> new Counts()).readFrom(input);
+    }
+  }
+
+  @Nonnull
+  private static String getKey(@Nonnull String value) {
+    return (value.trim().isEmpty() ? UNKNOWN : value);
+  }
+
+  /**
+   * Get the year and month (yyyy-MM) of the given submission date, which is an ISO 8601 timestamp
+   */
+  @Nonnull
+  private static String getSubmissionMonth(@Nonnull String date) {
+    if(date.length() >= 7 && date.charAt(4) == '-') {
+      return date.substring(0, 7);
+    }
+    return UNKNOWN;
+  }
+
+  @Nonnull
+  public Counts getTotal() {
+    return total;
+  }
+
+  /**
+   * Write the statistics to biosample-statistics.json and biosample-statistics.csv in the given folder. The CSV file
+   * has one row per (package, attribute), organism and submission month, and the JSON file also has the totals per
+   * package and overall
+   */
+  public void write(@Nonnull File outputFolder) throws IOException {
+    checkNotNull(outputFolder);
+    writeJson(new File(outputFolder, "biosample-statistics.json"));
+    writeCsv(new File(outputFolder, "biosample-statistics.csv"));
+  }
+
+  public void writeJson(@Nonnull File outputFile) throws IOException {
+    Map<String,Object> packageSummaries = new TreeMap<>();
+    for(Map.Entry<String,Counts> entry : packages.entrySet()) {
+      Map<String,Object> packageSummary = new LinkedHashMap<>();
+      packageSummary.put("total", entry.getValue());
+      packageSummary.put("attributes", new TreeMap<>(packageAttributes.get(entry.getKey())));
+      packageSummaries.put(entry.getKey(), packageSummary);
+    }
+    Map<String,Object> summary = new LinkedHashMap<>();
+    summary.put("total", total);
+    summary.put("packages", packageSummaries);
+    summary.put("organisms", new TreeMap<>(organisms));
+    summary.put("submissionMonths", new TreeMap<>(submissionMonths));
+    new ObjectMapper().writeValue(checkNotNull(outputFile), summary);
+  }
+
+  public void writeCsv(@Nonnull File outputFile) throws IOException {
+    try (BufferedCsvWriter writer = new BufferedCsvWriter(checkNotNull(outputFile), false, false)) {
+      writer.write("dimension,package,key,records,valid_records,attributes,filled_in,valid_format,valid");
+      writer.writeNewLine();
+      for(Map.Entry<String,Map<String,Counts>> entry : new TreeMap<>(packageAttributes).entrySet()) {
+        for(Map.Entry<String,Counts> attribute : new TreeMap<>(entry.getValue()).entrySet()) {
+          writeCsvRow(writer, "attribute", entry.getKey(), attribute.getKey(), attribute.getValue());
+        }
+      }
+      for(Map.Entry<String,Counts> entry : new TreeMap<>(organisms).entrySet()) {
+        writeCsvRow(writer, "organism", "", entry.getKey(), entry.getValue());
+      }
+      for(Map.Entry<String,Counts> entry : new TreeMap<>(submissionMonths).entrySet()) {
+        writeCsvRow(writer, "submission_month", "", entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private static void writeCsvRow(@Nonnull BufferedCsvWriter writer, @Nonnull String dimension,
+                                  @Nonnull String packageName, @Nonnull String key, @Nonnull Counts counts)
+      throws IOException {
+    writer.writeQuoted(dimension).writeSeparator()
+        .writeQuoted(packageName).writeSeparator()
+        .writeQuoted(key).writeSeparator()
+        .write(counts.getRecords()).writeSeparator()
+        .write(counts.getValidRecords()).writeSeparator()
+        .write(counts.getAttributes()).writeSeparator()
+        .write(counts.getFilledIn()).writeSeparator()
+        .write(counts.getValidFormat()).writeSeparator()
+        .write(counts.getValid())
+        .writeNewLine();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("total", total)
+        .add("packages", packages.size())
+        .add("organisms", organisms.size())
+        .add("submissionMonths", submissionMonths.size())
+        .toString();
+  }
+
+  /**
+   * Number of records and of record attributes in a group, and how many of these are valid, filled in, etc.
+   */
+  public static final class Counts {
+    private long records, validRecords, attributes, filledIn, validFormat, valid;
+
+    private void addRecord(boolean isValid) {
+      records++;
+      if(isValid) {
+        validRecords++;
+      }
+    }
+
+    private void addAttribute(boolean isFilledIn, boolean isValidFormat, boolean isValid) {
+      attributes++;
+      if(isFilledIn) {
+        filledIn++;
+      }
+      if(isValidFormat) {
+        validFormat++;
+      }
+      if(isValid) {
+        valid++;
+      }
+    }
+
+    private void merge(@Nonnull Counts counts) {
+      records += counts.records;
+      validRecords += counts.validRecords;
+      attributes += counts.attributes;
+      filledIn += counts.filledIn;
+      validFormat += counts.validFormat;
+      valid += counts.valid;
+    }
+
+    private void writeTo(@Nonnull DataOutput output) throws IOException {
+      output.writeLong(records);
+      output.writeLong(validRecords);
+      output.writeLong(attributes);
+      output.writeLong(filledIn);
+      output.writeLong(validFormat);
+      output.writeLong(valid);
+    }
+
+    private void readFrom(@Nonnull DataInput input) throws IOException {
+      records += input.readLong();
+      validRecords += input.readLong();
+      attributes += input.readLong();
+      filledIn += input.readLong();
+      validFormat += input.readLong();
+      valid += input.readLong();
+    }
+
+    public long getRecords() {
+      return records;
+    }
+
+    public long getValidRecords() {
+      return validRecords;
+    }
+
+    public long getAttributes() {
+      return attributes;
+    }
+
+    public long getFilledIn() {
+      return filledIn;
+    }
+
+    public long getValidFormat() {
+      return validFormat;
+    }
+
+    public long getValid() {
+      return valid;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("records", records)
+          .add("validRecords", validRecords)
+          .add("attributes", attributes)
+          .add("filledIn", filledIn)
+          .add("validFormat", validFormat)
+          .add("valid", valid)
+          .toString();
+    }
+  }
+}
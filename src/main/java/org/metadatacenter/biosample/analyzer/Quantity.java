@@ -0,0 +1,320 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Locale;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A physical quantity, such as a temperature, depth or age, normalized to the SI unit of its dimension: kelvin for
+ * temperatures, metres for lengths and seconds for times. Quantities are parsed from a number followed by a unit,
+ * e.g., "25 C", "10.5 m" or "3 years", by a single pass over the characters: the number is read digit by digit, and
+ * the unit is looked up, ignoring case, in a hash table of the known unit spellings that is built once, without
+ * creating any strings. Only numbers with more than 15 significant digits or exponents beyond 22 are handed to
+ * {@link Double#parseDouble(String)}, to be rounded correctly
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@Immutable
+public final class Quantity {
+  private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+      1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+  private static final int MAX_MANTISSA_DIGITS = 18;
+  private static final long EXACT_MANTISSA_LIMIT = 1L << 53;
+  private static final double DAY = 86400, YEAR = 365.2425 * DAY;
+  @Nonnull private static final Unit[] UNITS = {
+      new Unit(Dimension.TEMPERATURE, 1, 273.15, "c", "°c", "℃", "degc", "deg c", "degree c", "degrees c", "celsius",
+          "degree celsius", "degrees celsius", "centigrade"),
+      new Unit(Dimension.TEMPERATURE, 1, 0, "k", "kelvin", "kelvins"),
+      new Unit(Dimension.TEMPERATURE, 5.0 / 9, 459.67 * 5 / 9, "f", "°f", "℉", "degf", "deg f", "degree f",
+          "degrees f", "fahrenheit", "degree fahrenheit", "degrees fahrenheit"),
+      new Unit(Dimension.LENGTH, 1, 0, "m", "meter", "meters", "metre", "metres"),
+      new Unit(Dimension.LENGTH, 1e-2, 0, "cm", "centimeter", "centimeters", "centimetre", "centimetres"),
+      new Unit(Dimension.LENGTH, 1e-3, 0, "mm", "millimeter", "millimeters", "millimetre", "millimetres"),
+      new Unit(Dimension.LENGTH, 1e-6, 0, "um", "µm", "μm", "micrometer", "micrometers", "micrometre", "micrometres",
+          "micron", "microns"),
+      new Unit(Dimension.LENGTH, 1e3, 0, "km", "kilometer", "kilometers", "kilometre", "kilometres"),
+      new Unit(Dimension.LENGTH, 0.3048, 0, "ft", "foot", "feet"),
+      new Unit(Dimension.LENGTH, 0.0254, 0, "in", "inch", "inches"),
+      new Unit(Dimension.LENGTH, 1609.344, 0, "mi", "mile", "miles"),
+      new Unit(Dimension.TIME, 1, 0, "s", "sec", "secs", "second", "seconds"),
+      new Unit(Dimension.TIME, 60, 0, "min", "mins", "minute", "minutes"),
+      new Unit(Dimension.TIME, 3600, 0, "h", "hr", "hrs", "hour", "hours"),
+      new Unit(Dimension.TIME, DAY, 0, "d", "day", "days"),
+      new Unit(Dimension.TIME, 7 * DAY, 0, "wk", "wks", "week", "weeks"),
+      new Unit(Dimension.TIME, YEAR / 12, 0, "mo", "mon", "month", "months"),
+      new Unit(Dimension.TIME, YEAR, 0, "y", "yr", "yrs", "year", "years")
+  };
+  // open-addressing table from the lowercase spellings of the units to the units
+  @Nonnull private static final String[] spellings;
+  @Nonnull private static final Unit[] spellingUnits;
+  @Nonnull private static final int[] spellingHashes;
+
+  static {
+    int nrSpellings = 0;
+    for(Unit unit : UNITS) {
+      nrSpellings += unit.spellings.length;
+    }
+    int capacity = Integer.highestOneBit(nrSpellings * 4);
+    spellings = new String[capacity];
+    spellingUnits = new Unit[capacity];
+    spellingHashes = new int[capacity];
+    for(Unit unit : UNITS) {
+      for(String spelling : unit.spellings) {
+        int hash = hashIgnoreCase(spelling, 0, spelling.length());
+        int slot = hash & (capacity - 1);
+        while(spellings[slot] != null) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        spellings[slot] = spelling;
+        spellingUnits[slot] = unit;
+        spellingHashes[slot] = hash;
+      }
+    }
+  }
+
+  /**
+   * The dimensions of quantities, each with its SI unit
+   */
+  public enum Dimension {
+    TEMPERATURE("K"), LENGTH("m"), TIME("s");
+
+    @Nonnull private final String unit;
+
+    Dimension(@Nonnull String unit) {
+      this.unit = checkNotNull(unit);
+    }
+
+    @Nonnull
+    public String getUnit() {
+      return unit;
+    }
+
+    /**
+     * Get the dimension with the given name, ignoring case, e.g., "length"
+     */
+    @Nonnull
+    public static Optional<Dimension> forName(@Nonnull String name) {
+      for(Dimension dimension : values()) {
+        if(dimension.name().equalsIgnoreCase(name.trim())) {
+          return Optional.of(dimension);
+        }
+      }
+      return Optional.empty();
+    }
+  }
+
+  private final double value;
+  @Nonnull private final Dimension dimension;
+
+  public Quantity(double value, @Nonnull Dimension dimension) {
+    this.value = value;
+    this.dimension = checkNotNull(dimension);
+  }
+
+  /**
+   * Get the value in the SI unit of the dimension
+   */
+  public double getValue() {
+    return value;
+  }
+
+  @Nonnull
+  public Dimension getDimension() {
+    return dimension;
+  }
+
+  /**
+   * Parse a number followed by a unit, with or without spaces between them, e.g., "25 C", "-3.5e2 mm" or "3 years".
+   * The unit is required
+   */
+  @Nonnull
+  public static Optional<Quantity> parse(@Nonnull CharSequence value) {
+    checkNotNull(value);
+    int length = value.length(), position = 0;
+    boolean negative = false;
+    if(position < length && (value.charAt(position) == '-' || value.charAt(position) == '+')) {
+      negative = value.charAt(position++) == '-';
+    }
+    long mantissa = 0;
+    int exponent = 0, digits = 0, significantDigits = 0;
+    boolean fraction = false;
+    for(; position < length; position++) {
+      char c = value.charAt(position);
+      if(c >= '0' && c <= '9') {
+        digits++;
+        if(significantDigits < MAX_MANTISSA_DIGITS) {
+          mantissa = mantissa * 10 + (c - '0');
+          if(mantissa != 0) {
+            significantDigits++;
+          }
+          if(fraction) {
+            exponent--;
+          }
+        } else if(!fraction) {
+          // integer digits beyond the precision of the mantissa only scale it
+          exponent++;
+        }
+      } else if(c == '.' && !fraction) {
+        fraction = true;
+      } else {
+        break;
+      }
+    }
+    if(digits == 0) {
+      return Optional.empty();
+    }
+    if(position < length && (value.charAt(position) == 'e' || value.charAt(position) == 'E') &&
+        position + 1 < length && isExponentStart(value, position + 1)) {
+      position++;
+      boolean negativeExponent = false;
+      if(value.charAt(position) == '-' || value.charAt(position) == '+') {
+        negativeExponent = value.charAt(position++) == '-';
+      }
+      int explicitExponent = 0;
+      while(position < length && value.charAt(position) >= '0' && value.charAt(position) <= '9') {
+        explicitExponent = Math.min(explicitExponent * 10 + (value.charAt(position++) - '0'), 1000);
+      }
+      exponent += (negativeExponent ? -explicitExponent : explicitExponent);
+    }
+    int numberEnd = position;
+    while(position < length && value.charAt(position) == ' ') {
+      position++;
+    }
+    Unit unit = getUnit(value, position, length);
+    if(unit == null) {
+      return Optional.empty();
+    }
+    double number;
+    if(mantissa < EXACT_MANTISSA_LIMIT && Math.abs(exponent) < POWERS_OF_TEN.length) {
+      // a mantissa and power of ten that are both exact as doubles give a correctly rounded result
+      number = (exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent]);
+      number = (negative ? -number : number);
+    } else {
+      // the rare numbers with more digits or larger exponents are left to the JDK to round correctly
+      number = Double.parseDouble(value.subSequence(0, numberEnd).toString());
+    }
+    return Optional.of(new Quantity(unit.toSi(number), unit.dimension));
+  }
+
+  /**
+   * Parse a quantity of the given dimension
+   */
+  @Nonnull
+  public static Optional<Quantity> parse(@Nonnull CharSequence value, @Nonnull Dimension dimension) {
+    Optional<Quantity> quantity = parse(value);
+    return (quantity.isPresent() && quantity.get().dimension == checkNotNull(dimension) ? quantity : Optional.empty());
+  }
+
+  private static boolean isExponentStart(@Nonnull CharSequence value, int position) {
+    char c = value.charAt(position);
+    if((c == '-' || c == '+') && position + 1 < value.length()) {
+      c = value.charAt(position + 1);
+    }
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Find the unit spelled by the characters from start (inclusive) to end (exclusive), ignoring case
+   */
+  @Nullable
+  private static Unit getUnit(@Nonnull CharSequence value, int start, int end) {
+    if(start == end) {
+      return null;
+    }
+    int hash = hashIgnoreCase(value, start, end), mask = spellings.length - 1;
+    for(int slot = hash & mask; spellings[slot] != null; slot = (slot + 1) & mask) {
+      if(spellingHashes[slot] == hash && regionEqualsIgnoreCase(value, start, end, spellings[slot])) {
+        return spellingUnits[slot];
+      }
+    }
+    return null;
+  }
+
+  private static int hashIgnoreCase(@Nonnull CharSequence value, int start, int end) {
+    int hash = 0;
+    for(int i = start; i < end; i++) {
+      hash = 31 * hash + Character.toLowerCase(value.charAt(i));
+    }
+    // spread the bits, as the low bits of string hashes of short, similar strings collide
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static boolean regionEqualsIgnoreCase(@Nonnull CharSequence value, int start, int end,
+                                                @Nonnull String spelling) {
+    if(end - start != spelling.length()) {
+      return false;
+    }
+    for(int i = 0; i < spelling.length(); i++) {
+      if(Character.toLowerCase(value.charAt(start + i)) != spelling.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A unit, whose values are converted to the SI unit of its dimension as value * factor + offset
+   */
+  private static final class Unit {
+    @Nonnull private final Dimension dimension;
+    private final double factor, offset;
+    @Nonnull private final String[] spellings;
+
+    Unit(@Nonnull Dimension dimension, double factor, double offset, @Nonnull String... spellings) {
+      this.dimension = checkNotNull(dimension);
+      this.factor = factor;
+      this.offset = offset;
+      this.spellings = new String[spellings.length];
+      for(int i = 0; i < spellings.length; i++) {
+        this.spellings[i] = spellings[i].toLowerCase(Locale.ROOT);
+      }
+    }
+
+    double toSi(double value) {
+      return value * factor + offset;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Quantity)) {
+      return false;
+    }
+    Quantity that = (Quantity) o;
+    return value == that.value && dimension == that.dimension;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(value, dimension);
+  }
+
+  /**
+   * Get the quantity as its value followed by its SI unit, e.g., "298.15 K"
+   */
+  @Nonnull
+  public String toSiString() {
+    return value + " " + dimension.getUnit();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("value", value)
+        .add("dimension", dimension)
+        .toString();
+  }
+}
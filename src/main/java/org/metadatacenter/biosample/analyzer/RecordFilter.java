@@ -0,0 +1,150 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A filter on BioSample records by package, organism taxonomy identifier, owner, accession range and a window of
+ * publication, last update or submission dates. Each condition can be checked on its own, so that parsers can reject
+ * a record as soon as the part of the record it depends on has been read, without building the rest of the record.
+ * Conditions that are not set accept every record. Use builder {@link RecordFilterBuilder}
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@Immutable
+public final class RecordFilter {
+  @Nonnull private static final RecordFilter ALL = new RecordFilterBuilder().build();
+  @Nonnull private final ImmutableSet<String> packageNames, taxonomyIds, ownerNames;
+  @Nullable private final String firstAccession, lastAccession;
+  @Nonnull private final DateField dateField;
+  @Nullable private final String firstDate, lastDate;
+
+  /**
+   * Dates of a record that the date window applies to
+   */
+  public enum DateField {
+    PUBLICATION_DATE, LAST_UPDATE, SUBMISSION_DATE
+  }
+
+  /**
+   * Package-private constructor. Use builder {@link RecordFilterBuilder}
+   */
+  RecordFilter(@Nonnull Set<String> packageNames, @Nonnull Set<String> taxonomyIds, @Nonnull Set<String> ownerNames,
+               @Nullable String firstAccession, @Nullable String lastAccession, @Nonnull DateField dateField,
+               @Nullable String firstDate, @Nullable String lastDate) {
+    this.packageNames = ImmutableSet.copyOf(checkNotNull(packageNames));
+    this.taxonomyIds = ImmutableSet.copyOf(checkNotNull(taxonomyIds));
+    this.ownerNames = ImmutableSet.copyOf(checkNotNull(ownerNames));
+    this.firstAccession = firstAccession;
+    this.lastAccession = lastAccession;
+    this.dateField = checkNotNull(dateField);
+    this.firstDate = firstDate;
+    this.lastDate = lastDate;
+  }
+
+  /**
+   * Get a filter that accepts every record
+   */
+  @Nonnull
+  public static RecordFilter all() {
+    return ALL;
+  }
+
+  /**
+   * Check whether the filter accepts the given accession, publication date, last update and submission date, which
+   * are attributes of the BioSample element itself. Dates are ISO 8601 timestamps, and the date window includes
+   * every timestamp that starts with its last date, e.g., a window ending at 2016-12 includes 2016-12-31T10:00:00
+   */
+  public boolean acceptsHeader(@Nonnull String accession, @Nonnull String publicationDate, @Nonnull String lastUpdate,
+                               @Nonnull String submissionDate) {
+    if(firstAccession != null && accession.compareTo(firstAccession) < 0) {
+      return false;
+    }
+    if(lastAccession != null && accession.compareTo(lastAccession) > 0) {
+      return false;
+    }
+    if(firstDate == null && lastDate == null) {
+      return true;
+    }
+    String date;
+    switch (dateField) {
+      case PUBLICATION_DATE:
+        date = publicationDate;
+        break;
+      case LAST_UPDATE:
+        date = lastUpdate;
+        break;
+      default:
+        date = submissionDate;
+    }
+    if(firstDate != null && date.compareTo(firstDate) < 0) {
+      return false;
+    }
+    return lastDate == null || date.compareTo(lastDate) <= 0 || date.startsWith(lastDate);
+  }
+
+  /**
+   * Check whether the filter accepts the given package name. A package name set on the filter without a version
+   * also accepts every version of that package, e.g., MIMS.me.soil accepts MIMS.me.soil.4.0
+   */
+  public boolean acceptsPackageName(@Nonnull String packageName) {
+    if(packageNames.isEmpty() || packageNames.contains(packageName)) {
+      return true;
+    }
+    for(String name : packageNames) {
+      if(packageName.startsWith(name) && packageName.length() > name.length() &&
+          packageName.charAt(name.length()) == '.') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean acceptsTaxonomyId(@Nonnull String taxonomyId) {
+    return taxonomyIds.isEmpty() || taxonomyIds.contains(taxonomyId);
+  }
+
+  public boolean acceptsOwnerName(@Nonnull String ownerName) {
+    return ownerNames.isEmpty() || ownerNames.contains(ownerName);
+  }
+
+  /**
+   * Check whether the filter accepts the given record, checking all conditions
+   */
+  public boolean accepts(@Nonnull Record record) {
+    checkNotNull(record);
+    return acceptsHeader(record.getAccession(), record.getPublicationDate(), record.getLastUpdate(),
+        record.getSubmissionDate()) && acceptsPackageName(record.getPackageName()) &&
+        acceptsTaxonomyId(record.getOrganismTaxonomyId()) && acceptsOwnerName(record.getOwnerName());
+  }
+
+  /**
+   * Check whether the filter only accepts some records based on their package, taxonomy identifier or owner
+   */
+  public boolean hasContentConditions() {
+    return !packageNames.isEmpty() || !taxonomyIds.isEmpty() || !ownerNames.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("packageNames", packageNames)
+        .add("taxonomyIds", taxonomyIds)
+        .add("ownerNames", ownerNames)
+        .add("firstAccession", firstAccession)
+        .add("lastAccession", lastAccession)
+        .add("dateField", dateField)
+        .add("firstDate", firstDate)
+        .add("lastDate", lastDate)
+        .toString();
+  }
+}
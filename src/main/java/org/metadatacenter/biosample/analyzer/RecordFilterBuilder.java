@@ -0,0 +1,67 @@
+package org.metadatacenter.biosample.analyzer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public class RecordFilterBuilder {
+  @Nonnull private Set<String> packageNames = new HashSet<>();
+  @Nonnull private Set<String> taxonomyIds = new HashSet<>();
+  @Nonnull private Set<String> ownerNames = new HashSet<>();
+  @Nullable private String firstAccession, lastAccession;
+  @Nonnull private RecordFilter.DateField dateField = RecordFilter.DateField.SUBMISSION_DATE;
+  @Nullable private String firstDate, lastDate;
+
+  public RecordFilterBuilder() {
+    // no-arguments constructor
+  }
+
+  public RecordFilterBuilder addPackageName(@Nonnull String packageName) {
+    packageNames.add(checkNotNull(packageName));
+    return this;
+  }
+
+  public RecordFilterBuilder addTaxonomyId(@Nonnull String taxonomyId) {
+    taxonomyIds.add(checkNotNull(taxonomyId));
+    return this;
+  }
+
+  public RecordFilterBuilder addOwnerName(@Nonnull String ownerName) {
+    ownerNames.add(checkNotNull(ownerName));
+    return this;
+  }
+
+  /**
+   * Only accept accessions between the given accessions, inclusive. Either end may be null to leave it open
+   */
+  public RecordFilterBuilder setAccessionRange(@Nullable String firstAccession, @Nullable String lastAccession) {
+    this.firstAccession = firstAccession;
+    this.lastAccession = lastAccession;
+    return this;
+  }
+
+  /**
+   * Only accept records with the given date between the given dates, inclusive. Either end may be null to leave it
+   * open
+   */
+  public RecordFilterBuilder setDateWindow(@Nonnull RecordFilter.DateField dateField, @Nullable String firstDate,
+                                           @Nullable String lastDate) {
+    this.dateField = checkNotNull(dateField);
+    this.firstDate = firstDate;
+    this.lastDate = lastDate;
+    return this;
+  }
+
+  public RecordFilter build() {
+    return new RecordFilter(packageNames, taxonomyIds, ownerNames, firstAccession, lastAccession, dateField,
+        firstDate, lastDate);
+  }
+}
@@ -3,38 +3,44 @@ package org.metadatacenter.biosample.analyzer;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * A BioSample record. Fields that take few distinct values across records, as well as the names of attributes, are
+ * stored as identifiers into the global {@link StringDictionary}. Attributes are stored in parallel primitive arrays
+ * and served through a lightweight read-only map view, which creates {@link Attribute} objects on access.
+ *
  * @author Rafael Gonçalves <br>
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
 @Immutable
 public final class RecordImpl implements Record {
+  private static final int ATTRIBUTE_KEY = 0, ATTRIBUTE_NAME = 1, ATTRIBUTE_ATTRIBUTE_NAME = 2,
+      ATTRIBUTE_DISPLAY_NAME = 3, ATTRIBUTE_STRIDE = 4;
+  @Nonnull private static final StringDictionary dictionary = StringDictionary.global();
   @Nonnull private final String id;
-  @Nonnull private final String access;
+  private final int access;
   @Nonnull private final String publicationDate;
   @Nonnull private final String lastUpdate;
   @Nonnull private final String submissionDate;
   @Nonnull private final String accession;
-  @Nonnull private final String organismTaxonomyId;
-  @Nonnull private final String organismTaxonomyName;
-  @Nonnull private final String organismName;
-  @Nonnull private final String modelName;
-  @Nonnull private final String packageDisplayName;
-  @Nonnull private final String packageName;
-  @Nonnull private final String status;
+  private final int organismTaxonomyId;
+  private final int organismTaxonomyName;
+  private final int organismName;
+  private final int modelName;
+  private final int packageDisplayName;
+  private final int packageName;
+  private final int status;
   @Nonnull private final String statusDate;
-  @Nonnull private final String ownerName;
-  @Nonnull private final ImmutableMap<String,Attribute> attributes;
+  private final int ownerName;
+  @Nonnull private final int[] attributeNames;
+  @Nonnull private final String[] attributeValues;
   @Nonnull private final ImmutableList<Link> links;
 
   /**
@@ -47,21 +53,32 @@ public final class RecordImpl implements Record {
              @Nonnull String packageName, @Nonnull String status, @Nonnull String statusDate,
              @Nonnull String ownerName, @Nonnull Map<String,Attribute> attributes, @Nonnull List<Link> links) {
    this.id = checkNotNull(id);
-   this.access = checkNotNull(access);
+   this.access = dictionary.getId(access);
    this.publicationDate = checkNotNull(publicationDate);
    this.lastUpdate = checkNotNull(lastUpdate);
    this.submissionDate = checkNotNull(submissionDate);
    this.accession = checkNotNull(accession);
-   this.organismTaxonomyId = checkNotNull(organismTaxonomyId);
-   this.organismTaxonomyName = checkNotNull(organismTaxonomyName);
-   this.organismName = checkNotNull(organismName);
-   this.modelName = checkNotNull(modelName);
-   this.packageDisplayName = checkNotNull(packageDisplayName);
-   this.packageName = checkNotNull(packageName);
-   this.status = checkNotNull(status);
+   this.organismTaxonomyId = dictionary.getId(organismTaxonomyId);
+   this.organismTaxonomyName = dictionary.getId(organismTaxonomyName);
+   this.organismName = dictionary.getId(organismName);
+   this.modelName = dictionary.getId(modelName);
+   this.packageDisplayName = dictionary.getId(packageDisplayName);
+   this.packageName = dictionary.getId(packageName);
+   this.status = dictionary.getId(status);
    this.statusDate = checkNotNull(statusDate);
-   this.ownerName = checkNotNull(ownerName);
-   this.attributes = ImmutableMap.copyOf(checkNotNull(attributes));
+   this.ownerName = dictionary.getId(ownerName);
+   this.attributeNames = new int[ATTRIBUTE_STRIDE * attributes.size()];
+   this.attributeValues = new String[attributes.size()];
+   int i = 0;
+   for(Map.Entry<String,Attribute> entry : attributes.entrySet()) {
+     Attribute attribute = entry.getValue();
+     attributeNames[ATTRIBUTE_STRIDE * i + ATTRIBUTE_KEY] = dictionary.getId(entry.getKey());
+     attributeNames[ATTRIBUTE_STRIDE * i + ATTRIBUTE_NAME] = dictionary.getId(attribute.getName());
+     attributeNames[ATTRIBUTE_STRIDE * i + ATTRIBUTE_ATTRIBUTE_NAME] = dictionary.getId(attribute.getAttributeName());
+     attributeNames[ATTRIBUTE_STRIDE * i + ATTRIBUTE_DISPLAY_NAME] = dictionary.getId(attribute.getDisplayName());
+     attributeValues[i] = checkNotNull(attribute.getValue());
+     i++;
+   }
    this.links = ImmutableList.copyOf(checkNotNull(links));
   }
 
@@ -74,7 +91,7 @@ public final class RecordImpl implements Record {
   @Override
   @Nonnull
   public String getAccess() {
-    return access;
+    return dictionary.getString(access);
   }
 
   @Override
@@ -104,43 +121,43 @@ public final class RecordImpl implements Record {
   @Override
   @Nonnull
   public String getOrganismTaxonomyId() {
-    return organismTaxonomyId;
+    return dictionary.getString(organismTaxonomyId);
   }
 
   @Override
   @Nonnull
   public String getOrganismTaxonomyName() {
-    return organismTaxonomyName;
+    return dictionary.getString(organismTaxonomyName);
   }
 
   @Override
   @Nonnull
   public String getOrganismName() {
-    return organismName;
+    return dictionary.getString(organismName);
   }
 
   @Override
   @Nonnull
   public String getModelName() {
-    return modelName;
+    return dictionary.getString(modelName);
   }
 
   @Override
   @Nonnull
   public String getPackageDisplayName() {
-    return packageDisplayName;
+    return dictionary.getString(packageDisplayName);
   }
 
   @Override
   @Nonnull
   public String getPackageName() {
-    return packageName;
+    return dictionary.getString(packageName);
   }
 
   @Override
   @Nonnull
   public String getStatus() {
-    return status;
+    return dictionary.getString(status);
   }
 
   @Override
@@ -152,13 +169,13 @@ public final class RecordImpl implements Record {
   @Override
   @Nonnull
   public String getOwnerName() {
-    return ownerName;
+    return dictionary.getString(ownerName);
   }
 
   @Override
   @Nonnull
   public Map<String, Attribute> getAttributes() {
-    return attributes;
+    return new AttributeMap();
   }
 
   @Override
@@ -167,6 +184,87 @@ public final class RecordImpl implements Record {
     return links;
   }
 
+  @Nonnull
+  private Attribute getAttribute(int index) {
+    int offset = ATTRIBUTE_STRIDE * index;
+    return new AttributeImpl(dictionary.getString(attributeNames[offset + ATTRIBUTE_NAME]),
+        dictionary.getString(attributeNames[offset + ATTRIBUTE_ATTRIBUTE_NAME]),
+        dictionary.getString(attributeNames[offset + ATTRIBUTE_DISPLAY_NAME]), attributeValues[index]);
+  }
+
+  /**
+   * Find the index of the attribute with the given key, or -1 if the record has no such attribute
+   */
+  private int findAttribute(Object key) {
+    if(!(key instanceof String)) {
+      return -1;
+    }
+    int keyId = dictionary.find((String) key);
+    if(keyId >= 0) {
+      for(int i = 0; i < attributeValues.length; i++) {
+        if(attributeNames[ATTRIBUTE_STRIDE * i + ATTRIBUTE_KEY] == keyId) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * A read-only view of the attributes of the record, in the order in which they were given to the record
+   */
+  private final class AttributeMap extends AbstractMap<String,Attribute> {
+
+    @Override
+    public int size() {
+      return attributeValues.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return findAttribute(key) >= 0;
+    }
+
+    @Override
+    public Attribute get(Object key) {
+      int index = findAttribute(key);
+      return (index >= 0 ? getAttribute(index) : null);
+    }
+
+    @Override
+    @Nonnull
+    public Set<Entry<String,Attribute>> entrySet() {
+      return new AbstractSet<Entry<String,Attribute>>() {
+        @Override
+        public int size() {
+          return attributeValues.length;
+        }
+
+        @Override
+        @Nonnull
+        public Iterator<Entry<String,Attribute>> iterator() {
+          return new Iterator<Entry<String,Attribute>>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+              return index < attributeValues.length;
+            }
+
+            @Override
+            public Entry<String,Attribute> next() {
+              if(!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              String key = dictionary.getString(attributeNames[ATTRIBUTE_STRIDE * index + ATTRIBUTE_KEY]);
+              return new SimpleImmutableEntry<>(key, getAttribute(index++));
+            }
+          };
+        }
+      };
+    }
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -176,50 +274,70 @@ public final class RecordImpl implements Record {
       return false;
     }
     RecordImpl that = (RecordImpl) o;
-    return Objects.equal(id, that.id) &&
-        Objects.equal(access, that.access) &&
+    return access == that.access &&
+        organismTaxonomyId == that.organismTaxonomyId &&
+        organismTaxonomyName == that.organismTaxonomyName &&
+        organismName == that.organismName &&
+        modelName == that.modelName &&
+        packageDisplayName == that.packageDisplayName &&
+        packageName == that.packageName &&
+        status == that.status &&
+        ownerName == that.ownerName &&
+        Objects.equal(id, that.id) &&
         Objects.equal(publicationDate, that.publicationDate) &&
         Objects.equal(lastUpdate, that.lastUpdate) &&
         Objects.equal(submissionDate, that.submissionDate) &&
         Objects.equal(accession, that.accession) &&
-        Objects.equal(organismTaxonomyId, that.organismTaxonomyId) &&
-        Objects.equal(organismTaxonomyName, that.organismTaxonomyName) &&
-        Objects.equal(organismName, that.organismName) &&
-        Objects.equal(modelName, that.modelName) &&
-        Objects.equal(packageDisplayName, that.packageDisplayName) &&
-        Objects.equal(packageName, that.packageName) &&
-        Objects.equal(status, that.status) &&
         Objects.equal(statusDate, that.statusDate) &&
-        Objects.equal(ownerName, that.ownerName) &&
-        Objects.equal(attributes, that.attributes) &&
+        attributesEqual(that) &&
         Objects.equal(links, that.links);
   }
 
+  private boolean attributesEqual(@Nonnull RecordImpl that) {
+    if(attributeValues.length != that.attributeValues.length) {
+      return false;
+    }
+    if(Arrays.equals(attributeNames, that.attributeNames) && Arrays.equals(attributeValues, that.attributeValues)) {
+      return true;
+    }
+    // the same attributes may have been given in a different order
+    return getAttributes().equals(that.getAttributes());
+  }
+
   @Override
   public int hashCode() {
+    // the attributes hash does not depend on their order, as in equals
+    int attributesHash = 0;
+    for(int i = 0; i < attributeValues.length; i++) {
+      int offset = ATTRIBUTE_STRIDE * i;
+      attributesHash += Objects.hashCode(attributeNames[offset + ATTRIBUTE_KEY], attributeNames[offset + ATTRIBUTE_NAME],
+          attributeNames[offset + ATTRIBUTE_ATTRIBUTE_NAME], attributeNames[offset + ATTRIBUTE_DISPLAY_NAME],
+          attributeValues[i]);
+    }
     return Objects.hashCode(id, access, publicationDate, lastUpdate, submissionDate, accession, organismTaxonomyId,
-        organismTaxonomyName, organismName, modelName, packageDisplayName, packageName, status, statusDate, ownerName, attributes, links);
+        organismTaxonomyName, organismName, modelName, packageDisplayName, packageName, status, statusDate, ownerName,
+        attributesHash, links);
   }
 
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
         .add("id", id)
-        .add("access", access)
+        .add("access", getAccess())
         .add("publicationDate", publicationDate)
         .add("lastUpdate", lastUpdate)
         .add("submissionDate", submissionDate)
         .add("accession", accession)
-        .add("organismTaxonomyId", organismTaxonomyId)
-        .add("organismTaxonomyName", organismTaxonomyName)
-        .add("organismName", organismName)
-        .add("modelName", modelName)
-        .add("packageDisplayName", packageDisplayName)
-        .add("packageName", packageName)
-        .add("status", status)
+        .add("organismTaxonomyId", getOrganismTaxonomyId())
+        .add("organismTaxonomyName", getOrganismTaxonomyName())
+        .add("organismName", getOrganismName())
+        .add("modelName", getModelName())
+        .add("packageDisplayName", getPackageDisplayName())
+        .add("packageName", getPackageName())
+        .add("status", getStatus())
         .add("statusDate", statusDate)
-        .add("ownerName", ownerName)
-        .add("attributes", attributes)
+        .add("ownerName", getOwnerName())
+        .add("attributes", getAttributes())
         .add("links", links)
         .toString();
   }
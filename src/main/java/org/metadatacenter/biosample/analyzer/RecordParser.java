@@ -8,12 +8,18 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * Parses BioSample records from an XML document, optionally keeping only the records accepted by a
+ * {@link RecordFilter}. The filter is checked on the BioSample element and its description, owner and package before
+ * any attributes or links of the record are read, so rejected records are never fully built. To skip rejected records
+ * without holding the whole document in memory, use {@link StreamingRecordParser}
+ *
  * @author Rafael Gonçalves <br>
  * Center for Biomedical Informatics Research <br>
  * Stanford University
@@ -21,12 +27,18 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class RecordParser implements Parser {
   @Nonnull private static final Logger logger = LoggerFactory.getLogger(RecordParser.class.getName());
   @Nonnull private final Document document;
+  @Nonnull private final RecordFilter filter;
   @Nonnull private RecordBuilder recordBuilder;
   @Nonnull private List<Record> records = new ArrayList<>();
 
 
-  public RecordParser(@Nonnull Document document) {
+  public RecordParser(@Nonnull Document document, @Nonnull RecordFilter filter) {
     this.document = checkNotNull(document);
+    this.filter = checkNotNull(filter);
+  }
+
+  public RecordParser(@Nonnull Document document) {
+    this(document, RecordFilter.all());
   }
 
   public void processDocument() {
@@ -47,7 +59,17 @@ public class RecordParser implements Parser {
     }
   }
 
+  /**
+   * Process the given BioSample element
+   *
+   * @return The record, or null if the filter rejects it
+   */
+  @Nullable
   public Record processBioSample(Element element) {
+    if(!filter.acceptsHeader(element.getAttribute("accession"), element.getAttribute("publication_date"),
+        element.getAttribute("last_update"), element.getAttribute("submission_date"))) {
+      return null;
+    }
     recordBuilder.setAccess(element.getAttribute("access"))
         .setPublicationDate(element.getAttribute("publication_date"))
         .setLastUpdate(element.getAttribute("last_update"))
@@ -55,37 +77,55 @@ public class RecordParser implements Parser {
         .setId(element.getAttribute("id"))
         .setAccession(element.getAttribute("accession"));
 
+    // attributes and links are only read once the filter has accepted the rest of the record
+    List<Element> deferred = new ArrayList<>();
     NodeList children = element.getChildNodes();
     for(int i = 0; i < children.getLength(); i++) {
       Node child = children.item(i);
       String nodeName = child.getNodeName();
       if(nodeName.equalsIgnoreCase("description")) {
-        getOrganismDescription((Element) child);
+        if(!getOrganismDescription((Element) child)) {
+          return null;
+        }
       } else if(nodeName.equalsIgnoreCase("owner")) {
-        getOwner((Element) child);
+        if(!getOwner((Element) child)) {
+          return null;
+        }
       } else if(nodeName.equalsIgnoreCase("models")) {
         getModel((Element) child);
       } else if(nodeName.equalsIgnoreCase("package")) {
-        getPackage((Element) child);
-      } else if(nodeName.equalsIgnoreCase("attributes")) {
-        getAttributes((Element) child);
+        if(!getPackage((Element) child)) {
+          return null;
+        }
+      } else if(nodeName.equalsIgnoreCase("attributes") || nodeName.equalsIgnoreCase("links")) {
+        deferred.add((Element) child);
       } else if(nodeName.equalsIgnoreCase("status")) {
         getStatus((Element) child);
-      } else if(nodeName.equalsIgnoreCase("links")) {
-        getLinks((Element) child);
       }
     }
-    return recordBuilder.build();
+    for(Element child : deferred) {
+      if(child.getNodeName().equalsIgnoreCase("attributes")) {
+        getAttributes(child);
+      } else {
+        getLinks(child);
+      }
+    }
+    Record record = recordBuilder.build();
+    // records that lack one of the filtered elements altogether are only rejected once built
+    return filter.hasContentConditions() && !filter.accepts(record) ? null : record;
   }
 
-  private void getOrganismDescription(Element element) {
+  private boolean getOrganismDescription(Element element) {
+    boolean accepted = true;
     NodeList children = element.getChildNodes();
     for(int i = 0; i < children.getLength(); i++) {
       Node child = children.item(i);
       if(child.getNodeName().equalsIgnoreCase("organism")) {
         Element organism = (Element) child;
-        recordBuilder.setOrganismTaxonomyId(organism.getAttribute("taxonomy_id"))
+        String taxonomyId = organism.getAttribute("taxonomy_id");
+        recordBuilder.setOrganismTaxonomyId(taxonomyId)
             .setOrganismTaxonomyName(organism.getAttribute("taxonomy_name"));
+        accepted = accepted && filter.acceptsTaxonomyId(taxonomyId);
 
         NodeList organismChildren = organism.getChildNodes();
         for(int j = 0; j < organismChildren.getLength(); j++) {
@@ -96,16 +136,21 @@ public class RecordParser implements Parser {
         }
       }
     }
+    return accepted;
   }
 
-  private void getOwner(Element element) {
+  private boolean getOwner(Element element) {
+    boolean accepted = true;
     NodeList children = element.getChildNodes();
     for(int i = 0; i < children.getLength(); i++) {
       Node child = children.item(i);
       if(child.getNodeName().equalsIgnoreCase("name")) {
-        recordBuilder.setOwnerName(child.getTextContent());
+        String ownerName = child.getTextContent();
+        recordBuilder.setOwnerName(ownerName);
+        accepted = filter.acceptsOwnerName(ownerName);
       }
     }
+    return accepted;
   }
 
   private void getModel(Element element) {
@@ -118,9 +163,11 @@ public class RecordParser implements Parser {
     }
   }
 
-  private void getPackage(Element element) {
+  private boolean getPackage(Element element) {
+    String packageName = element.getTextContent();
     recordBuilder.setPackageDisplayName(element.getAttribute("display_name"))
-        .setPackageName(element.getTextContent());
+        .setPackageName(packageName);
+    return filter.acceptsPackageName(packageName);
   }
 
   private void getStatus(Element element) {
@@ -0,0 +1,110 @@
+package org.metadatacenter.biosample.analyzer;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import javax.annotation.Nonnull;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A query over the records in a {@link RecordStore}, evaluated as a combination of the bitmap indexes of the store.
+ * For example, the soil records that lack a filled in environmental material are given by:
+ * <pre>
+ *   RecordQuery.inPackage("MIMS.me.soil").andNot(RecordQuery.hasFilledInAttribute("env_material"))
+ * </pre>
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@FunctionalInterface
+public interface RecordQuery {
+
+  /**
+   * Get the numbers of the records in the given store that match the query. The result may be one of the indexes of
+   * the store, so it must not be changed; use {@link RecordStore#select(RecordQuery)} to get a copy
+   */
+  @Nonnull
+  RoaringBitmap evaluate(@Nonnull RecordStore store);
+
+  @Nonnull
+  default RecordQuery and(@Nonnull RecordQuery other) {
+    checkNotNull(other);
+    return store -> RoaringBitmap.and(evaluate(store), other.evaluate(store));
+  }
+
+  @Nonnull
+  default RecordQuery or(@Nonnull RecordQuery other) {
+    checkNotNull(other);
+    return store -> RoaringBitmap.or(evaluate(store), other.evaluate(store));
+  }
+
+  @Nonnull
+  default RecordQuery andNot(@Nonnull RecordQuery other) {
+    checkNotNull(other);
+    return store -> RoaringBitmap.andNot(evaluate(store), other.evaluate(store));
+  }
+
+  @Nonnull
+  default RecordQuery not() {
+    return store -> RoaringBitmap.flip(evaluate(store), 0L, (long) store.size());
+  }
+
+  /**
+   * Match all records
+   */
+  @Nonnull
+  static RecordQuery all() {
+    return RecordStore::getAllRecords;
+  }
+
+  /**
+   * Match the records of the given package. A package name without a version matches every version of the package
+   */
+  @Nonnull
+  static RecordQuery inPackage(@Nonnull String packageName) {
+    checkNotNull(packageName);
+    return store -> store.getPackageRecords(packageName);
+  }
+
+  /**
+   * Match the records that have the given attribute, whether or not it is filled in
+   */
+  @Nonnull
+  static RecordQuery hasAttribute(@Nonnull String attributeName) {
+    checkNotNull(attributeName);
+    return store -> store.getAttributeRecords(attributeName);
+  }
+
+  @Nonnull
+  static RecordQuery hasFilledInAttribute(@Nonnull String attributeName) {
+    checkNotNull(attributeName);
+    return store -> store.getFilledInAttributeRecords(attributeName);
+  }
+
+  /**
+   * Match the records whose value of the given attribute is valid. Only records added with validation results can
+   * match
+   */
+  @Nonnull
+  static RecordQuery hasValidAttribute(@Nonnull String attributeName) {
+    checkNotNull(attributeName);
+    return store -> store.getValidAttributeRecords(attributeName);
+  }
+
+  /**
+   * Match the valid records. Only records added with validation results can match
+   */
+  @Nonnull
+  static RecordQuery isValid() {
+    return RecordStore::getValidRecords;
+  }
+
+  /**
+   * Match the records that were added with validation results
+   */
+  @Nonnull
+  static RecordQuery isValidated() {
+    return RecordStore::getValidatedRecords;
+  }
+}
@@ -0,0 +1,161 @@
+package org.metadatacenter.biosample.analyzer;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Parses textual record queries, such as {@code package:MIMS.me.soil and not filled:env_material}. A query combines
+ * the following conditions with {@code and}, {@code or}, {@code not} and parentheses, where {@code and} binds tighter
+ * than {@code or}:
+ * <ul>
+ *   <li>{@code all}, {@code valid} and {@code validated}</li>
+ *   <li>{@code package:NAME}, {@code has:ATTRIBUTE}, {@code filled:ATTRIBUTE} and {@code valid:ATTRIBUTE}, where names
+ *   that contain spaces or parentheses are written in double quotes</li>
+ * </ul>
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class RecordQueryParser {
+  @Nonnull private final List<String> tokens;
+  private int position = 0;
+
+  private RecordQueryParser(@Nonnull List<String> tokens) {
+    this.tokens = checkNotNull(tokens);
+  }
+
+  /**
+   * Parse the given query
+   *
+   * @throws IllegalArgumentException if the query is not well-formed
+   */
+  @Nonnull
+  public static RecordQuery parse(@Nonnull String query) {
+    RecordQueryParser parser = new RecordQueryParser(tokenize(checkNotNull(query)));
+    RecordQuery recordQuery = parser.parseDisjunction();
+    if(parser.position < parser.tokens.size()) {
+      throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position) + "'");
+    }
+    return recordQuery;
+  }
+
+  @Nonnull
+  private RecordQuery parseDisjunction() {
+    RecordQuery query = parseConjunction();
+    while(accept("or")) {
+      query = query.or(parseConjunction());
+    }
+    return query;
+  }
+
+  @Nonnull
+  private RecordQuery parseConjunction() {
+    RecordQuery query = parseNegation();
+    while(accept("and")) {
+      query = query.and(parseNegation());
+    }
+    return query;
+  }
+
+  @Nonnull
+  private RecordQuery parseNegation() {
+    if(accept("not")) {
+      return parseNegation().not();
+    }
+    if(accept("(")) {
+      RecordQuery query = parseDisjunction();
+      if(!accept(")")) {
+        throw new IllegalArgumentException("Missing ')'");
+      }
+      return query;
+    }
+    if(position == tokens.size()) {
+      throw new IllegalArgumentException("Unexpected end of query");
+    }
+    return parseCondition(tokens.get(position++));
+  }
+
+  @Nonnull
+  private static RecordQuery parseCondition(@Nonnull String token) {
+    int separator = token.indexOf(':');
+    if(separator < 0) {
+      switch (token.toLowerCase()) {
+        case "all":
+          return RecordQuery.all();
+        case "valid":
+          return RecordQuery.isValid();
+        case "validated":
+          return RecordQuery.isValidated();
+        default:
+          throw new IllegalArgumentException("Unknown condition '" + token + "'");
+      }
+    }
+    String name = unquote(token.substring(separator + 1));
+    switch (token.substring(0, separator).toLowerCase()) {
+      case "package":
+        return RecordQuery.inPackage(name);
+      case "has":
+        return RecordQuery.hasAttribute(name);
+      case "filled":
+        return RecordQuery.hasFilledInAttribute(name);
+      case "valid":
+        return RecordQuery.hasValidAttribute(name);
+      default:
+        throw new IllegalArgumentException("Unknown condition '" + token + "'");
+    }
+  }
+
+  private boolean accept(@Nonnull String keyword) {
+    if(position < tokens.size() && tokens.get(position).equalsIgnoreCase(keyword)) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  @Nonnull
+  private static String unquote(@Nonnull String name) {
+    if(name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+      return name.substring(1, name.length() - 1);
+    }
+    return name;
+  }
+
+  /**
+   * Split the given query into parentheses and words, keeping spaces and parentheses within double quotes
+   */
+  @Nonnull
+  private static List<String> tokenize(@Nonnull String query) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder token = new StringBuilder();
+    boolean quoted = false;
+    for(int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if(c == '"') {
+        quoted = !quoted;
+        token.append(c);
+      } else if(!quoted && (Character.isWhitespace(c) || c == '(' || c == ')')) {
+        if(token.length() > 0) {
+          tokens.add(token.toString());
+          token.setLength(0);
+        }
+        if(!Character.isWhitespace(c)) {
+          tokens.add(String.valueOf(c));
+        }
+      } else {
+        token.append(c);
+      }
+    }
+    if(quoted) {
+      throw new IllegalArgumentException("Unterminated quote");
+    }
+    if(token.length() > 0) {
+      tokens.add(token.toString());
+    }
+    return tokens;
+  }
+}
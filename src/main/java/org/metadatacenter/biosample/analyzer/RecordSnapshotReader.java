@@ -0,0 +1,258 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reads the records in a snapshot file written by {@link RecordSnapshotWriter}. The file is memory-mapped, in
+ * segments of up to 1 GiB so that files larger than 2 GiB can be read. Consecutive segments overlap by the length of
+ * the longest record, so every record can be decoded from a single segment. Dictionary strings are decoded once, when
+ * opening the snapshot, and shared by all records read from it.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class RecordSnapshotReader implements Closeable, Iterable<Record> {
+  private static final long SEGMENT_SIZE = 1L << 30;
+  @Nonnull private final File file;
+  @Nonnull private final RandomAccessFile randomAccessFile;
+  @Nonnull private final MappedByteBuffer[] segments;
+  @Nonnull private final LongBuffer index;
+  @Nonnull private final String[] dictionary;
+  private final long recordsEnd;
+  private final int nrRecords;
+
+  public RecordSnapshotReader(@Nonnull File file) throws IOException {
+    this.file = checkNotNull(file);
+    randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long length = channel.size();
+      if(length < RecordSnapshotWriter.HEADER_LENGTH + RecordSnapshotWriter.TRAILER_LENGTH) {
+        throw new IOException("Not a record snapshot: " + file);
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RecordSnapshotWriter.HEADER_LENGTH);
+      ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length - RecordSnapshotWriter.TRAILER_LENGTH,
+          RecordSnapshotWriter.TRAILER_LENGTH);
+      if(header.getInt() != RecordSnapshotWriter.MAGIC || trailer.getInt(28) != RecordSnapshotWriter.MAGIC) {
+        throw new IOException("Not a record snapshot: " + file);
+      }
+      if(header.getInt() != RecordSnapshotWriter.VERSION) {
+        throw new IOException("Unsupported record snapshot version: " + file);
+      }
+      recordsEnd = trailer.getLong(0);
+      long indexOffset = trailer.getLong(8);
+      int dictionarySize = trailer.getInt(16);
+      nrRecords = trailer.getInt(20);
+      int maxRecordLength = trailer.getInt(24);
+
+      int nrSegments = (int) Math.max(1, (recordsEnd + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      segments = new MappedByteBuffer[nrSegments];
+      for(int i = 0; i < nrSegments; i++) {
+        long start = i * SEGMENT_SIZE;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(length, start + SEGMENT_SIZE + maxRecordLength) - start);
+      }
+      index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 8L * nrRecords).asLongBuffer();
+
+      dictionary = new String[dictionarySize];
+      ByteBuffer dictionaryBuffer = channel.map(FileChannel.MapMode.READ_ONLY, recordsEnd, indexOffset - recordsEnd);
+      byte[] bytes = new byte[1 << 8];
+      for(int i = 0; i < dictionarySize; i++) {
+        int stringLength = readVarInt(dictionaryBuffer);
+        if(stringLength > bytes.length) {
+          bytes = new byte[stringLength];
+        }
+        dictionaryBuffer.get(bytes, 0, stringLength);
+        dictionary[i] = new String(bytes, 0, stringLength, StandardCharsets.UTF_8);
+      }
+    } catch (IOException | RuntimeException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  public int size() {
+    return nrRecords;
+  }
+
+  /**
+   * Iterate over the records in the order in which they were written
+   */
+  @Nonnull
+  @Override
+  public Iterator<Record> iterator() {
+    Cursor cursor = new Cursor();
+    cursor.seek(RecordSnapshotWriter.HEADER_LENGTH);
+    return new Iterator<Record>() {
+      private long offset = RecordSnapshotWriter.HEADER_LENGTH;
+
+      @Override
+      public boolean hasNext() {
+        return offset < recordsEnd;
+      }
+
+      @Override
+      public Record next() {
+        if(!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        cursor.seek(offset);
+        Record record = cursor.readRecord();
+        offset = cursor.getOffset();
+        return record;
+      }
+    };
+  }
+
+  /**
+   * Read all records, in the order in which they were written
+   */
+  @Nonnull
+  public List<Record> getRecords() {
+    List<Record> records = new ArrayList<>(nrRecords);
+    for(Record record : this) {
+      records.add(record);
+    }
+    return records;
+  }
+
+  /**
+   * Look up a record by its accession, with a binary search of the accession index
+   */
+  @Nonnull
+  public Optional<Record> getRecord(@Nonnull String accession) {
+    checkNotNull(accession);
+    Cursor cursor = new Cursor();
+    int low = 0, high = nrRecords - 1;
+    while(low <= high) {
+      int middle = (low + high) >>> 1;
+      cursor.seek(index.get(middle));
+      int comparison = cursor.readString().compareTo(accession);
+      if(comparison < 0) {
+        low = middle + 1;
+      } else if(comparison > 0) {
+        high = middle - 1;
+      } else {
+        cursor.seek(index.get(middle));
+        return Optional.of(cursor.readRecord());
+      }
+    }
+    return Optional.empty();
+  }
+
+  @Override
+  public void close() throws IOException {
+    randomAccessFile.close();
+  }
+
+  /**
+   * A read position in the mapped file. Each cursor has its own views of the segments, so cursors can be used by
+   * different threads
+   */
+  private final class Cursor {
+    @Nonnull private final ByteBuffer[] views = new ByteBuffer[segments.length];
+    @Nonnull private byte[] bytes = new byte[1 << 8];
+    @Nonnull private ByteBuffer view;
+    private long segmentStart;
+
+    Cursor() {
+      for(int i = 0; i < segments.length; i++) {
+        views[i] = segments[i].duplicate();
+      }
+      view = views[0];
+    }
+
+    void seek(long offset) {
+      int segment = (int) Math.min(offset / SEGMENT_SIZE, segments.length - 1);
+      view = views[segment];
+      segmentStart = segment * SEGMENT_SIZE;
+      ((Buffer) view).position((int) (offset - segmentStart));
+    }
+
+    long getOffset() {
+      return segmentStart + view.position();
+    }
+
+    @Nonnull
+    Record readRecord() {
+      RecordBuilder builder = new RecordBuilder()
+          .setAccession(readString())
+          .setId(readString())
+          .setAccess(readDictionaryString())
+          .setPublicationDate(readString())
+          .setLastUpdate(readString())
+          .setSubmissionDate(readString())
+          .setOrganismTaxonomyId(readString())
+          .setOrganismTaxonomyName(readDictionaryString())
+          .setOrganismName(readDictionaryString())
+          .setModelName(readDictionaryString())
+          .setPackageDisplayName(readDictionaryString())
+          .setPackageName(readDictionaryString())
+          .setStatus(readDictionaryString())
+          .setStatusDate(readString())
+          .setOwnerName(readDictionaryString());
+      int nrAttributes = readVarInt();
+      for(int i = 0; i < nrAttributes; i++) {
+        String name = readDictionaryString();
+        builder.addAttribute(name, new AttributeImpl(name, readDictionaryString(), readDictionaryString(),
+            readString()));
+      }
+      int nrLinks = readVarInt();
+      for(int i = 0; i < nrLinks; i++) {
+        builder.addLink(new Link(readDictionaryString(), readString(), readString(), readString()));
+      }
+      return builder.build();
+    }
+
+    @Nonnull
+    String readDictionaryString() {
+      return dictionary[readVarInt()];
+    }
+
+    @Nonnull
+    String readString() {
+      int length = readVarInt();
+      if(length > bytes.length) {
+        bytes = new byte[Math.max(length, 2 * bytes.length)];
+      }
+      view.get(bytes, 0, length);
+      return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    int readVarInt() {
+      return RecordSnapshotReader.readVarInt(view);
+    }
+  }
+
+  private static int readVarInt(@Nonnull ByteBuffer buffer) {
+    int value = 0;
+    for(int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if(b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("file", file)
+        .add("nrRecords", nrRecords)
+        .toString();
+  }
+}
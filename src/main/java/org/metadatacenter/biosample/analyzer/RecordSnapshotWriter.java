@@ -0,0 +1,204 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes parsed records to a binary snapshot file, which {@link RecordSnapshotReader} reads back much faster than the
+ * records can be parsed from XML. The file consists of:
+ * <ul>
+ *   <li>a header with a magic number and the format version</li>
+ *   <li>the records, one after another. Each record starts with its accession, followed by its other fields, its
+ *   attributes and its links. Attribute names and the fields that take few distinct values (such as package names)
+ *   are stored as identifiers into a dictionary, and all other strings as length-prefixed UTF-8. Numbers and lengths
+ *   are written as variable-length integers</li>
+ *   <li>the dictionary of strings</li>
+ *   <li>an index with the offsets of the records, sorted by accession</li>
+ *   <li>a trailer with the offsets of the dictionary and the index, the number of records and the length of the
+ *   longest record</li>
+ * </ul>
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class RecordSnapshotWriter implements Closeable {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(RecordSnapshotWriter.class.getName());
+  static final int MAGIC = 0x42535353, VERSION = 1;
+  static final int HEADER_LENGTH = 8, TRAILER_LENGTH = 32;
+  @Nonnull private final File file;
+  @Nonnull private final DataOutputStream output;
+  @Nonnull private final Map<String,Integer> dictionary = new HashMap<>();
+  @Nonnull private final List<String> dictionaryValues = new ArrayList<>();
+  @Nonnull private final List<IndexEntry> index = new ArrayList<>();
+  @Nonnull private byte[] buffer = new byte[1 << 12];
+  private int position = 0, maxRecordLength = 0;
+  private long offset = HEADER_LENGTH;
+  private boolean closed = false;
+
+  public RecordSnapshotWriter(@Nonnull File file) throws IOException {
+    this.file = checkNotNull(file);
+    output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+  }
+
+  public void write(@Nonnull Record record) throws IOException {
+    checkNotNull(record);
+    checkState(!closed, "Snapshot writer is closed");
+    position = 0;
+    writeString(record.getAccession());
+    writeString(record.getId());
+    writeDictionaryString(record.getAccess());
+    writeString(record.getPublicationDate());
+    writeString(record.getLastUpdate());
+    writeString(record.getSubmissionDate());
+    writeString(record.getOrganismTaxonomyId());
+    writeDictionaryString(record.getOrganismTaxonomyName());
+    writeDictionaryString(record.getOrganismName());
+    writeDictionaryString(record.getModelName());
+    writeDictionaryString(record.getPackageDisplayName());
+    writeDictionaryString(record.getPackageName());
+    writeDictionaryString(record.getStatus());
+    writeString(record.getStatusDate());
+    writeDictionaryString(record.getOwnerName());
+    Collection<Attribute> attributes = record.getAttributes().values();
+    writeVarInt(attributes.size());
+    for(Attribute attribute : attributes) {
+      writeDictionaryString(attribute.getName());
+      writeDictionaryString(attribute.getAttributeName());
+      writeDictionaryString(attribute.getDisplayName());
+      writeString(attribute.getValue());
+    }
+    List<Link> links = record.getLinks();
+    writeVarInt(links.size());
+    for(Link link : links) {
+      writeDictionaryString(link.getType());
+      writeString(link.getTarget());
+      writeString(link.getLabel());
+      writeString(link.getValue());
+    }
+    output.write(buffer, 0, position);
+    index.add(new IndexEntry(record.getAccession(), offset));
+    offset += position;
+    maxRecordLength = Math.max(maxRecordLength, position);
+  }
+
+  public void writeAll(@Nonnull Collection<Record> records) throws IOException {
+    for(Record record : checkNotNull(records)) {
+      write(record);
+    }
+  }
+
+  private void writeDictionaryString(@Nonnull String value) {
+    Integer id = dictionary.get(value);
+    if(id == null) {
+      id = dictionaryValues.size();
+      dictionary.put(value, id);
+      dictionaryValues.add(value);
+    }
+    writeVarInt(id);
+  }
+
+  private void writeString(@Nonnull String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(bytes.length);
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  private void writeVarInt(int value) {
+    ensureCapacity(5);
+    while((value & ~0x7F) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private void ensureCapacity(int length) {
+    if(position + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(position + length, 2 * buffer.length));
+    }
+  }
+
+  /**
+   * Write the dictionary, the accession index and the trailer, and close the file
+   */
+  @Override
+  public void close() throws IOException {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    try {
+      long dictionaryOffset = offset;
+      for(String value : dictionaryValues) {
+        position = 0;
+        writeString(value);
+        output.write(buffer, 0, position);
+        offset += position;
+      }
+      long indexOffset = offset;
+      index.sort(Comparator.comparing(entry -> entry.accession));
+      for(IndexEntry entry : index) {
+        output.writeLong(entry.offset);
+      }
+      output.writeLong(dictionaryOffset);
+      output.writeLong(indexOffset);
+      output.writeInt(dictionaryValues.size());
+      output.writeInt(index.size());
+      output.writeInt(maxRecordLength);
+      output.writeInt(MAGIC);
+    } finally {
+      output.close();
+    }
+    logger.info("Wrote " + index.size() + " records to " + file + " (" + dictionaryValues.size() + " dictionary strings)");
+  }
+
+  private static final class IndexEntry {
+    @Nonnull private final String accession;
+    private final long offset;
+
+    IndexEntry(@Nonnull String accession, long offset) {
+      this.accession = accession;
+      this.offset = offset;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("file", file)
+        .add("records", index.size())
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File inputFile = new File(args[0]);
+    File snapshotFile = new File(args[1]);
+    // records are written as they are parsed, without holding the document or a list of records
+    try (RecordSnapshotWriter writer = new RecordSnapshotWriter(snapshotFile)) {
+      new StreamingRecordParser(inputFile, RecordFilter.all(), record -> {
+        try {
+          writer.write(record);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }).processDocument();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+}
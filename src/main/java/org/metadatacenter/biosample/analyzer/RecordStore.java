@@ -0,0 +1,311 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An in-memory store of records for interactive queries over a loaded dump. Records are numbered in the order in
+ * which they are added. The accessions and attribute values are kept off-heap, in one {@link OffHeapStringColumn} per
+ * attribute, and the store maintains Roaring bitmap indexes of the records:
+ * <ul>
+ *   <li>per package</li>
+ *   <li>per attribute: the records that have the attribute, that have it filled in and whose value is valid</li>
+ *   <li>of the valid records</li>
+ * </ul>
+ * Queries are boolean combinations of these indexes, given as {@link RecordQuery}s, so they are answered without
+ * looking at any record. A store is not thread-safe while records are added to it; once loaded, it can be queried by
+ * several threads at once.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class RecordStore {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(RecordStore.class.getName());
+  @Nonnull private final OffHeapStringColumn accessions = new OffHeapStringColumn();
+  @Nonnull private final Map<String,RoaringBitmap> packages = new HashMap<>();
+  @Nonnull private final Map<String,AttributeColumn> attributes = new HashMap<>();
+  @Nonnull private final RoaringBitmap validRecords = new RoaringBitmap();
+  @Nonnull private final RoaringBitmap validatedRecords = new RoaringBitmap();
+
+  public RecordStore() {
+    // no-arguments constructor
+  }
+
+  /**
+   * Add the given record, without validation results. Attributes are considered filled in when their value is not
+   * blank, as in {@link GenericValidator}
+   *
+   * @return The number of the record in the store
+   */
+  public int add(@Nonnull Record record) {
+    checkNotNull(record);
+    int recordNumber = addRecord(record);
+    addValues(recordNumber, record);
+    for(Attribute attribute : record.getAttributes().values()) {
+      if(!attribute.getValue().trim().isEmpty()) {
+        getColumn(attribute.getName()).filledIn.add(recordNumber);
+      }
+    }
+    return recordNumber;
+  }
+
+  /**
+   * Add the given record with its validation results. The values of all attributes of the record are stored as by
+   * {@link #add(Record)}, but only the reports mark attributes as filled in and valid. Reports of attributes that the
+   * record does not have, such as those of missing attributes, are ignored
+   *
+   * @return The number of the record in the store
+   */
+  public int add(@Nonnull Record record, boolean isValid,
+                 @Nonnull List<AttributeGroupValidationReport> validationReports) {
+    checkNotNull(record); checkNotNull(validationReports);
+    int recordNumber = addRecord(record);
+    validatedRecords.add(recordNumber);
+    if(isValid) {
+      validRecords.add(recordNumber);
+    }
+    addValues(recordNumber, record);
+    Map<String,Attribute> recordAttributes = record.getAttributes();
+    for(AttributeGroupValidationReport groupValidationReport : validationReports) {
+      for(AttributeValidationReport report : groupValidationReport.getValidationReports()) {
+        String attributeName = report.getAttribute().getName();
+        if(!recordAttributes.containsKey(attributeName)) {
+          continue;
+        }
+        AttributeColumn column = getColumn(attributeName);
+        if(report.isFilledIn()) {
+          column.filledIn.add(recordNumber);
+        }
+        if(report.isValid()) {
+          column.valid.add(recordNumber);
+        }
+      }
+    }
+    return recordNumber;
+  }
+
+  /**
+   * Store the values of all attributes of the given record
+   */
+  private void addValues(int recordNumber, @Nonnull Record record) {
+    for(Attribute attribute : record.getAttributes().values()) {
+      getColumn(attribute.getName()).add(recordNumber, attribute.getValue());
+    }
+  }
+
+  private int addRecord(@Nonnull Record record) {
+    int recordNumber = accessions.add(record.getAccession());
+    packages.computeIfAbsent(record.getPackageName(), k -> new RoaringBitmap()).add(recordNumber);
+    return recordNumber;
+  }
+
+  @Nonnull
+  private AttributeColumn getColumn(@Nonnull String attributeName) {
+    return attributes.computeIfAbsent(attributeName, k -> new AttributeColumn());
+  }
+
+  /**
+   * Compress the indexes once all records have been added. Indexes over runs of consecutive records, such as those of
+   * packages in a dump ordered by submission, become much smaller
+   */
+  public void optimize() {
+    packages.values().forEach(RoaringBitmap::runOptimize);
+    for(AttributeColumn column : attributes.values()) {
+      column.present.runOptimize();
+      column.filledIn.runOptimize();
+      column.valid.runOptimize();
+    }
+    validRecords.runOptimize();
+    validatedRecords.runOptimize();
+  }
+
+  /**
+   * Get the numbers of the records that match the given query
+   */
+  @Nonnull
+  public RoaringBitmap select(@Nonnull RecordQuery query) {
+    // queries may return one of the indexes itself, which must not be changed by the caller
+    return checkNotNull(query).evaluate(this).clone();
+  }
+
+  public int count(@Nonnull RecordQuery query) {
+    return checkNotNull(query).evaluate(this).getCardinality();
+  }
+
+  /**
+   * Get the number of records in the store
+   */
+  public int size() {
+    return accessions.size();
+  }
+
+  @Nonnull
+  public String getAccession(int recordNumber) {
+    return accessions.get(recordNumber);
+  }
+
+  /**
+   * Get the value of the given attribute in the given record
+   */
+  @Nonnull
+  public Optional<String> getValue(int recordNumber, @Nonnull String attributeName) {
+    AttributeColumn column = attributes.get(checkNotNull(attributeName));
+    if(column == null || !column.present.contains(recordNumber)) {
+      return Optional.empty();
+    }
+    // values are stored in record order, so the rank of the record among those with the attribute is its index
+    return Optional.of(column.values.get(column.present.rank(recordNumber) - 1));
+  }
+
+  @Nonnull
+  public Set<String> getPackageNames() {
+    return Collections.unmodifiableSet(packages.keySet());
+  }
+
+  @Nonnull
+  public Set<String> getAttributeNames() {
+    return Collections.unmodifiableSet(attributes.keySet());
+  }
+
+  /**
+   * Get the number of off-heap bytes used by accessions and attribute values
+   */
+  public long getOffHeapBytes() {
+    long bytes = accessions.getBytes();
+    for(AttributeColumn column : attributes.values()) {
+      bytes += column.values.getBytes();
+    }
+    return bytes;
+  }
+
+  /* Indexes used by queries. These are not copied, so they must not be changed */
+
+  @Nonnull
+  RoaringBitmap getAllRecords() {
+    return RoaringBitmap.bitmapOfRange(0, size());
+  }
+
+  /**
+   * Get the records of the given package. A package name without a version matches every version of the package, as
+   * in {@link RecordFilter#acceptsPackageName(String)}
+   */
+  @Nonnull
+  RoaringBitmap getPackageRecords(@Nonnull String packageName) {
+    RoaringBitmap records = packages.get(packageName);
+    List<RoaringBitmap> versions = new ArrayList<>();
+    for(Map.Entry<String,RoaringBitmap> entry : packages.entrySet()) {
+      String name = entry.getKey();
+      if(name.length() > packageName.length() && name.startsWith(packageName) &&
+          name.charAt(packageName.length()) == '.') {
+        versions.add(entry.getValue());
+      }
+    }
+    if(versions.isEmpty()) {
+      return (records != null ? records : new RoaringBitmap());
+    }
+    if(records != null) {
+      versions.add(records);
+    }
+    return RoaringBitmap.or(versions.iterator());
+  }
+
+  @Nonnull
+  RoaringBitmap getAttributeRecords(@Nonnull String attributeName) {
+    AttributeColumn column = attributes.get(attributeName);
+    return (column != null ? column.present : new RoaringBitmap());
+  }
+
+  @Nonnull
+  RoaringBitmap getFilledInAttributeRecords(@Nonnull String attributeName) {
+    AttributeColumn column = attributes.get(attributeName);
+    return (column != null ? column.filledIn : new RoaringBitmap());
+  }
+
+  @Nonnull
+  RoaringBitmap getValidAttributeRecords(@Nonnull String attributeName) {
+    AttributeColumn column = attributes.get(attributeName);
+    return (column != null ? column.valid : new RoaringBitmap());
+  }
+
+  @Nonnull
+  RoaringBitmap getValidRecords() {
+    return validRecords;
+  }
+
+  @Nonnull
+  RoaringBitmap getValidatedRecords() {
+    return validatedRecords;
+  }
+
+  /**
+   * The values and indexes of one attribute
+   */
+  private static final class AttributeColumn {
+    @Nonnull private final OffHeapStringColumn values = new OffHeapStringColumn();
+    @Nonnull private final RoaringBitmap present = new RoaringBitmap();
+    @Nonnull private final RoaringBitmap filledIn = new RoaringBitmap();
+    @Nonnull private final RoaringBitmap valid = new RoaringBitmap();
+
+    void add(int recordNumber, @Nonnull String value) {
+      present.add(recordNumber);
+      values.add(value);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("records", size())
+        .add("packages", packages.size())
+        .add("attributes", attributes.size())
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File inputFile = new File(args[0]);
+    RecordStore store = new RecordStore();
+    if(inputFile.getName().endsWith(".snapshot")) {
+      try (RecordSnapshotReader reader = new RecordSnapshotReader(inputFile)) {
+        reader.forEach(store::add);
+      }
+    } else {
+      // records are added as they are parsed, without holding the document or a list of records
+      new StreamingRecordParser(inputFile, RecordFilter.all(), store::add).processDocument();
+    }
+    store.optimize();
+    logger.info("Loaded " + store + " (" + store.getOffHeapBytes() + " bytes off-heap)");
+
+    // read queries from the standard input, one per line, e.g.: package:MIMS.me.soil and not filled:env_material
+    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    String line;
+    while((line = reader.readLine()) != null) {
+      if(line.trim().isEmpty()) {
+        continue;
+      }
+      try {
+        RecordQuery query = RecordQueryParser.parse(line);
+        long start = System.nanoTime();
+        RoaringBitmap result = store.select(query);
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println(result.getCardinality() + " records (" + micros + " us)");
+        result.stream().limit(10).forEach(recordNumber -> System.out.println("  " + store.getAccession(recordNumber)));
+      } catch(IllegalArgumentException e) {
+        System.out.println("Invalid query: " + e.getMessage());
+      }
+    }
+  }
+}
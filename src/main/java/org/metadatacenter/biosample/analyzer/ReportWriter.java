@@ -0,0 +1,29 @@
+package org.metadatacenter.biosample.analyzer;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * A sink for the validation results of BioSample records
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public interface ReportWriter {
+
+  /**
+   * Write the given record along with the validation results of its attributes
+   *
+   * @param record            BioSample record
+   * @param isValid           Whether the record is valid overall
+   * @param validationReports Validation reports of the record's attributes, grouped by attribute type
+   */
+  void writeRecord(@Nonnull Record record, boolean isValid, @Nonnull List<AttributeGroupValidationReport> validationReports);
+
+  /**
+   * Write out any pending output and release the underlying files
+   */
+  void closeWriters();
+
+}
@@ -0,0 +1,218 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes the output of parallel validation as one pair of CSV files per worker, so that workers do not contend for a
+ * single writer. Records are assigned to shards round-robin by their position in the input (record i goes to shard
+ * i mod n), and attribute rows get globally unique identifiers by numbering them with a stride of n, starting at the
+ * shard index plus one.
+ *
+ * Next to its CSV files, each shard keeps an index with the number of characters written per record to each file.
+ * {@link #merge(OutputCompression, boolean)} uses the indexes to interleave the shards back into the regular
+ * biosamaple-records.csv and biosamaple-attributes.csv files, in input order, by streaming through all shards at once.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class ShardedCsvWriter {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(ShardedCsvWriter.class.getName());
+  @Nonnull private static final String RECORDS_FILE = "biosamaple-records", ATTRIBUTES_FILE = "biosamaple-attributes";
+  @Nonnull private final File outputFolder;
+  private final int nrShards;
+  @Nonnull private final List<CsvWriter> writers = new ArrayList<>();
+  @Nonnull private final List<DataOutputStream> indexes = new ArrayList<>();
+
+  /**
+   * @param outputFolder Folder to write the shards to. Existing shards in this folder are replaced
+   * @param nrShards     Number of shards, typically one per worker
+   */
+  public ShardedCsvWriter(@Nonnull File outputFolder, int nrShards) throws IOException {
+    checkArgument(nrShards > 0, "Number of shards must be positive");
+    this.outputFolder = checkNotNull(outputFolder);
+    this.nrShards = nrShards;
+    for(int shard = 0; shard < nrShards; shard++) {
+      for(File file : getShardFiles(shard)) {
+        if(file.exists() && !file.delete()) {
+          throw new IOException("Could not replace existing shard file: " + file);
+        }
+      }
+      writers.add(new CsvWriter(outputFolder, false, OutputCompression.NONE, getShardSuffix(shard), shard + 1, nrShards));
+      indexes.add(new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getIndexFile(shard)))));
+    }
+  }
+
+  public int getNrShards() {
+    return nrShards;
+  }
+
+  /**
+   * Write the given record to the given shard. Each shard must only be written to by one thread at a time, and must
+   * receive its records in input order
+   */
+  public void writeRecord(int shard, @Nonnull Record record, boolean isValid,
+                          @Nonnull List<AttributeGroupValidationReport> validationReports) throws IOException {
+    checkElementIndex(shard, nrShards);
+    CsvWriter writer = writers.get(shard);
+    long recordChars = writer.getRecordCharsWritten(), attributeChars = writer.getAttributeCharsWritten();
+    writer.writeRecord(record, isValid, validationReports);
+    DataOutputStream index = indexes.get(shard);
+    index.writeLong(writer.getRecordCharsWritten() - recordChars);
+    index.writeLong(writer.getAttributeCharsWritten() - attributeChars);
+  }
+
+  public void closeWriters() {
+    for(int shard = 0; shard < nrShards; shard++) {
+      writers.get(shard).closeWriters();
+      try {
+        indexes.get(shard).close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Merge the shards into single records and attributes files, in input order. This reads all shards sequentially
+   * and in parallel with each other, holding only a buffer per shard in memory. The shard writers must be closed
+   *
+   * @param compression  Compression of the merged files
+   * @param deleteShards Delete the shard files after merging them
+   */
+  public void merge(@Nonnull OutputCompression compression, boolean deleteShards) throws IOException {
+    merge(outputFolder, nrShards, compression, deleteShards);
+  }
+
+  public static void merge(@Nonnull File outputFolder, int nrShards, @Nonnull OutputCompression compression,
+                           boolean deleteShards) throws IOException {
+    checkNotNull(outputFolder); checkNotNull(compression);
+    logger.info("Merging " + nrShards + " shards...");
+    List<Reader> recordReaders = new ArrayList<>(), attributeReaders = new ArrayList<>();
+    List<DataInputStream> indexes = new ArrayList<>();
+    File mergedRecords = new File(outputFolder, RECORDS_FILE + ".csv" + compression.getFileExtension());
+    File mergedAttributes = new File(outputFolder, ATTRIBUTES_FILE + ".csv" + compression.getFileExtension());
+    long recordCounter = 0;
+    try (BufferedCsvWriter recordWriter = new BufferedCsvWriter(compression.open(mergedRecords, true), true);
+         BufferedCsvWriter attributeWriter = new BufferedCsvWriter(compression.open(mergedAttributes, true), true)) {
+      for(int shard = 0; shard < nrShards; shard++) {
+        File[] files = getShardFiles(outputFolder, shard);
+        recordReaders.add(openReader(files[0]));
+        attributeReaders.add(openReader(files[1]));
+        indexes.add(new DataInputStream(new BufferedInputStream(new FileInputStream(files[2]))));
+      }
+      char[] buffer = new char[BufferedCsvWriter.DEFAULT_BUFFER_SIZE];
+      // record i is in shard i mod n, so the shards are read round-robin until the first one runs out of records
+      boolean done = false;
+      while(!done) {
+        for(int shard = 0; shard < nrShards && !done; shard++) {
+          DataInputStream index = indexes.get(shard);
+          long recordChars, attributeChars;
+          try {
+            recordChars = index.readLong();
+            attributeChars = index.readLong();
+          } catch (EOFException e) {
+            done = true;
+            continue;
+          }
+          copy(recordReaders.get(shard), recordWriter, recordChars, buffer);
+          copy(attributeReaders.get(shard), attributeWriter, attributeChars, buffer);
+          recordCounter++;
+        }
+      }
+    } finally {
+      for(Closeable closeable : recordReaders) {
+        closeable.close();
+      }
+      for(Closeable closeable : attributeReaders) {
+        closeable.close();
+      }
+      for(Closeable closeable : indexes) {
+        closeable.close();
+      }
+    }
+    logger.info("done. Total records merged: " + recordCounter);
+    if(deleteShards) {
+      for(int shard = 0; shard < nrShards; shard++) {
+        for(File file : getShardFiles(outputFolder, shard)) {
+          if(!file.delete()) {
+            logger.warn("Could not delete shard file: " + file);
+          }
+        }
+      }
+    }
+  }
+
+  private static void copy(@Nonnull Reader reader, @Nonnull BufferedCsvWriter writer, long nrChars,
+                           @Nonnull char[] buffer) throws IOException {
+    while(nrChars > 0) {
+      int n = reader.read(buffer, 0, (int) Math.min(buffer.length, nrChars));
+      if(n < 0) {
+        throw new EOFException("Shard file is shorter than its index");
+      }
+      writer.write(buffer, 0, n);
+      nrChars -= n;
+    }
+  }
+
+  @Nonnull
+  private static Reader openReader(@Nonnull File file) throws IOException {
+    return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+        BufferedCsvWriter.DEFAULT_BUFFER_SIZE);
+  }
+
+  @Nonnull
+  private static String getShardSuffix(int shard) {
+    return String.format(".shard-%03d", shard);
+  }
+
+  @Nonnull
+  private File getIndexFile(int shard) {
+    return getShardFiles(shard)[2];
+  }
+
+  @Nonnull
+  private File[] getShardFiles(int shard) {
+    return getShardFiles(outputFolder, shard);
+  }
+
+  /**
+   * Get the records file, attributes file and index file of the given shard
+   */
+  @Nonnull
+  private static File[] getShardFiles(@Nonnull File outputFolder, int shard) {
+    String suffix = getShardSuffix(shard);
+    return new File[] {
+        new File(outputFolder, RECORDS_FILE + suffix + ".csv"),
+        new File(outputFolder, ATTRIBUTES_FILE + suffix + ".csv"),
+        new File(outputFolder, "biosamaple-shard" + suffix.substring(".shard".length()) + ".idx")};
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("outputFolder", outputFolder)
+        .add("nrShards", nrShards)
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File outputFolder = new File(args[0]);
+    int nrShards = Integer.parseInt(args[1]);
+    OutputCompression compression = (args.length > 2 ? OutputCompression.valueOf(args[2].toUpperCase()) : OutputCompression.NONE);
+    merge(outputFolder, nrShards, compression, false);
+  }
+}
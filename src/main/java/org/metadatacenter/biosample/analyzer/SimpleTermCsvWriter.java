@@ -1,9 +1,8 @@
 package org.metadatacenter.biosample.analyzer;
 
 import javax.annotation.Nonnull;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -13,8 +12,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
-public final class SimpleTermCsvWriter {
-  @Nonnull private BufferedWriter writer;
+public final class SimpleTermCsvWriter implements Closeable {
+  @Nonnull private BufferedCsvWriter writer;
 
   public SimpleTermCsvWriter(@Nonnull String outputFolder, @Nonnull String outputFileName) {
     initializeWriter(checkNotNull(outputFolder), checkNotNull(outputFileName));
@@ -26,20 +25,35 @@ public final class SimpleTermCsvWriter {
       outputPath += File.separator;
     }
     try {
-      writer = new BufferedWriter(new FileWriter(outputPath + outputFileName, true));
+      writer = new BufferedCsvWriter(new File(outputPath + outputFileName), true, false);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Write a row for the given term, "term",isValid,"matchValue", where quotes in the term and match value are doubled.
+   * Rows are buffered, and only reach the file when the writer is flushed or closed
+   */
   public void write(String value, TermValidationReport report) throws IOException {
-    writer.write("\"" + value + "\"");
-    writer.write(",");
-    writer.write("" + report.isResolvableOntologyClass());
-    writer.write(",");
-    writer.write("\"" + report.getMatchValue() + "\"");
-    writer.write("\n");
+    writer.writeEscaped(value);
+    writer.writeSeparator();
+    writer.write(report.isResolvableOntologyClass());
+    writer.writeSeparator();
+    writer.writeEscaped(report.getMatchValue());
+    writer.writeNewLine();
+  }
+
+  /**
+   * Write out any buffered rows
+   */
+  public void flush() throws IOException {
     writer.flush();
   }
 
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
 }
@@ -0,0 +1,202 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A Space-Saving summary of the most frequent values in a stream, in a fixed number of counters. When a value that is
+ * not counted arrives and all counters are in use, the counter with the smallest count is given to the new value,
+ * keeping its count as the error bound of the new value. Every value that occurs more than n / capacity times in a
+ * stream of n values is counted, and the count of each value overestimates its true count by at most its error.
+ * Counters are kept in a min-heap on their counts, so each value is added in logarithmic time. Summaries are merged as
+ * described by Agarwal et al. in "Mergeable Summaries" (2012).
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class SpaceSaving {
+  private final int capacity;
+  @Nonnull private final Map<String,Integer> slots;
+  @Nonnull private final String[] values;
+  @Nonnull private final long[] counts, errors;
+  @Nonnull private final int[] heap, heapPositions;
+  private int size = 0;
+
+  public SpaceSaving(int capacity) {
+    checkArgument(capacity > 0, "Capacity must be positive");
+    this.capacity = capacity;
+    slots = new HashMap<>(2 * capacity);
+    values = new String[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    heap = new int[capacity];
+    heapPositions = new int[capacity];
+  }
+
+  public void add(@Nonnull String value) {
+    add(value, 1, 0);
+  }
+
+  private void add(@Nonnull String value, long count, long error) {
+    Integer slot = slots.get(checkNotNull(value));
+    if(slot != null) {
+      counts[slot] += count;
+      errors[slot] += error;
+      siftDown(heapPositions[slot]);
+    } else if(size < capacity) {
+      slot = size++;
+      values[slot] = value;
+      counts[slot] = count;
+      errors[slot] = error;
+      slots.put(value, slot);
+      heap[slot] = slot;
+      heapPositions[slot] = slot;
+      siftUp(slot);
+    } else {
+      slot = heap[0];
+      slots.remove(values[slot]);
+      values[slot] = value;
+      errors[slot] = counts[slot] + error;
+      counts[slot] += count;
+      slots.put(value, slot);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Add the values counted by the given summary to this one
+   */
+  public void merge(@Nonnull SpaceSaving other) {
+    checkNotNull(other);
+    // a value that is not counted by a full summary may have occurred up to its smallest count times
+    long minCount = getMinCount(), otherMinCount = other.getMinCount();
+    Map<String,long[]> merged = new HashMap<>();
+    for(int slot = 0; slot < size; slot++) {
+      merged.put(values[slot], new long[] {counts[slot] + otherMinCount, errors[slot] + otherMinCount});
+    }
+    for(int slot = 0; slot < other.size; slot++) {
+      long[] counter = merged.get(other.values[slot]);
+      if(counter != null) {
+        counter[0] += other.counts[slot] - otherMinCount;
+        counter[1] += other.errors[slot] - otherMinCount;
+      } else {
+        merged.put(other.values[slot], new long[] {other.counts[slot] + minCount, other.errors[slot] + minCount});
+      }
+    }
+    List<Map.Entry<String,long[]>> entries = new ArrayList<>(merged.entrySet());
+    entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+    slots.clear();
+    size = 0;
+    for(Map.Entry<String,long[]> entry : entries.subList(0, Math.min(capacity, entries.size()))) {
+      add(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+    }
+  }
+
+  private long getMinCount() {
+    return (size == capacity ? counts[heap[0]] : 0);
+  }
+
+  /**
+   * Get up to the given number of the most frequent values, from the most to the least frequent
+   */
+  @Nonnull
+  public List<Counter> getTop(int limit) {
+    List<Counter> counters = new ArrayList<>(size);
+    for(int slot = 0; slot < size; slot++) {
+      counters.add(new Counter(values[slot], counts[slot], errors[slot]));
+    }
+    counters.sort(Comparator.comparingLong(Counter::getCount).reversed().thenComparing(Counter::getValue));
+    return counters.subList(0, Math.min(limit, counters.size()));
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private void siftUp(int position) {
+    int slot = heap[position];
+    while(position > 0) {
+      int parent = (position - 1) >>> 1;
+      if(counts[heap[parent]] <= counts[slot]) {
+        break;
+      }
+      moveTo(heap[parent], position);
+      position = parent;
+    }
+    moveTo(slot, position);
+  }
+
+  private void siftDown(int position) {
+    int slot = heap[position];
+    while(true) {
+      int child = 2 * position + 1;
+      if(child >= size) {
+        break;
+      }
+      if(child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+        child++;
+      }
+      if(counts[slot] <= counts[heap[child]]) {
+        break;
+      }
+      moveTo(heap[child], position);
+      position = child;
+    }
+    moveTo(slot, position);
+  }
+
+  private void moveTo(int slot, int position) {
+    heap[position] = slot;
+    heapPositions[slot] = position;
+  }
+
+  /**
+   * A counted value, whose true count is between its count minus its error and its count
+   */
+  public static final class Counter {
+    @Nonnull private final String value;
+    private final long count, error;
+
+    private Counter(@Nonnull String value, long count, long error) {
+      this.value = checkNotNull(value);
+      this.count = count;
+      this.error = error;
+    }
+
+    @Nonnull
+    public String getValue() {
+      return value;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("value", value)
+          .add("count", count)
+          .add("error", error)
+          .toString();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("capacity", capacity)
+        .add("size", size)
+        .toString();
+  }
+}
@@ -0,0 +1,191 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.sql.*;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes records, attribute validation results and record links into an embedded SQLite database file, with tables
+ * records, attributes and links. The records and attributes tables have the same columns as the files written by
+ * {@link CsvWriter}, and attribute rows are numbered by SQLite.
+ *
+ * Rows are added through batched prepared inserts in large transactions, with journaling and syncing turned off for
+ * the duration of the load. Indexes are only created once all rows are in, when closing the writer, because building
+ * them at the end is much faster than maintaining them on every insert. Writing into an existing database file appends
+ * to its tables.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class SqliteReportWriter implements ReportWriter {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(SqliteReportWriter.class.getName());
+  public static final int DEFAULT_RECORDS_PER_TRANSACTION = 10_000;
+  @Nonnull private static final String[] SCHEMA = {
+      "CREATE TABLE IF NOT EXISTS records (id TEXT, accession TEXT, publication_date TEXT, last_update TEXT, " +
+          "submission_date TEXT, access TEXT, organism_taxonomy_id TEXT, organism_taxonomy_name TEXT, " +
+          "organism_name TEXT, owner_name TEXT, model_name TEXT, package_display_name TEXT, package_name TEXT, " +
+          "status TEXT, status_date TEXT, is_valid INTEGER)",
+      "CREATE TABLE IF NOT EXISTS attributes (id INTEGER PRIMARY KEY, record_id TEXT, attribute_type TEXT, " +
+          "name TEXT, attribute_name TEXT, display_name TEXT, value TEXT, is_valid INTEGER, is_filled_in INTEGER, " +
+          "is_valid_format INTEGER, match_value TEXT)",
+      "CREATE TABLE IF NOT EXISTS links (record_id TEXT, type TEXT, target TEXT, label TEXT, value TEXT)"};
+  @Nonnull private static final String[] INDEXES = {
+      "CREATE INDEX IF NOT EXISTS records_id ON records (id)",
+      "CREATE INDEX IF NOT EXISTS records_accession ON records (accession)",
+      "CREATE INDEX IF NOT EXISTS records_package_name ON records (package_name)",
+      "CREATE INDEX IF NOT EXISTS attributes_record_id ON attributes (record_id)",
+      "CREATE INDEX IF NOT EXISTS attributes_name ON attributes (name)",
+      "CREATE INDEX IF NOT EXISTS links_record_id ON links (record_id)"};
+  @Nonnull private final File databaseFile;
+  private final int recordsPerTransaction;
+  @Nonnull private final Connection connection;
+  @Nonnull private final PreparedStatement recordInsert, attributeInsert, linkInsert;
+  private int recordsInTransaction = 0;
+
+  public SqliteReportWriter(@Nonnull File databaseFile) throws SQLException {
+    this(databaseFile, DEFAULT_RECORDS_PER_TRANSACTION);
+  }
+
+  /**
+   * @param databaseFile          SQLite database file, which is created if it does not exist
+   * @param recordsPerTransaction Number of records inserted per batch and transaction
+   */
+  public SqliteReportWriter(@Nonnull File databaseFile, int recordsPerTransaction) throws SQLException {
+    checkArgument(recordsPerTransaction > 0, "Number of records per transaction must be positive");
+    this.databaseFile = checkNotNull(databaseFile);
+    this.recordsPerTransaction = recordsPerTransaction;
+    connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+    try (Statement statement = connection.createStatement()) {
+      // a failed load is simply rerun, so the bulk load does without a rollback journal and fsyncs
+      statement.execute("PRAGMA journal_mode = OFF");
+      statement.execute("PRAGMA synchronous = OFF");
+      statement.execute("PRAGMA locking_mode = EXCLUSIVE");
+      statement.execute("PRAGMA temp_store = MEMORY");
+      statement.execute("PRAGMA cache_size = -262144");
+      for(String table : SCHEMA) {
+        statement.execute(table);
+      }
+    }
+    connection.setAutoCommit(false);
+    recordInsert = connection.prepareStatement("INSERT INTO records VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+    attributeInsert = connection.prepareStatement("INSERT INTO attributes (record_id, attribute_type, name, " +
+        "attribute_name, display_name, value, is_valid, is_filled_in, is_valid_format, match_value) " +
+        "VALUES (?,?,?,?,?,?,?,?,?,?)");
+    linkInsert = connection.prepareStatement("INSERT INTO links VALUES (?,?,?,?,?)");
+  }
+
+  @Override
+  public void writeRecord(@Nonnull Record record, boolean isValid,
+                          @Nonnull List<AttributeGroupValidationReport> validationReports) {
+    checkNotNull(record);
+    try {
+      String[] values = {record.getId(), record.getAccession(), record.getPublicationDate(), record.getLastUpdate(),
+          record.getSubmissionDate(), record.getAccess(), record.getOrganismTaxonomyId(),
+          record.getOrganismTaxonomyName(), record.getOrganismName(), record.getOwnerName(), record.getModelName(),
+          record.getPackageDisplayName(), record.getPackageName(), record.getStatus(), record.getStatusDate()};
+      for(int i = 0; i < values.length; i++) {
+        recordInsert.setString(i + 1, values[i]);
+      }
+      recordInsert.setBoolean(values.length + 1, isValid);
+      recordInsert.addBatch();
+
+      // write attributes validation results
+      for(AttributeGroupValidationReport groupValidationReport : validationReports) {
+        for(AttributeValidationReport report : groupValidationReport.getValidationReports()) {
+          Attribute attribute = report.getAttribute();
+          attributeInsert.setString(1, record.getId());
+          attributeInsert.setString(2, groupValidationReport.getGroupName());
+          attributeInsert.setString(3, attribute.getName());
+          attributeInsert.setString(4, attribute.getAttributeName());
+          attributeInsert.setString(5, attribute.getDisplayName());
+          attributeInsert.setString(6, attribute.getValue());
+          attributeInsert.setBoolean(7, report.isValid());
+          attributeInsert.setBoolean(8, report.isFilledIn());
+          attributeInsert.setBoolean(9, report.isValidFormat());
+          setNullableString(attributeInsert, 10, report.getMatchValue().orElse(null));
+          attributeInsert.addBatch();
+        }
+      }
+
+      for(Link link : record.getLinks()) {
+        linkInsert.setString(1, record.getId());
+        linkInsert.setString(2, link.getType());
+        linkInsert.setString(3, link.getTarget());
+        linkInsert.setString(4, link.getLabel());
+        linkInsert.setString(5, link.getValue());
+        linkInsert.addBatch();
+      }
+
+      if(++recordsInTransaction == recordsPerTransaction) {
+        commit();
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void setNullableString(@Nonnull PreparedStatement statement, int index, @Nullable String value)
+      throws SQLException {
+    if(value != null) {
+      statement.setString(index, value);
+    } else {
+      statement.setNull(index, Types.VARCHAR);
+    }
+  }
+
+  private void commit() throws SQLException {
+    recordInsert.executeBatch();
+    attributeInsert.executeBatch();
+    linkInsert.executeBatch();
+    connection.commit();
+    recordsInTransaction = 0;
+  }
+
+  /**
+   * Insert the remaining rows, build the indexes and close the database
+   */
+  @Override
+  public void closeWriters() {
+    try {
+      commit();
+      logger.info("Building indexes on " + databaseFile + "...");
+      try (Statement statement = connection.createStatement()) {
+        for(String index : INDEXES) {
+          statement.execute(index);
+        }
+        statement.execute("ANALYZE");
+      }
+      connection.commit();
+      logger.info("done");
+    } catch (SQLException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        recordInsert.close();
+        attributeInsert.close();
+        linkInsert.close();
+        connection.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("databaseFile", databaseFile)
+        .add("recordsPerTransaction", recordsPerTransaction)
+        .toString();
+  }
+}
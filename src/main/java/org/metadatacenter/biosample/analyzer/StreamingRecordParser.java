@@ -0,0 +1,331 @@
+package org.metadatacenter.biosample.analyzer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Parses BioSample records from an XML file with a streaming (StAX) reader, keeping only the records accepted by a
+ * {@link RecordFilter}. Unlike {@link RecordParser}, which needs the whole document in memory, this parser reads one
+ * record at a time, and it checks each condition of the filter as soon as the part of the record it depends on has
+ * been read: the accession and dates on the BioSample start tag, then the taxonomy identifier, the owner and the
+ * package. The remaining events of a rejected record are skipped without building any of its attributes or links.
+ * Accepted records are either collected, or given to a consumer as soon as they are parsed, in which case the parser
+ * holds no more than one record at a time.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public class StreamingRecordParser implements Parser {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(StreamingRecordParser.class.getName());
+  @Nonnull private final File inputFile;
+  @Nonnull private final RecordFilter filter;
+  @Nonnull private final Consumer<Record> recordConsumer;
+  @Nonnull private List<Record> records = new ArrayList<>();
+  @Nonnull private final List<String> rawAttributes = new ArrayList<>();
+  @Nullable private RawAttributeListener rawAttributeListener;
+  @Nonnull private String ownerName = "";
+  private int acceptedRecords = 0, skippedRecords = 0;
+
+  /**
+   * A listener of the raw attributes of the accepted records, which, unlike the attributes of the records, include
+   * those without a harmonized name
+   */
+  @FunctionalInterface
+  public interface RawAttributeListener {
+    /**
+     * @param ownerName      Name of the owner of the record
+     * @param attributeName  Attribute name given by the submitter
+     * @param harmonizedName Harmonized name of the attribute, or the empty string if it has none
+     */
+    void attribute(@Nonnull String ownerName, @Nonnull String attributeName, @Nonnull String harmonizedName);
+  }
+
+  /**
+   * Create a parser that gives each accepted record to the given consumer instead of collecting it, so
+   * {@link #getBioSampleRecords()} returns no records
+   */
+  public StreamingRecordParser(@Nonnull File inputFile, @Nonnull RecordFilter filter,
+                               @Nonnull Consumer<Record> recordConsumer) {
+    this.inputFile = checkNotNull(inputFile);
+    this.filter = checkNotNull(filter);
+    this.recordConsumer = checkNotNull(recordConsumer);
+  }
+
+  public StreamingRecordParser(@Nonnull File inputFile, @Nonnull RecordFilter filter) {
+    this.inputFile = checkNotNull(inputFile);
+    this.filter = checkNotNull(filter);
+    this.recordConsumer = records::add;
+  }
+
+  public StreamingRecordParser(@Nonnull File inputFile) {
+    this(inputFile, RecordFilter.all());
+  }
+
+  /**
+   * Set the listener that is given the raw attributes of each accepted record, just before the record itself
+   */
+  public void setRawAttributeListener(@Nullable RawAttributeListener rawAttributeListener) {
+    this.rawAttributeListener = rawAttributeListener;
+  }
+
+  public void processDocument() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    try (InputStream input = new BufferedInputStream(new FileInputStream(inputFile), 1 << 16)) {
+      XMLStreamReader reader = factory.createXMLStreamReader(input);
+      try {
+        while(reader.hasNext()) {
+          if(reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equalsIgnoreCase("BioSample")) {
+            RecordBuilder recordBuilder = processBioSample(reader);
+            if(recordBuilder == null) {
+              skippedRecords++;
+              continue;
+            }
+            Record record = null;
+            try {
+              record = recordBuilder.build();
+            } catch(Exception e) {
+              e.printStackTrace();
+              logger.debug("Failing record ending at line: " + reader.getLocation().getLineNumber());
+            }
+            if(record == null) {
+              continue;
+            }
+            if(filter.hasContentConditions() && !filter.accepts(record)) {
+              // records that lack one of the filtered elements altogether are only rejected once built
+              skippedRecords++;
+            } else {
+              acceptedRecords++;
+              notifyRawAttributes();
+              recordConsumer.accept(record);
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException | IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void notifyRawAttributes() {
+    if(rawAttributeListener != null) {
+      for(int i = 0; i < rawAttributes.size(); i += 2) {
+        rawAttributeListener.attribute(ownerName, rawAttributes.get(i), rawAttributes.get(i + 1));
+      }
+    }
+  }
+
+  /**
+   * Read the BioSample element at the current position of the reader, up to and including its end tag
+   *
+   * @return The builder of the record, or null if the filter rejects it
+   */
+  @Nullable
+  private RecordBuilder processBioSample(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+    String accession = getAttribute(reader, "accession");
+    String publicationDate = getAttribute(reader, "publication_date");
+    String lastUpdate = getAttribute(reader, "last_update");
+    String submissionDate = getAttribute(reader, "submission_date");
+    rawAttributes.clear();
+    ownerName = "";
+    if(!filter.acceptsHeader(accession, publicationDate, lastUpdate, submissionDate)) {
+      skipElement(reader);
+      return null;
+    }
+    RecordBuilder recordBuilder = new RecordBuilder()
+        .setAccess(getAttribute(reader, "access"))
+        .setPublicationDate(publicationDate)
+        .setLastUpdate(lastUpdate)
+        .setSubmissionDate(submissionDate)
+        .setId(getAttribute(reader, "id"))
+        .setAccession(accession);
+
+    while(reader.hasNext()) {
+      int event = reader.next();
+      if(event == XMLStreamConstants.END_ELEMENT) {
+        break;
+      } else if(event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      String elementName = reader.getLocalName();
+      boolean accepted = true;
+      if(elementName.equalsIgnoreCase("description")) {
+        accepted = getOrganismDescription(reader, recordBuilder);
+      } else if(elementName.equalsIgnoreCase("owner")) {
+        accepted = getOwner(reader, recordBuilder);
+      } else if(elementName.equalsIgnoreCase("models")) {
+        getModel(reader, recordBuilder);
+      } else if(elementName.equalsIgnoreCase("package")) {
+        String packageName;
+        recordBuilder.setPackageDisplayName(getAttribute(reader, "display_name"))
+            .setPackageName(packageName = reader.getElementText());
+        accepted = filter.acceptsPackageName(packageName);
+      } else if(elementName.equalsIgnoreCase("attributes")) {
+        getAttributes(reader, recordBuilder);
+      } else if(elementName.equalsIgnoreCase("status")) {
+        recordBuilder.setStatus(getAttribute(reader, "status"))
+            .setStatusDate(getAttribute(reader, "when"));
+        skipElement(reader);
+      } else if(elementName.equalsIgnoreCase("links")) {
+        getLinks(reader, recordBuilder);
+      } else {
+        skipElement(reader);
+      }
+      if(!accepted) {
+        skipElement(reader);
+        return null;
+      }
+    }
+    return recordBuilder;
+  }
+
+  private boolean getOrganismDescription(@Nonnull XMLStreamReader reader, @Nonnull RecordBuilder recordBuilder)
+      throws XMLStreamException {
+    boolean accepted = true;
+    int depth = 1;
+    while(depth > 0) {
+      int event = reader.next();
+      if(event == XMLStreamConstants.START_ELEMENT) {
+        String elementName = reader.getLocalName();
+        if(elementName.equalsIgnoreCase("organism")) {
+          String taxonomyId = getAttribute(reader, "taxonomy_id");
+          recordBuilder.setOrganismTaxonomyId(taxonomyId)
+              .setOrganismTaxonomyName(getAttribute(reader, "taxonomy_name"));
+          accepted = accepted && filter.acceptsTaxonomyId(taxonomyId);
+          depth++;
+        } else if(depth == 2 && elementName.equalsIgnoreCase("OrganismName")) {
+          recordBuilder.setOrganismName(reader.getElementText());
+        } else {
+          skipElement(reader);
+        }
+      } else if(event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+    return accepted;
+  }
+
+  private boolean getOwner(@Nonnull XMLStreamReader reader, @Nonnull RecordBuilder recordBuilder)
+      throws XMLStreamException {
+    boolean accepted = true;
+    while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if(reader.getLocalName().equalsIgnoreCase("name")) {
+        ownerName = reader.getElementText();
+        recordBuilder.setOwnerName(ownerName);
+        accepted = filter.acceptsOwnerName(ownerName);
+      } else {
+        skipElement(reader);
+      }
+    }
+    return accepted;
+  }
+
+  private void getModel(@Nonnull XMLStreamReader reader, @Nonnull RecordBuilder recordBuilder)
+      throws XMLStreamException {
+    while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if(reader.getLocalName().equalsIgnoreCase("model")) {
+        recordBuilder.setModelName(reader.getElementText());
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private void getLinks(@Nonnull XMLStreamReader reader, @Nonnull RecordBuilder recordBuilder)
+      throws XMLStreamException {
+    while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if(reader.getLocalName().equalsIgnoreCase("link")) {
+        String type = getAttribute(reader, "type");
+        String label = getAttribute(reader, "label");
+        String target = getAttribute(reader, "target");
+        String value = reader.getElementText();
+        recordBuilder.addLink(type, label, target, value);
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private void getAttributes(@Nonnull XMLStreamReader reader, @Nonnull RecordBuilder recordBuilder)
+      throws XMLStreamException {
+    while(reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      if(reader.getLocalName().equalsIgnoreCase("attribute")) {
+        String name = getAttribute(reader, "attribute_name");
+        String harmonizedName = getAttribute(reader, "harmonized_name");
+        String displayName = getAttribute(reader, "display_name");
+        String value = reader.getElementText();
+        if(rawAttributeListener != null && !name.isEmpty()) {
+          // name and harmonized name pairs
+          rawAttributes.add(name);
+          rawAttributes.add(harmonizedName);
+        }
+        if(!name.isEmpty() && !harmonizedName.isEmpty() && !displayName.isEmpty()) {
+          recordBuilder.addAttribute(harmonizedName, name, displayName, value);
+        }
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  /**
+   * Get the value of the given XML attribute of the current element, or the empty string if it has none (as in DOM)
+   */
+  @Nonnull
+  private static String getAttribute(@Nonnull XMLStreamReader reader, @Nonnull String name) {
+    String value = reader.getAttributeValue(null, name);
+    return (value == null ? "" : value);
+  }
+
+  /**
+   * Skip the remaining events of the current element, up to and including its end tag
+   */
+  private static void skipElement(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+    int depth = 1;
+    while(depth > 0 && reader.hasNext()) {
+      int event = reader.next();
+      if(event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if(event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * Get the number of records that were accepted by the filter
+   */
+  public int getAcceptedRecords() {
+    return acceptedRecords;
+  }
+
+  /**
+   * Get the number of records that were read but rejected by the filter
+   */
+  public int getSkippedRecords() {
+    return skippedRecords;
+  }
+
+  @Override
+  @Nonnull
+  public List<Record> getBioSampleRecords() {
+    return records;
+  }
+}
@@ -0,0 +1,273 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Clusters strings, such as the values of an attribute, by Levenshtein edit distance. This is the scalable counterpart
+ * of stringclusters.py, which computes the distances between all pairs of strings. Instead, strings are normalized as
+ * in stringclusters.py, and then:
+ * <ol>
+ *   <li>candidate pairs are generated by MinHash locality-sensitive hashing over character n-grams, so that only
+ *   strings that share many n-grams are compared</li>
+ *   <li>each candidate pair is compared with an edit distance computation that stops as soon as the distance exceeds
+ *   the maximum distance for the pair, which is a fraction of the length of the longer string</li>
+ *   <li>strings within the maximum distance are merged into the same cluster with a concurrent union-find</li>
+ * </ol>
+ * The clusters are the connected components of the strings, so, as in single-linkage clustering, a chain of strings
+ * that each differ slightly from the next (e.g., numbered values) ends up in one cluster. The exemplar of each cluster
+ * is its most frequent string (then the shortest, then the first in alphabetical order), and the clusters are written
+ * to JSON in the format of stringclusters.py: an object that maps each exemplar to the sorted list of strings in its
+ * cluster.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class StringClusterer {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(StringClusterer.class.getName());
+  @Nonnull private static final Pattern NON_WORD = Pattern.compile("([^\\s\\w]|_)+", Pattern.UNICODE_CHARACTER_CLASS);
+  @Nonnull private static final Pattern WHITESPACE = Pattern.compile("\\s+", Pattern.UNICODE_CHARACTER_CLASS);
+  public static final int DEFAULT_NGRAM_SIZE = 3, DEFAULT_BANDS = 20, DEFAULT_ROWS = 3, DEFAULT_MAX_DISTANCE = 4,
+      DEFAULT_MAX_BUCKET_SIZE = 64;
+  public static final double DEFAULT_MAX_RELATIVE_DISTANCE = 0.2;
+  private final int nGramSize, maxDistance;
+  private final double maxRelativeDistance;
+  @Nonnull private final MinHasher minHasher;
+
+  /**
+   * @param nGramSize           Size of the character n-grams that strings are compared on
+   * @param bands               Number of bands of the MinHash signatures
+   * @param rows                Number of rows per band. Together with the number of bands, this sets how similar the
+   *                            n-grams of two strings must be for the strings to be compared
+   * @param maxRelativeDistance Maximum edit distance between strings in the same cluster, as a fraction of the length
+   *                            of the longer string
+   * @param maxDistance         Maximum edit distance between strings in the same cluster
+   */
+  public StringClusterer(int nGramSize, int bands, int rows, double maxRelativeDistance, int maxDistance) {
+    checkArgument(nGramSize > 0, "N-gram size must be positive");
+    checkArgument(maxRelativeDistance >= 0 && maxDistance >= 0, "Maximum distances must not be negative");
+    this.nGramSize = nGramSize;
+    this.maxRelativeDistance = maxRelativeDistance;
+    this.maxDistance = maxDistance;
+    this.minHasher = new MinHasher(bands, rows, 1L);
+  }
+
+  public StringClusterer() {
+    this(DEFAULT_NGRAM_SIZE, DEFAULT_BANDS, DEFAULT_ROWS, DEFAULT_MAX_RELATIVE_DISTANCE, DEFAULT_MAX_DISTANCE);
+  }
+
+  /**
+   * Cluster the given strings, where each occurrence of a string counts towards the choice of exemplars
+   */
+  @Nonnull
+  public SortedMap<String,List<String>> cluster(@Nonnull Collection<String> strings) {
+    Map<String,Long> counts = new HashMap<>();
+    for(String string : checkNotNull(strings)) {
+      counts.merge(string, 1L, Long::sum);
+    }
+    return cluster(counts);
+  }
+
+  /**
+   * Cluster the given strings, given with their number of occurrences
+   *
+   * @return A map from the exemplar of each cluster to the sorted strings in the cluster. Strings are normalized
+   */
+  @Nonnull
+  public SortedMap<String,List<String>> cluster(@Nonnull Map<String,Long> stringCounts) {
+    Map<String,Long> normalizedCounts = new HashMap<>();
+    for(Map.Entry<String,Long> entry : checkNotNull(stringCounts).entrySet()) {
+      normalizedCounts.merge(normalize(entry.getKey()), entry.getValue(), Long::sum);
+    }
+    // strings are numbered in alphabetical order, so that large buckets compare strings with similar prefixes
+    String[] strings = normalizedCounts.keySet().toArray(new String[0]);
+    Arrays.parallelSort(strings);
+    int size = strings.length;
+    logger.info("Clustering " + size + " distinct strings");
+
+    int bands = minHasher.getBands();
+    int[] bandHashes = new int[size * bands];
+    IntStream.range(0, size).parallel().forEach(i -> {
+      long[] nGrams = MinHasher.getNGramHashes(strings[i], nGramSize, new long[16]);
+      minHasher.getBandHashes(nGrams, MinHasher.getNGramCount(strings[i], nGramSize),
+          new long[minHasher.getSignatureLength()], bandHashes, i * bands);
+    });
+
+    ConcurrentUnionFind components = new ConcurrentUnionFind(size);
+    AtomicLong comparisons = new AtomicLong();
+    LshCandidatePairs.visit(bandHashes, size, bands, DEFAULT_MAX_BUCKET_SIZE, (first, second) -> {
+      if(components.isConnected(first, second)) {
+        return;
+      }
+      String a = strings[first], b = strings[second];
+      int max = getMaxDistance(a.length(), b.length());
+      if(Math.abs(a.length() - b.length()) > max) {
+        return;
+      }
+      comparisons.incrementAndGet();
+      if(getEditDistance(a, b, max) <= max) {
+        components.union(first, second);
+      }
+    });
+    logger.info("Compared " + comparisons.get() + " candidate pairs");
+
+    Map<Integer,List<String>> members = new HashMap<>();
+    for(int i = 0; i < size; i++) {
+      members.computeIfAbsent(components.find(i), k -> new ArrayList<>()).add(strings[i]);
+    }
+    SortedMap<String,List<String>> clusters = new TreeMap<>();
+    for(List<String> cluster : members.values()) {
+      String exemplar = cluster.get(0);
+      for(String string : cluster) {
+        if(isBetterExemplar(string, exemplar, normalizedCounts)) {
+          exemplar = string;
+        }
+      }
+      clusters.put(exemplar, cluster);
+    }
+    logger.info("Found " + clusters.size() + " clusters");
+    return clusters;
+  }
+
+  private static boolean isBetterExemplar(@Nonnull String string, @Nonnull String exemplar,
+                                          @Nonnull Map<String,Long> counts) {
+    int comparison = Long.compare(counts.get(string), counts.get(exemplar));
+    if(comparison == 0) {
+      comparison = Integer.compare(exemplar.length(), string.length());
+    }
+    if(comparison == 0) {
+      comparison = exemplar.compareTo(string);
+    }
+    return comparison > 0;
+  }
+
+  /**
+   * Get the maximum edit distance between two strings of the given lengths for them to be in the same cluster
+   */
+  int getMaxDistance(int length, int otherLength) {
+    return Math.min(maxDistance, (int) (maxRelativeDistance * Math.max(length, otherLength)));
+  }
+
+  /**
+   * Replace all non-alphanumeric characters with spaces, and trim all extra white space, as in stringclusters.py
+   */
+  @Nonnull
+  public static String normalize(@Nonnull String string) {
+    String normalized = NON_WORD.matcher(checkNotNull(string)).replaceAll(" ");
+    return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+  }
+
+  /**
+   * Get the Levenshtein edit distance between the given strings, if it is at most the given maximum. Only the cells of
+   * the dynamic programming table within the maximum distance of the diagonal are computed, and the computation stops
+   * as soon as a whole row exceeds the maximum, so this takes O(max * length) time
+   *
+   * @return The edit distance, or max + 1 if the distance is larger than max
+   */
+  public static int getEditDistance(@Nonnull CharSequence a, @Nonnull CharSequence b, int max) {
+    int n = a.length(), m = b.length();
+    int exceeded = max + 1;
+    if(Math.abs(n - m) > max) {
+      return exceeded;
+    }
+    int[] previous = new int[m + 1], current = new int[m + 1];
+    for(int j = 0; j <= m; j++) {
+      previous[j] = Math.min(j, exceeded);
+    }
+    for(int i = 1; i <= n; i++) {
+      int from = Math.max(1, i - max), to = Math.min(m, i + max);
+      current[from - 1] = (from == 1 ? Math.min(i, exceeded) : exceeded);
+      int rowMin = current[from - 1];
+      char c = a.charAt(i - 1);
+      for(int j = from; j <= to; j++) {
+        int distance = previous[j - 1] + (c == b.charAt(j - 1) ? 0 : 1);
+        distance = Math.min(distance, Math.min(previous[j], current[j - 1]) + 1);
+        current[j] = Math.min(distance, exceeded);
+        rowMin = Math.min(rowMin, current[j]);
+      }
+      if(to < m) {
+        current[to + 1] = exceeded;
+      }
+      if(rowMin > max) {
+        return exceeded;
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[m];
+  }
+
+  /**
+   * Write the given clusters as a JSON object that maps each exemplar to the strings in its cluster, with sorted
+   * keys, as stringclusters.py does
+   */
+  public static void writeJson(@Nonnull Map<String,List<String>> clusters, @Nonnull File outputFile)
+      throws IOException {
+    new ObjectMapper()
+        .enable(SerializationFeature.INDENT_OUTPUT)
+        .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+        .writeValue(checkNotNull(outputFile), new TreeMap<>(checkNotNull(clusters)));
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("nGramSize", nGramSize)
+        .add("minHasher", minHasher)
+        .add("maxRelativeDistance", maxRelativeDistance)
+        .add("maxDistance", maxDistance)
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File inputFile = new File(args[0]);
+    File outputFile = new File(args[1]);
+    Map<String,Long> counts = new HashMap<>();
+    if(args.length > 2) {
+      // cluster the values of the given attribute in a BioSample XML file or record snapshot
+      String attributeName = args[2];
+      if(inputFile.getName().endsWith(".snapshot")) {
+        try (RecordSnapshotReader reader = new RecordSnapshotReader(inputFile)) {
+          for(Record record : reader) {
+            addAttributeValue(record, attributeName, counts);
+          }
+        }
+      } else {
+        new StreamingRecordParser(inputFile, RecordFilter.all(), record -> addAttributeValue(record, attributeName,
+            counts)).processDocument();
+      }
+    } else {
+      // cluster the lines of the given file, as stringclusters.py does
+      for(String line : Files.readAllLines(inputFile.toPath())) {
+        counts.merge(line, 1L, Long::sum);
+      }
+    }
+    writeJson(new StringClusterer().cluster(counts), outputFile);
+  }
+
+  private static void addAttributeValue(@Nonnull Record record, @Nonnull String attributeName,
+                                        @Nonnull Map<String,Long> counts) {
+    Attribute attribute = record.getAttributes().get(attributeName);
+    if(attribute != null) {
+      counts.merge(attribute.getValue(), 1L, Long::sum);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A dictionary that assigns consecutive integer identifiers to strings. Records store the strings that take few
+ * distinct values, such as attribute names, package names and organism names, as identifiers into the global
+ * dictionary, so that each of these strings is held in memory once, however many records use it. Strings are never
+ * removed from the dictionary, so it should not be used for values with many distinct strings.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@ThreadSafe
+public final class StringDictionary {
+  @Nonnull private static final StringDictionary GLOBAL = new StringDictionary();
+  @Nonnull private final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<>();
+  @Nonnull private volatile String[] strings = new String[1 << 10];
+  private int size = 0;
+
+  /**
+   * Get the dictionary shared by all records
+   */
+  @Nonnull
+  public static StringDictionary global() {
+    return GLOBAL;
+  }
+
+  /**
+   * Get the identifier of the given string, adding the string to the dictionary if it is not in it yet
+   */
+  public int getId(@Nonnull String string) {
+    Integer id = ids.get(checkNotNull(string));
+    return (id != null ? id : add(string));
+  }
+
+  /**
+   * Find the identifier of the given string, without adding it to the dictionary
+   *
+   * @return The identifier of the string, or -1 if the string is not in the dictionary
+   */
+  public int find(@Nonnull String string) {
+    Integer id = ids.get(checkNotNull(string));
+    return (id != null ? id : -1);
+  }
+
+  @Nonnull
+  public String getString(int id) {
+    String[] strings = this.strings;
+    String string = (id >= 0 && id < strings.length ? strings[id] : null);
+    if(string == null) {
+      checkElementIndex(id, size());
+    }
+    return string;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  private synchronized int add(@Nonnull String string) {
+    Integer id = ids.get(string);
+    if(id != null) {
+      return id;
+    }
+    String[] strings = this.strings;
+    if(size == strings.length) {
+      strings = Arrays.copyOf(strings, 2 * size);
+    }
+    // the string is stored before its identifier is published, so any thread that sees the identifier sees the string
+    strings[size] = string;
+    this.strings = strings;
+    ids.put(string, size);
+    return size++;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("size", size())
+        .toString();
+  }
+}
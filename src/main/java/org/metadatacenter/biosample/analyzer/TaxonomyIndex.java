@@ -0,0 +1,380 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An offline index of the NCBI taxonomy, which tells whether a taxonomy identifier exists, whether a taxon lies under
+ * another one (e.g., under Bacteria), and what the scientific name of a taxon is. The index is built from the
+ * nodes.dmp and names.dmp files of the NCBI taxonomy dump into arrays indexed by taxonomy identifier: the parent of
+ * each taxon, a code for its rank, and the offset of its scientific name in a block of UTF-8 names. Lookups are array
+ * reads, and checking an ancestor follows the parent pointers, which takes a few dozen reads at most.
+ *
+ * The index can be written to a file, which is then loaded by memory-mapping it, so loading takes no time, and the
+ * arrays are read straight from the mapped file rather than copied onto the heap.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@ThreadSafe
+public final class TaxonomyIndex {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(TaxonomyIndex.class.getName());
+  public static final int ROOT = 1, BACTERIA = 2, ARCHAEA = 2157, EUKARYOTA = 2759, VIRUSES = 10239;
+  private static final int MAGIC = 0x54415849, VERSION = 1, MAX_DEPTH = 256;
+  @Nonnull private static final String FIELD_SEPARATOR = "\t|\t", SCIENTIFIC_NAME = "scientific name";
+  // the parent of each taxon, or 0 if there is no taxon with that identifier
+  @Nonnull private final IntBuffer parents;
+  // the scientific name of taxon i is names[nameOffsets[i]] ... names[nameOffsets[i + 1] - 1]
+  @Nonnull private final IntBuffer nameOffsets;
+  @Nonnull private final ByteBuffer ranks, names;
+  @Nonnull private final String[] rankNames;
+  private final int size, nrTaxa;
+
+  private TaxonomyIndex(@Nonnull IntBuffer parents, @Nonnull IntBuffer nameOffsets, @Nonnull ByteBuffer ranks,
+                        @Nonnull ByteBuffer names, @Nonnull String[] rankNames, int nrTaxa) {
+    this.parents = checkNotNull(parents);
+    this.nameOffsets = checkNotNull(nameOffsets);
+    this.ranks = checkNotNull(ranks);
+    this.names = checkNotNull(names);
+    this.rankNames = checkNotNull(rankNames);
+    this.size = parents.limit();
+    this.nrTaxa = nrTaxa;
+  }
+
+  /**
+   * Build an index from the nodes.dmp and names.dmp files of the NCBI taxonomy dump
+   */
+  @Nonnull
+  public static TaxonomyIndex fromDump(@Nonnull File nodesFile, @Nonnull File namesFile) throws IOException {
+    checkNotNull(nodesFile); checkNotNull(namesFile);
+    long start = System.currentTimeMillis();
+    int[][] parents = {new int[1 << 20]};
+    byte[][] ranks = {new byte[1 << 20]};
+    List<String> rankNames = new ArrayList<>();
+    int[] maxTaxid = {0}, nrTaxa = {0};
+    int[] bounds = new int[8];
+    try (MappedLineReader reader = new MappedLineReader(nodesFile)) {
+      reader.forEachLine(line -> {
+        // tax_id | parent tax_id | rank | ...
+        if(getFields(line, bounds, 3) < 3) {
+          return;
+        }
+        int taxid = parseInt(line, bounds[0], bounds[1]), parent = parseInt(line, bounds[2], bounds[3]);
+        if(taxid >= parents[0].length) {
+          int length = Math.max(taxid + 1, 2 * parents[0].length);
+          parents[0] = Arrays.copyOf(parents[0], length);
+          ranks[0] = Arrays.copyOf(ranks[0], length);
+        }
+        parents[0][taxid] = parent;
+        ranks[0][taxid] = (byte) getRankCode(line, bounds[4], bounds[5], rankNames);
+        maxTaxid[0] = Math.max(maxTaxid[0], taxid);
+        nrTaxa[0]++;
+      });
+    }
+    int size = maxTaxid[0] + 1;
+    String[] scientificNames = new String[size];
+    try (MappedLineReader reader = new MappedLineReader(namesFile)) {
+      reader.forEachLine(line -> {
+        // tax_id | name_txt | unique name | name class
+        if(getFields(line, bounds, 4) < 4 || !regionEquals(line, bounds[6], bounds[7], SCIENTIFIC_NAME)) {
+          return;
+        }
+        int taxid = parseInt(line, bounds[0], bounds[1]);
+        if(taxid < size) {
+          scientificNames[taxid] = line.subSequence(bounds[2], bounds[3]).toString();
+        }
+      });
+    }
+    int[] nameOffsets = new int[size + 1];
+    ByteArrayOutputStream nameBytes = new ByteArrayOutputStream(size * 16);
+    for(int taxid = 0; taxid < size; taxid++) {
+      nameOffsets[taxid] = nameBytes.size();
+      if(scientificNames[taxid] != null) {
+        byte[] bytes = scientificNames[taxid].getBytes(StandardCharsets.UTF_8);
+        nameBytes.write(bytes, 0, bytes.length);
+      }
+    }
+    nameOffsets[size] = nameBytes.size();
+    logger.info("Built taxonomy index of " + nrTaxa[0] + " taxa in " + (System.currentTimeMillis() - start) + " ms");
+    return new TaxonomyIndex(IntBuffer.wrap(Arrays.copyOf(parents[0], size)), IntBuffer.wrap(nameOffsets),
+        ByteBuffer.wrap(Arrays.copyOf(ranks[0], size)), ByteBuffer.wrap(nameBytes.toByteArray()),
+        rankNames.toArray(new String[0]), nrTaxa[0]);
+  }
+
+  /**
+   * Load an index written by {@link #write(File)}, by memory-mapping the file
+   */
+  @Nonnull
+  public static TaxonomyIndex load(@Nonnull File indexFile) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(checkNotNull(indexFile).toPath(), StandardOpenOption.READ)) {
+      if(channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Taxonomy index is larger than 2 GB: " + indexFile);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException("Not a taxonomy index, or one of another version: " + indexFile);
+    }
+    int size = buffer.getInt(), nrTaxa = buffer.getInt(), namesLength = buffer.getInt();
+    String[] rankNames = new String[buffer.getInt()];
+    for(int i = 0; i < rankNames.length; i++) {
+      byte[] rankName = new byte[buffer.getShort()];
+      buffer.get(rankName);
+      rankNames[i] = new String(rankName, StandardCharsets.UTF_8);
+    }
+    int offset = align(buffer.position());
+    IntBuffer parents = slice(buffer, offset, size * 4).asIntBuffer();
+    offset += size * 4;
+    IntBuffer nameOffsets = slice(buffer, offset, (size + 1) * 4).asIntBuffer();
+    offset += (size + 1) * 4;
+    ByteBuffer ranks = slice(buffer, offset, size);
+    offset += size;
+    ByteBuffer names = slice(buffer, offset, namesLength);
+    return new TaxonomyIndex(parents, nameOffsets, ranks, names, rankNames, nrTaxa);
+  }
+
+  /**
+   * Write the index to a file that {@link #load(File)} maps
+   */
+  public void write(@Nonnull File indexFile) throws IOException {
+    try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(checkNotNull(indexFile)), 1 << 16))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(size);
+      output.writeInt(nrTaxa);
+      output.writeInt(names.limit());
+      output.writeInt(rankNames.length);
+      for(String rankName : rankNames) {
+        byte[] bytes = rankName.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(bytes.length);
+        output.write(bytes);
+      }
+      // the arrays start at a multiple of 4 bytes
+      while(output.size() != align(output.size())) {
+        output.writeByte(0);
+      }
+      for(int i = 0; i < size; i++) {
+        output.writeInt(parents.get(i));
+      }
+      for(int i = 0; i <= size; i++) {
+        output.writeInt(nameOffsets.get(i));
+      }
+      for(int i = 0; i < size; i++) {
+        output.writeByte(ranks.get(i));
+      }
+      for(int i = 0; i < names.limit(); i++) {
+        output.writeByte(names.get(i));
+      }
+    }
+  }
+
+  private static int align(int position) {
+    return (position + 3) & ~3;
+  }
+
+  @Nonnull
+  private static ByteBuffer slice(@Nonnull ByteBuffer buffer, int offset, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    ((Buffer) duplicate).limit(offset + length).position(offset);
+    return duplicate.slice();
+  }
+
+  /**
+   * Check whether there is a taxon with the given identifier
+   */
+  public boolean contains(int taxid) {
+    return taxid > 0 && taxid < size && parents.get(taxid) != 0;
+  }
+
+  /**
+   * Get the parent of the given taxon, which is the taxon itself for the root, or -1 if there is no such taxon
+   */
+  public int getParent(int taxid) {
+    return (contains(taxid) ? parents.get(taxid) : -1);
+  }
+
+  /**
+   * Get the rank of the given taxon, e.g., "species", or null if there is no such taxon
+   */
+  @Nullable
+  public String getRank(int taxid) {
+    return (contains(taxid) ? rankNames[ranks.get(taxid) & 0xFF] : null);
+  }
+
+  /**
+   * Check whether the given taxon is the given ancestor or lies under it
+   */
+  public boolean isDescendantOf(int taxid, int ancestor) {
+    if(!contains(taxid)) {
+      return false;
+    }
+    for(int depth = 0; depth < MAX_DEPTH; depth++) {
+      if(taxid == ancestor) {
+        return true;
+      }
+      int parent = parents.get(taxid);
+      if(parent == taxid || parent <= 0 || parent >= size) {
+        return false;
+      }
+      taxid = parent;
+    }
+    return false;
+  }
+
+  /**
+   * Get the scientific name of the given taxon, or null if there is no such taxon or it has no scientific name
+   */
+  @Nullable
+  public String getScientificName(int taxid) {
+    if(!contains(taxid)) {
+      return null;
+    }
+    int start = nameOffsets.get(taxid), end = nameOffsets.get(taxid + 1);
+    if(start == end) {
+      return null;
+    }
+    byte[] bytes = new byte[end - start];
+    for(int i = 0; i < bytes.length; i++) {
+      bytes[i] = names.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Check whether the scientific name of the given taxon is the given name, ignoring case. ASCII names are compared
+   * byte by byte, without decoding the scientific name
+   */
+  public boolean hasScientificName(int taxid, @Nonnull String name) {
+    checkNotNull(name);
+    if(!contains(taxid)) {
+      return false;
+    }
+    int start = nameOffsets.get(taxid), end = nameOffsets.get(taxid + 1);
+    if(end - start != name.length()) {
+      // names of different lengths can still be equal if either one has non-ASCII characters
+      return !isAscii(name) && name.equalsIgnoreCase(getScientificName(taxid));
+    }
+    for(int i = 0; i < name.length(); i++) {
+      int b = names.get(start + i);
+      char c = name.charAt(i);
+      if(b < 0 || c >= 0x80) {
+        return name.equalsIgnoreCase(getScientificName(taxid));
+      }
+      if(b != c && Character.toLowerCase((char) b) != Character.toLowerCase(c)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAscii(@Nonnull String string) {
+    for(int i = 0; i < string.length(); i++) {
+      if(string.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the number of taxa in the index
+   */
+  public int size() {
+    return nrTaxa;
+  }
+
+  /**
+   * Find the bounds of the first fields of a line of a taxonomy dump file, whose fields are separated by "\t|\t".
+   * The bounds of field i are at bounds[2 * i] (inclusive) and bounds[2 * i + 1] (exclusive)
+   *
+   * @return The number of fields found
+   */
+  private static int getFields(@Nonnull CharSequence line, @Nonnull int[] bounds, int nrFields) {
+    int field = 0, start = 0, length = line.length();
+    for(int i = 0; i < length && field < nrFields; i++) {
+      if(line.charAt(i) == '\t' && i + 1 < length && line.charAt(i + 1) == '|') {
+        bounds[2 * field] = start;
+        bounds[2 * field + 1] = i;
+        field++;
+        start = i + FIELD_SEPARATOR.length();
+        i++;
+      }
+    }
+    return field;
+  }
+
+  private static int parseInt(@Nonnull CharSequence line, int start, int end) {
+    int value = 0;
+    for(int i = start; i < end; i++) {
+      char c = line.charAt(i);
+      if(c < '0' || c > '9') {
+        throw new NumberFormatException("Not a taxonomy identifier: " + line.subSequence(start, end));
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static boolean regionEquals(@Nonnull CharSequence line, int start, int end, @Nonnull String string) {
+    if(end - start != string.length()) {
+      return false;
+    }
+    for(int i = 0; i < string.length(); i++) {
+      if(line.charAt(start + i) != string.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int getRankCode(@Nonnull CharSequence line, int start, int end, @Nonnull List<String> rankNames) {
+    for(int code = 0; code < rankNames.size(); code++) {
+      if(regionEquals(line, start, end, rankNames.get(code))) {
+        return code;
+      }
+    }
+    if(rankNames.size() > 0xFF) {
+      throw new IllegalStateException("Too many taxonomic ranks");
+    }
+    rankNames.add(line.subSequence(start, end).toString());
+    return rankNames.size() - 1;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("taxa", nrTaxa)
+        .add("ranks", rankNames.length)
+        .toString();
+  }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    // build the index from the folder of an extracted NCBI taxdump archive
+    File dumpFolder = new File(args[0]);
+    File indexFile = new File(args[1]);
+    TaxonomyIndex index = fromDump(new File(dumpFolder, "nodes.dmp"), new File(dumpFolder, "names.dmp"));
+    index.write(indexFile);
+    logger.info("Wrote " + index + " to " + indexFile);
+  }
+}
@@ -0,0 +1,91 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A thread-safe cache of term validation reports, keyed by the searched term, the ontologies searched and whether an
+ * exact match was required. The cache can be written out and read back, so that term lookups done before a crash do
+ * not have to be repeated when resuming a run.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+@ThreadSafe
+public final class TermCache {
+  private static final char KEY_SEPARATOR = '\u0000';
+  @Nonnull private final Map<String,TermValidationReport> reports = new ConcurrentHashMap<>();
+
+  @Nonnull
+  public Optional<TermValidationReport> get(@Nonnull String term, boolean exactMatch, @Nonnull String... ontologies) {
+    return Optional.ofNullable(reports.get(getKey(term, exactMatch, ontologies)));
+  }
+
+  public void put(@Nonnull String term, boolean exactMatch, @Nonnull String[] ontologies,
+                  @Nonnull TermValidationReport report) {
+    reports.put(getKey(term, exactMatch, ontologies), checkNotNull(report));
+  }
+
+  public int size() {
+    return reports.size();
+  }
+
+  @Nonnull
+  private static String getKey(@Nonnull String term, boolean exactMatch, @Nonnull String[] ontologies) {
+    StringBuilder key = new StringBuilder(checkNotNull(term)).append(KEY_SEPARATOR).append(exactMatch);
+    for(String ontology : ontologies) {
+      key.append(KEY_SEPARATOR).append(ontology);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Write the cached reports. Reports added concurrently may or may not be included
+   */
+  public void writeTo(@Nonnull DataOutput output) throws IOException {
+    checkNotNull(output);
+    Map<String,TermValidationReport> snapshot = new HashMap<>(reports);
+    output.writeInt(snapshot.size());
+    for(Map.Entry<String,TermValidationReport> entry : snapshot.entrySet()) {
+      TermValidationReport report = entry.getValue();
+      output.writeUTF(entry.getKey());
+      output.writeUTF(report.getMatchValue());
+      output.writeUTF(report.getMatchLabel());
+      output.writeBoolean(report.isFromOntology());
+      output.writeBoolean(report.isOwlClass());
+      output.writeBoolean(report.iriResolves());
+    }
+  }
+
+  /**
+   * Add the reports written by {@link #writeTo(DataOutput)} to this cache
+   */
+  public void readFrom(@Nonnull DataInput input) throws IOException {
+    checkNotNull(input);
+    int size = input.readInt();
+    for(int i = 0; i < size; i++) {
+      String key = input.readUTF();
+      reports.put(key, new TermValidationReport(input.readUTF(), input.readUTF(), input.readBoolean(),
+          input.readBoolean(), input.readBoolean()));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("size", reports.size())
+        .toString();
+  }
+}
@@ -1,111 +1,405 @@
 package org.metadatacenter.biosample.analyzer;
 
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
-import java.util.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * Looks up the terms of a complete list in a list of tested terms, and writes out the tested terms found along with
+ * their validity. The tested list, with lines of the form "term,isValid", is loaded into a {@link TermTable}, and the
+ * complete list, which can hold hundreds of millions of lines, is scanned in chunks in parallel by a
+ * {@link MappedLineReader}, without creating a string per line. Matches are written in the order of the complete list.
+ *
+ * When the tested list does not fit in memory, {@link #joinValues(File, File, int)} joins the lists in external
+ * memory instead: both lists are hash-partitioned by term into spill buckets on disk, such that the tested terms of
+ * one bucket fit in memory, and the buckets are then joined, several at a time, each by loading its tested terms into
+ * a table and scanning its part of the complete list. Every line is read and written a fixed number of times, so the
+ * run time grows linearly with the size of the lists.
+ *
  * @author Rafael Gonçalves <br>
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
 public class TermFileResultProcessor {
-  File completeList, testedList;
-
-  public TermFileResultProcessor(File completeList, File testedList) {
-    this.completeList = completeList;
-    this.testedList = testedList;
-  }
-
-  public Map<String,Boolean> parseTestedList() throws IOException {
-    System.out.println("Parsing file: " + testedList.getAbsolutePath());
-    Map<String,Boolean> map = new HashMap<>();
-    BufferedReader reader = new BufferedReader(new FileReader(testedList));
-    String line = reader.readLine();
-    while(line != null) {
-      String[] tokens = line.split(",");
-      if(tokens.length>0) {
-        String value = tokens[0];
-        String isValid = tokens[1];
-        if(map.containsKey(value)) {
-          System.out.println("Map already contains key: " + value);
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(TermFileResultProcessor.class.getName());
+  private static final int MAX_PARTITIONS = 512, SPILL_BUFFER_SIZE = 1 << 15, OUTPUT_BATCH_SIZE = 1 << 16;
+  // approximate number of bytes of heap taken by a term per byte of its line in the tested list, once in a table
+  private static final int TABLE_BYTES_PER_LINE_BYTE = 8;
+  @Nonnull private final File completeList, testedList;
+
+  public TermFileResultProcessor(@Nonnull File completeList, @Nonnull File testedList) {
+    this.completeList = checkNotNull(completeList);
+    this.testedList = checkNotNull(testedList);
+  }
+
+  @Nonnull
+  public TermTable parseTestedList() throws IOException {
+    logger.info("Parsing file: " + testedList.getAbsolutePath());
+    return parseTestedList(testedList);
+  }
+
+  @Nonnull
+  private static TermTable parseTestedList(@Nonnull File testedList) throws IOException {
+    TermTable table = new TermTable();
+    long[] duplicates = new long[1];
+    try (MappedLineReader reader = new MappedLineReader(testedList)) {
+      reader.forEachLine(line -> {
+        int separator = getTermEnd(line);
+        if(separator == -1) {
+          logger.warn("No validity in line: " + line);
+          return;
         }
-        map.put(value, Boolean.valueOf(isValid));
-      } else {
-        System.out.println("No tokens in line: " + line);
-      }
-      line = reader.readLine();
+        int end = indexOf(line, ',', separator + 1);
+        boolean isValid = isTrue(line, separator + 1, (end == -1 ? line.length() : end));
+        String term = line.subSequence(0, separator).toString();
+        if(table.put(term, isValid)) {
+          duplicates[0]++;
+          logger.debug("Map already contains key: " + term);
+        }
+      });
     }
-    reader.close();
-    return map;
+    if(duplicates[0] > 0) {
+      logger.info("Tested list contains " + duplicates[0] + " duplicate terms");
+    }
+    return table;
   }
 
+  /**
+   * Write each term of the complete list that is in the given table of tested terms, followed by its validity, to the
+   * given output file, which is appended to
+   *
+   * @return The number of terms found
+   */
+  public long verifyValues(@Nonnull TermTable testedTerms, @Nonnull File outputFile) throws IOException {
+    checkNotNull(testedTerms);
+    AtomicLong matches = new AtomicLong();
+    try (MappedLineReader reader = new MappedLineReader(completeList);
+         BufferedCsvWriter writer = new BufferedCsvWriter(checkNotNull(outputFile), true, false)) {
+      reader.processChunks(chunk -> {
+        StringBuilder output = new StringBuilder();
+        reader.forEachLine(chunk, line -> {
+          Boolean isValid = testedTerms.get(line);
+          if(isValid != null) {
+            matches.incrementAndGet();
+            output.append(line).append(',').append(isValid.booleanValue()).append('\n');
+          }
+        });
+        return output;
+      }, writer::write);
+    }
+    logger.info("Found matches for " + matches.get() + " terms");
+    return matches.get();
+  }
 
-  public List<TermCheckResult> verifyValues(List<String> completeList, Map<String,Boolean> map) {
-    List<TermCheckResult> output = new ArrayList<>();
+  /**
+   * Join the complete list with the tested list in external memory, writing each term of the complete list that is in
+   * the tested list, followed by its validity, to the given output file, which is appended to. The output is grouped
+   * by bucket, and within a bucket it is in the order of the complete list
+   *
+   * @param outputFile  Output file
+   * @param spillFolder Folder in which to create the spill buckets, which are deleted once joined
+   * @param parallelism Number of buckets joined at a time
+   * @return The number of terms found
+   */
+  public long joinValues(@Nonnull File outputFile, @Nonnull File spillFolder, int parallelism) throws IOException {
+    checkNotNull(outputFile); checkNotNull(spillFolder);
+    checkArgument(parallelism > 0, "Parallelism must be positive");
+    int partitions = getPartitionCount(testedList.length(), parallelism);
+    File bucketFolder = Files.createTempDirectory(spillFolder.toPath(), "term-join").toFile();
+    logger.info("Partitioning lists into " + partitions + " spill buckets in " + bucketFolder);
+    AtomicLong matches = new AtomicLong();
+    try (BufferedCsvWriter writer = new BufferedCsvWriter(outputFile, true, false)) {
+      File[] testedBuckets = partition(testedList, true, bucketFolder, "tested", partitions);
+      File[] completeBuckets = partition(completeList, false, bucketFolder, "complete", partitions);
+      logger.info("Joining spill buckets");
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+      try {
+        List<Future<?>> joins = new ArrayList<>();
+        for(int bucket = 0; bucket < partitions; bucket++) {
+          File testedBucket = testedBuckets[bucket], completeBucket = completeBuckets[bucket];
+          if(testedBucket == null || completeBucket == null) {
+            deleteIfExists(testedBucket);
+            deleteIfExists(completeBucket);
+            continue;
+          }
+          joins.add(executor.submit(() -> {
+            matches.addAndGet(joinBucket(testedBucket, completeBucket, writer));
+            return null;
+          }));
+        }
+        for(Future<?> join : joins) {
+          await(join);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    } finally {
+      File[] remaining = bucketFolder.listFiles();
+      if(remaining != null) {
+        for(File file : remaining) {
+          deleteIfExists(file);
+        }
+      }
+      deleteIfExists(bucketFolder);
+    }
+    logger.info("Found matches for " + matches.get() + " terms");
+    return matches.get();
+  }
+
+  public long joinValues(@Nonnull File outputFile, @Nonnull File spillFolder) throws IOException {
+    return joinValues(outputFile, spillFolder, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
 
-    Set<String> terms = map.keySet();
+  /**
+   * Get the number of buckets to partition the lists into so that the tested terms of each of the buckets that are
+   * joined at a time fit in half of the heap
+   */
+  private static int getPartitionCount(long testedListSize, int parallelism) {
+    long budget = Math.max(1, Runtime.getRuntime().maxMemory() / 2 / parallelism);
+    long partitions = (testedListSize * TABLE_BYTES_PER_LINE_BYTE + budget - 1) / budget;
+    return (int) Math.max(1, Math.min(MAX_PARTITIONS, partitions));
+  }
 
-    for(String s : completeList) {
-      if(terms.contains(s)) {
-        output.add(new TermCheckResult(s, map.get(s)));
+  /**
+   * Split the lines of the given list into bucket files by the hash of their term. The chunks of the list are split
+   * in parallel, and written to the buckets in order, so the lines of each bucket keep the order of the list
+   *
+   * @return The bucket files, where buckets without lines are null
+   */
+  @Nonnull
+  private static File[] partition(@Nonnull File list, boolean tested, @Nonnull File bucketFolder,
+                                  @Nonnull String prefix, int partitions) throws IOException {
+    SpillBucket[] buckets = new SpillBucket[partitions];
+    File[] files = new File[partitions];
+    try (MappedLineReader reader = new MappedLineReader(list)) {
+      reader.processChunks(chunk -> {
+        StringBuilder[] parts = new StringBuilder[partitions];
+        reader.forEachLine(chunk, line -> {
+          int termEnd = (tested ? getTermEnd(line) : line.length());
+          if(termEnd == -1) {
+            termEnd = line.length();
+          }
+          int bucket = getBucket(line, termEnd, partitions);
+          if(parts[bucket] == null) {
+            parts[bucket] = new StringBuilder();
+          }
+          parts[bucket].append(line).append('\n');
+        });
+        return parts;
+      }, parts -> {
+        for(int bucket = 0; bucket < partitions; bucket++) {
+          if(parts[bucket] == null) {
+            continue;
+          }
+          if(buckets[bucket] == null) {
+            files[bucket] = new File(bucketFolder, prefix + "-" + bucket + ".txt");
+            buckets[bucket] = new SpillBucket(files[bucket]);
+          }
+          buckets[bucket].write(parts[bucket]);
+        }
+      });
+    } finally {
+      for(SpillBucket bucket : buckets) {
+        if(bucket != null) {
+          bucket.close();
+        }
       }
     }
+    return files;
+  }
 
-    System.out.println("Found matches for " + output.size() + " terms");
+  /**
+   * Get the bucket of a term from the high bits of its hash, scrambled differently than by {@link TermTable}, which
+   * uses the low bits, so the terms of a bucket still spread over the whole table
+   */
+  private static int getBucket(@Nonnull CharSequence line, int termEnd, int partitions) {
+    int hash = TermTable.hash(line, 0, termEnd) * 0x85EBCA6B;
+    return (int) (((hash ^ (hash >>> 13)) & 0xFFFFFFFFL) * partitions >>> 32);
+  }
 
-    return output;
+  /**
+   * Join one bucket of the tested list with the same bucket of the complete list, writing the matches to the given
+   * writer, which is shared with the other buckets, in batches. The bucket files are deleted afterwards
+   */
+  private static long joinBucket(@Nonnull File testedBucket, @Nonnull File completeBucket,
+                                 @Nonnull BufferedCsvWriter writer) throws IOException {
+    TermTable testedTerms = parseTestedList(testedBucket);
+    deleteIfExists(testedBucket);
+    long[] matches = new long[1];
+    StringBuilder output = new StringBuilder();
+    try (MappedLineReader reader = new MappedLineReader(completeBucket)) {
+      reader.forEachLine(line -> {
+        Boolean isValid = testedTerms.get(line);
+        if(isValid != null) {
+          matches[0]++;
+          output.append(line).append(',').append(isValid.booleanValue()).append('\n');
+          if(output.length() >= OUTPUT_BATCH_SIZE) {
+            writeBatch(output, writer);
+          }
+        }
+      });
+    }
+    writeBatch(output, writer);
+    deleteIfExists(completeBucket);
+    return matches[0];
   }
 
+  private static void writeBatch(@Nonnull StringBuilder output, @Nonnull BufferedCsvWriter writer)
+      throws IOException {
+    synchronized (writer) {
+      writer.write(output);
+    }
+    output.setLength(0);
+  }
 
-  public void serialize(List<TermCheckResult> list, String outputPath) throws IOException {
-    File output = new File(outputPath);
-    BufferedWriter writer = new BufferedWriter(new FileWriter(output, true));
-    for(TermCheckResult r : list) {
-      writer.write(r.getKey());
-      writer.write(",");
-      writer.write(String.valueOf(r.getValue()));
-      writer.write("\n");
-      writer.flush();
+  private static void await(@Nonnull Future<?> future) throws IOException {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while joining spill buckets");
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
     }
-    writer.close();
   }
 
-  public static void main(String[] args) throws IOException {
-    File completeList = new File(args[0]);
-    File testedList = new File(args[1]);
-    String outputFilePath = args[2];
+  private static void deleteIfExists(@Nullable File file) {
+    if(file != null && file.exists() && !file.delete()) {
+      logger.warn("Could not delete spill file: " + file);
+    }
+  }
 
-    System.out.println("Processing tested list file");
-    TermFileResultProcessor p = new TermFileResultProcessor(completeList, testedList);
-    Map<String,Boolean> map = p.parseTestedList();
-    System.out.println("Map size " + map.size());
+  /**
+   * Get the end of the term in a line of the tested list, or -1 if the line has no validity
+   */
+  private static int getTermEnd(@Nonnull CharSequence line) {
+    return indexOf(line, ',', 0);
+  }
 
-    System.out.println("Processing complete list file");
-    List<String> list = Utils.parseFile(completeList);
-    System.out.println("Complete list size: " + list.size());
+  private static int indexOf(@Nonnull CharSequence line, char c, int from) {
+    for(int i = from; i < line.length(); i++) {
+      if(line.charAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
 
-    System.out.println("Verifying values");
-    List<TermCheckResult> result = p.verifyValues(list, map);
+  /**
+   * Check whether the given characters of the line are "true", in any case, as {@link Boolean#valueOf(String)} does
+   */
+  private static boolean isTrue(@Nonnull CharSequence line, int start, int end) {
+    String expected = "true";
+    if(end - start != expected.length()) {
+      return false;
+    }
+    for(int i = 0; i < expected.length(); i++) {
+      if(Character.toLowerCase(line.charAt(start + i)) != expected.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-    p.serialize(result, outputFilePath);
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("completeList", completeList)
+        .add("testedList", testedList)
+        .toString();
   }
-}
 
+  /**
+   * A spill bucket file, to which lines are written in UTF-8 through a small buffer, so that many buckets can be
+   * open at once
+   */
+  private static final class SpillBucket implements Closeable {
+    @Nonnull private final OutputStream output;
+    @Nonnull private final byte[] buffer = new byte[SPILL_BUFFER_SIZE];
+    private int position = 0;
 
-class TermCheckResult {
-  private final String key;
-  private final Boolean value;
+    SpillBucket(@Nonnull File file) throws IOException {
+      output = new FileOutputStream(file);
+    }
 
-  public TermCheckResult(String key, Boolean value) {
-    this.key = key;
-    this.value = value;
-  }
+    void write(@Nonnull CharSequence text) throws IOException {
+      for(int i = 0, length = text.length(); i < length; i++) {
+        if(position > buffer.length - 4) {
+          flush();
+        }
+        char c = text.charAt(i);
+        if(c < 0x80) {
+          buffer[position++] = (byte) c;
+        } else if(c < 0x800) {
+          buffer[position++] = (byte) (0xC0 | (c >> 6));
+          buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, text.charAt(++i));
+          buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+          buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if(Character.isSurrogate(c)) {
+          // unpaired surrogates are replaced, as the decoder of the reader replaces malformed input
+          buffer[position++] = '?';
+        } else {
+          buffer[position++] = (byte) (0xE0 | (c >> 12));
+          buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
 
-  public String getKey() {
-    return key;
+    private void flush() throws IOException {
+      output.write(buffer, 0, position);
+      position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        output.close();
+      }
+    }
   }
 
-  public Boolean getValue() {
-    return value;
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File completeList = new File(args[0]);
+    File testedList = new File(args[1]);
+    String outputFilePath = args[2];
+
+    TermFileResultProcessor p = new TermFileResultProcessor(completeList, testedList);
+    if(args.length > 3) {
+      // the tested list does not fit in memory, so the lists are joined through spill buckets in the given folder
+      p.joinValues(new File(outputFilePath), new File(args[3]));
+      return;
+    }
+    logger.info("Processing tested list file");
+    TermTable table = p.parseTestedList();
+    logger.info("Map size " + table.size());
+
+    logger.info("Verifying values of complete list file");
+    p.verifyValues(table, new File(outputFilePath));
   }
 }
@@ -0,0 +1,137 @@
+package org.metadatacenter.biosample.analyzer;
+
+import com.google.common.base.MoreObjects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A hash table from terms to their validity, with open addressing over arrays. Terms are looked up by any
+ * {@link CharSequence}, such as the lines of a {@link MappedLineReader}, without converting them to strings: the hash
+ * of a character sequence is computed as {@link String#hashCode()} is, and keys are compared with
+ * {@link String#contentEquals(CharSequence)}. Lookups can be made by several threads at once, as long as no terms are
+ * being added.
+ *
+ * @author Rafael Gonçalves <br>
+ * Center for Biomedical Informatics Research <br>
+ * Stanford University
+ */
+public final class TermTable {
+  private static final int INITIAL_CAPACITY = 1 << 10;
+  private static final double MAX_LOAD = 0.6;
+  @Nonnull private String[] keys = new String[INITIAL_CAPACITY];
+  @Nonnull private int[] hashes = new int[INITIAL_CAPACITY];
+  @Nonnull private boolean[] values = new boolean[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /**
+   * Set the validity of the given term
+   *
+   * @return true if the table already held the term
+   */
+  public boolean put(@Nonnull String term, boolean isValid) {
+    checkNotNull(term);
+    int hash = term.hashCode();
+    int slot = findSlot(term, hash);
+    boolean present = keys[slot] != null;
+    if(!present) {
+      keys[slot] = term;
+      hashes[slot] = hash;
+      size++;
+    }
+    values[slot] = isValid;
+    if(size > MAX_LOAD * keys.length) {
+      grow();
+    }
+    return present;
+  }
+
+  /**
+   * Get the validity of the given term, or null if the table does not hold the term
+   */
+  @Nullable
+  public Boolean get(@Nonnull CharSequence term) {
+    int slot = findSlot(term, hash(term));
+    return (keys[slot] != null ? values[slot] : null);
+  }
+
+  public boolean contains(@Nonnull CharSequence term) {
+    return keys[findSlot(term, hash(term))] != null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Find the slot that holds the given term, or the empty slot where it would be added
+   */
+  private int findSlot(@Nonnull CharSequence term, int hash) {
+    int mask = keys.length - 1;
+    int slot = mix(hash) & mask;
+    while(keys[slot] != null && (hashes[slot] != hash || !keys[slot].contentEquals(term))) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void grow() {
+    String[] oldKeys = keys;
+    int[] oldHashes = hashes;
+    boolean[] oldValues = values;
+    keys = new String[oldKeys.length * 2];
+    hashes = new int[keys.length];
+    values = new boolean[keys.length];
+    int mask = keys.length - 1;
+    for(int i = 0; i < oldKeys.length; i++) {
+      if(oldKeys[i] != null) {
+        int slot = mix(oldHashes[i]) & mask;
+        while(keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        hashes[slot] = oldHashes[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Get the hash of the given characters, which is the same as the hash of the string of these characters
+   */
+  static int hash(@Nonnull CharSequence term) {
+    if(term instanceof String) {
+      return term.hashCode();
+    }
+    return hash(term, 0, term.length());
+  }
+
+  /**
+   * Get the hash of the characters of the given sequence from start (inclusive) to end (exclusive)
+   */
+  static int hash(@Nonnull CharSequence term, int start, int end) {
+    int hash = 0;
+    for(int i = start; i < end; i++) {
+      hash = 31 * hash + term.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * Spread the bits of a string hash, whose low bits alone are poorly distributed for similar strings
+   */
+  private static int mix(int hash) {
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("size", size)
+        .add("capacity", keys.length)
+        .toString();
+  }
+}
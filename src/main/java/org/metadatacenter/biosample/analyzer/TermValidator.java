@@ -5,11 +5,13 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -19,18 +21,37 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
-@Immutable
+@ThreadSafe
 public final class TermValidator {
   @Nonnull private final BioPortalAgent bioPortalAgent;
+  @Nonnull private final TermCache termCache;
   @Nonnull private final static Pattern p1 = Pattern.compile(" ");
   @Nonnull private final static Pattern p2 = Pattern.compile("%");
   @Nonnull private final static Pattern p3 = Pattern.compile("\\.");
 
   public TermValidator(@Nonnull BioPortalAgent bioPortalAgent) {
+    this(bioPortalAgent, new TermCache());
+  }
+
+  /**
+   * @param bioPortalAgent BioPortal agent
+   * @param termCache      Cache of the reports of terms looked up before, which is added to as terms are looked up
+   */
+  public TermValidator(@Nonnull BioPortalAgent bioPortalAgent, @Nonnull TermCache termCache) {
     this.bioPortalAgent = checkNotNull(bioPortalAgent);
+    this.termCache = checkNotNull(termCache);
+  }
+
+  @Nonnull
+  public TermCache getTermCache() {
+    return termCache;
   }
 
   public TermValidationReport validateTerm(@Nonnull String term, boolean exactMatch, @Nonnull String... ontologies) {
+    Optional<TermValidationReport> cachedReport = termCache.get(term, exactMatch, ontologies);
+    if(cachedReport.isPresent()) {
+      return cachedReport.get();
+    }
     String searchString = p1.matcher(term).replaceAll("+");
     searchString = p2.matcher(searchString).replaceAll("");
     searchString = p3.matcher(searchString).replaceAll("");
@@ -46,8 +67,19 @@ public final class TermValidator {
       } else {
         searchResult = bioPortalAgent.getResult(searchString, exactMatch);
       }
+      if(!searchResult.isPresent()) {
+        // the BioPortal request failed, so the term is not cached and will be looked up again next time
+        return new TermValidationReport("",  "",false, false, false);
+      }
     }
 
+    TermValidationReport report = getReport(searchResult);
+    termCache.put(term, exactMatch, ontologies, report);
+    return report;
+  }
+
+  @Nonnull
+  private TermValidationReport getReport(@Nonnull Optional<JsonNode> searchResult) {
     if(searchResult.isPresent() && searchResult.get().elements().hasNext()) {
       // look at the first result from BioPortal
       JsonNode node = searchResult.get().elements().next();
@@ -68,6 +100,22 @@ public final class TermValidator {
     }
   }
 
+  /**
+   * Validate the given term asynchronously. The BioPortal request is issued on the given executor, so a small
+   * executor can serve the term lookups of many records at once. Cached terms are not looked up again
+   */
+  @Nonnull
+  public CompletableFuture<TermValidationReport> validateTermAsync(@Nonnull String term, boolean exactMatch,
+                                                                  @Nonnull Executor executor,
+                                                                  @Nonnull String... ontologies) {
+    checkNotNull(term); checkNotNull(executor); checkNotNull(ontologies);
+    Optional<TermValidationReport> cachedReport = termCache.get(term, exactMatch, ontologies);
+    if(cachedReport.isPresent()) {
+      return CompletableFuture.completedFuture(cachedReport.get());
+    }
+    return CompletableFuture.supplyAsync(() -> validateTerm(term, exactMatch, ontologies), executor);
+  }
+
   private boolean isOntology(@Nonnull String ontologyType) {
     return ontologyType.equalsIgnoreCase("ontology");
   }
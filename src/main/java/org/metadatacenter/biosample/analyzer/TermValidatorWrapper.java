@@ -2,40 +2,227 @@ package org.metadatacenter.biosample.analyzer;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * Validates a list of terms against BioPortal. Besides the serial {@link #validate(SimpleTermCsvWriter)}, a bulk mode,
+ * {@link #validate(File, int)}, looks up a bounded number of terms at a time and resumes an interrupted run: terms
+ * already in the output file are skipped, and the output is appended to.
+ *
  * @author Rafael Gonçalves <br>
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
 public final class TermValidatorWrapper {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(TermValidatorWrapper.class.getName());
+  public static final int DEFAULT_PARALLELISM = 8, FLUSH_INTERVAL = 1000;
   @Nonnull private final List<String> terms;
   @Nonnull private final String bioPortalApiKey;
+  @Nonnull private final TermCache termCache;
 
-  public TermValidatorWrapper(@Nonnull List<String> terms, @Nonnull String bioPortalApiKey) {
+  /**
+   * @param terms           Terms to validate
+   * @param bioPortalApiKey BioPortal API key
+   * @param termCache       Cache of the reports of terms looked up before, which is added to as terms are looked up
+   */
+  public TermValidatorWrapper(@Nonnull List<String> terms, @Nonnull String bioPortalApiKey,
+                              @Nonnull TermCache termCache) {
     this.terms = checkNotNull(terms);
     this.bioPortalApiKey = checkNotNull(bioPortalApiKey);
+    this.termCache = checkNotNull(termCache);
   }
 
+  public TermValidatorWrapper(@Nonnull List<String> terms, @Nonnull String bioPortalApiKey) {
+    this(terms, bioPortalApiKey, new TermCache());
+  }
+
+  /**
+   * Validate the terms one at a time, writing a row per term to the given writer. The writer is flushed after every
+   * {@value #FLUSH_INTERVAL} terms and at the end, but not closed: closing it is left to the caller
+   */
   @Nonnull
   public List<TermValidationReport> validate(@Nonnull SimpleTermCsvWriter writer) throws IOException {
-    TermValidator val = new TermValidator(new BioPortalAgent(bioPortalApiKey));
+    TermValidator val = new TermValidator(new BioPortalAgent(bioPortalApiKey), termCache);
     List<TermValidationReport> validationReports = new ArrayList<>();
     for(String term : terms) {
       TermValidationReport report = val.validateTerm(term, true);
       validationReports.add(report);
       writer.write(term, report);
+      if(validationReports.size() % FLUSH_INTERVAL == 0) {
+        writer.flush();
+      }
     }
+    writer.flush();
     return validationReports;
   }
 
+  /**
+   * Validate the terms that are not in the given output file yet, appending a row per term to the file in the order
+   * of the terms. Up to the given number of terms are looked up at a time, and each distinct term is written once.
+   * Terms whose lookup failed are not written, so they are looked up again when the run is resumed. A row left
+   * incomplete by an interrupted run is removed before resuming
+   *
+   * @return The number of terms written
+   */
+  public long validate(@Nonnull File outputFile, int parallelism) throws IOException {
+    checkNotNull(outputFile);
+    checkArgument(parallelism > 0, "Parallelism must be positive");
+    TermTable doneTerms = readValidatedTerms(outputFile);
+    int maxInFlight = parallelism * 4;
+    TermValidator val = new TermValidator(new BioPortalAgent(bioPortalApiKey), termCache);
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    long written = 0, failed = 0;
+    File outputFolder = outputFile.getAbsoluteFile().getParentFile();
+    try (SimpleTermCsvWriter writer = new SimpleTermCsvWriter(outputFolder.getPath(), outputFile.getName())) {
+      Deque<String> inFlightTerms = new ArrayDeque<>();
+      Deque<CompletableFuture<TermValidationReport>> inFlight = new ArrayDeque<>();
+      int next = 0;
+      while(next < terms.size() || !inFlight.isEmpty()) {
+        while(next < terms.size() && inFlight.size() < maxInFlight) {
+          String term = terms.get(next++);
+          if(doneTerms.put(term, true)) {
+            continue;
+          }
+          inFlightTerms.add(term);
+          inFlight.add(val.validateTermAsync(term, true, executor));
+        }
+        if(inFlight.isEmpty()) {
+          continue;
+        }
+        String term = inFlightTerms.poll();
+        TermValidationReport report = getResult(inFlight.poll());
+        if(!termCache.get(term, true).isPresent()) {
+          // failed lookups are not cached
+          failed++;
+          continue;
+        }
+        writer.write(term, report);
+        if(++written % FLUSH_INTERVAL == 0) {
+          writer.flush();
+          logger.info("Validated " + written + " terms");
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    logger.info("Validated " + written + " terms (" + failed + " failed lookups, " + termCache.size() +
+        " cached terms)");
+    return written;
+  }
+
+  public long validate(@Nonnull File outputFile) throws IOException {
+    return validate(outputFile, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Get the terms in the rows of the given output file, after cutting off an incomplete last row. Rows are parsed with
+   * the quoting rules they are written with, see {@link SimpleTermCsvWriter#write(String, TermValidationReport)}: a
+   * quoted cell ends at a quote that is not doubled, and may hold commas and line breaks. Quotes, commas and line
+   * breaks are single bytes in UTF-8, so the file is scanned byte by byte, and only the terms are decoded
+   */
+  @Nonnull
+  private static TermTable readValidatedTerms(@Nonnull File outputFile) throws IOException {
+    TermTable doneTerms = new TermTable();
+    if(!outputFile.exists()) {
+      return doneTerms;
+    }
+    try (FileChannel channel = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+      byte[] term = new byte[256];
+      int termLength = 0, cell = 0;
+      boolean cellStart = true, quoted = false, afterQuote = false;
+      long offset = 0, rowEnd = 0;
+      while(channel.read(buffer) > 0) {
+        ((Buffer) buffer).flip();
+        while(buffer.hasRemaining()) {
+          byte b = buffer.get();
+          offset++;
+          if(quoted) {
+            if(b == '"') {
+              // a closing quote, unless the next byte is a quote too
+              quoted = false;
+              afterQuote = true;
+              continue;
+            }
+          } else if(afterQuote && b == '"') {
+            // a doubled quote, which stands for one quote within the quoted cell
+            quoted = true;
+            afterQuote = false;
+          } else if(b == '"' && cellStart) {
+            quoted = true;
+            cellStart = false;
+            continue;
+          } else if(b == ',' || b == '\n') {
+            if(b == ',') {
+              cell++;
+            } else {
+              if(cell == 2) {
+                doneTerms.put(new String(term, 0, termLength, StandardCharsets.UTF_8), true);
+              }
+              rowEnd = offset;
+              termLength = 0;
+              cell = 0;
+            }
+            cellStart = true;
+            afterQuote = false;
+            continue;
+          }
+          cellStart = false;
+          afterQuote = false;
+          if(cell == 0) {
+            if(termLength == term.length) {
+              term = Arrays.copyOf(term, 2 * term.length);
+            }
+            term[termLength++] = b;
+          }
+        }
+        ((Buffer) buffer).clear();
+      }
+      if(rowEnd < channel.size()) {
+        logger.info("Removing incomplete last row of " + outputFile);
+        channel.truncate(rowEnd);
+      }
+    }
+    logger.info("Skipping " + doneTerms.size() + " terms already in " + outputFile);
+    return doneTerms;
+  }
+
+  private static <T> T getResult(@Nonnull CompletableFuture<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while validating terms", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -61,4 +248,14 @@ public final class TermValidatorWrapper {
         .add("bioPortalApiKey", bioPortalApiKey)
         .toString();
   }
+
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File termsFile = new File(args[0]);
+    File outputFile = new File(args[1]);
+    String bioPortalApiKey = args[2];
+    int parallelism = (args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PARALLELISM);
+    List<String> terms = Utils.parseFile(termsFile);
+    new TermValidatorWrapper(terms, bioPortalApiKey).validate(outputFile, parallelism);
+  }
 }
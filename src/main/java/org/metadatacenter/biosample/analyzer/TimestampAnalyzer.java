@@ -1,61 +1,108 @@
 package org.metadatacenter.biosample.analyzer;
 
+import com.google.common.base.MoreObjects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.annotation.Nonnull;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.EnumMap;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
+ * Checks the date format of a file of timestamps, one per line. The file is read in chunks in parallel by a
+ * {@link MappedLineReader}, and each line is classified into a {@link DateFormatFamily}, which tells whether it is
+ * valid, without creating a string per line. The validity of the lines of each chunk is written out, in the order of
+ * the file, as soon as the chunk is done, and the lines of each format family are counted in the same pass, so the
+ * memory used does not grow with the size of the file.
+ *
  * @author Rafael Gonçalves <br>
  * Center for Biomedical Informatics Research <br>
  * Stanford University
  */
 public final class TimestampAnalyzer {
+  @Nonnull private static final Logger logger = LoggerFactory.getLogger(TimestampAnalyzer.class.getName());
   @Nonnull private final File timestampFile;
 
   public TimestampAnalyzer(@Nonnull File timestampFile) {
     this.timestampFile = checkNotNull(timestampFile);
   }
 
+  /**
+   * Write a row with each timestamp and its validity to the given output file, which is appended to
+   *
+   * @return The number of timestamps in each format family
+   */
   @Nonnull
-  public List<TermCheckResult> analyseTimestamps() throws IOException {
-    List<String> timestamps = Utils.parseFile(timestampFile);
-    return validate(timestamps);
+  public Map<DateFormatFamily,Long> analyseTimestamps(@Nonnull String outputFile) throws IOException {
+    long[] counts = new long[DateFormatFamily.values().length];
+    try (MappedLineReader reader = new MappedLineReader(timestampFile);
+         BufferedCsvWriter writer = new BufferedCsvWriter(new File(checkNotNull(outputFile)), true, false)) {
+      reader.processChunks(chunk -> {
+        ChunkResult result = new ChunkResult();
+        reader.forEachLine(chunk, line -> {
+          DateFormatFamily family = DateFormatFamily.classify(line);
+          result.counts[family.ordinal()]++;
+          result.rows.append('"').append(line).append("\",\"").append(family.isValid()).append("\"\n");
+        });
+        return result;
+      }, result -> {
+        writer.write(result.rows);
+        for(int i = 0; i < counts.length; i++) {
+          counts[i] += result.counts[i];
+        }
+      });
+    }
+    Map<DateFormatFamily,Long> histogram = new EnumMap<>(DateFormatFamily.class);
+    for(DateFormatFamily family : DateFormatFamily.values()) {
+      histogram.put(family, counts[family.ordinal()]);
+    }
+    logger.info("Date formats of " + timestampFile + ": " + histogram);
+    return histogram;
   }
 
-  @Nonnull
-  public List<TermCheckResult> analyseTimestamps(@Nonnull String outputFile) throws IOException {
-    List<TermCheckResult> results = analyseTimestamps();
-    serialize(results, outputFile);
-    return results;
+  /**
+   * Write the given histogram to a CSV file with the label and the count of each format family
+   */
+  public static void writeHistogram(@Nonnull Map<DateFormatFamily,Long> histogram, @Nonnull File outputFile)
+      throws IOException {
+    try (BufferedCsvWriter writer = new BufferedCsvWriter(checkNotNull(outputFile), false, false)) {
+      writer.write("format,valid,count");
+      writer.writeNewLine();
+      for(Map.Entry<DateFormatFamily,Long> entry : checkNotNull(histogram).entrySet()) {
+        writer.writeQuoted(entry.getKey().getLabel()).writeSeparator()
+            .write(entry.getKey().isValid()).writeSeparator()
+            .write(entry.getValue())
+            .writeNewLine();
+      }
+    }
   }
 
-  @Nonnull
-  private List<TermCheckResult> validate(@Nonnull List<String> values) {
-    List<TermCheckResult> output = new ArrayList<>();
-    GenericValidator val = new GenericValidator(new TermValidator(new BioPortalAgent("")));
-    for(String s : values) {
-      boolean isValid = val.isValidDateFormat(s);
-      output.add(new TermCheckResult(s, isValid));
-    }
-    return output;
+  /**
+   * The output rows and the format family counts of one chunk
+   */
+  private static final class ChunkResult {
+    @Nonnull private final StringBuilder rows = new StringBuilder();
+    @Nonnull private final long[] counts = new long[DateFormatFamily.values().length];
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("timestampFile", timestampFile)
+        .toString();
   }
 
-  private void serialize(List<TermCheckResult> list, String outputPath) throws IOException {
-    File output = new File(outputPath);
-    BufferedWriter writer = new BufferedWriter(new FileWriter(output, true));
-    for(TermCheckResult r : list) {
-      writer.write("\"" + r.getKey() + "\"");
-      writer.write(",");
-      writer.write("\"" + String.valueOf(r.getValue()) + "\"");
-      writer.write("\n");
-      writer.flush();
+  /* Main */
+  public static void main(String[] args) throws IOException {
+    File timestampFile = new File(args[0]);
+    String outputFile = args[1];
+    Map<DateFormatFamily,Long> histogram = new TimestampAnalyzer(timestampFile).analyseTimestamps(outputFile);
+    if(args.length > 2) {
+      writeHistogram(histogram, new File(args[2]));
     }
-    writer.close();
   }
 }
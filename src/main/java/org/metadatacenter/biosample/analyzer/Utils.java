@@ -76,14 +76,11 @@ public class Utils {
 
   @Nonnull
   public static List<String> parseFile(@Nonnull File file) throws IOException {
+    // files too large to hold as strings should be scanned with a MappedLineReader instead
     List<String> lineList = new ArrayList<>();
-    BufferedReader reader = new BufferedReader(new FileReader(file));
-    String line = reader.readLine();
-    while(line != null) {
-      lineList.add(line);
-      line = reader.readLine();
+    try (MappedLineReader reader = new MappedLineReader(file)) {
+      reader.forEachLine(line -> lineList.add(line.toString()));
     }
-    reader.close();
     return lineList;
   }
 }
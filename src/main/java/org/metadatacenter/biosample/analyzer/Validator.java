@@ -1,6 +1,7 @@
 package org.metadatacenter.biosample.analyzer;
 
 import javax.annotation.Nonnull;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Rafael Gonçalves <br>
@@ -12,6 +13,18 @@ public interface Validator {
   @Nonnull
   RecordValidationReport validateBioSampleRecord(@Nonnull Record biosample);
 
+  /**
+   * Validate the given record without blocking the calling thread while waiting on external services, so that the
+   * validation of many records can overlap. By default the record is validated synchronously.
+   *
+   * @param biosample BioSample record
+   * @return Future that completes with the validation report of the record
+   */
+  @Nonnull
+  default CompletableFuture<RecordValidationReport> validateBioSampleRecordAsync(@Nonnull Record biosample) {
+    return CompletableFuture.completedFuture(validateBioSampleRecord(biosample));
+  }
+
   boolean isValid(@Nonnull RecordValidationReport report);
 
 }